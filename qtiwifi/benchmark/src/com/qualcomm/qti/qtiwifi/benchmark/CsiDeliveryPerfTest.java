@@ -0,0 +1,147 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi.benchmark;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Parcel;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+
+import com.qualcomm.qti.qtiwifi.CsiBatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Cost of moving frames from the service to the application: parceling the binder
+ * deliveries and posting frames to the application's handler as the manager's callback
+ * proxies do.
+ */
+@LargeTest
+@RunWith(Parameterized.class)
+public class CsiDeliveryPerfTest {
+    private static final int BATCH_FRAMES = 8;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameterized.Parameter(0)
+    public int mBandwidthMhz;
+
+    @Parameterized.Parameters(name = "{0}MHz")
+    public static Collection<Object[]> getParameters() {
+        ArrayList<Object[]> params = new ArrayList<>();
+        for (int bandwidth : CsiFrames.BANDWIDTHS_MHZ) {
+            params.add(new Object[] {bandwidth});
+        }
+        return params;
+    }
+
+    private byte[] mFrame;
+    private CsiBatch mBatch;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private volatile int mSink;
+
+    @Before
+    public void setUp() {
+        mFrame = CsiFrames.create(mBandwidthMhz, CsiFrames.CHAIN_COUNT, 0x0a0b0c0d0e0fL, 0);
+        mBatch = new CsiBatch();
+        for (int i = 0; i < BATCH_FRAMES; i++) {
+            mBatch.addFrame(mFrame, 0, mFrame.length, i);
+        }
+        mThread = new HandlerThread("CsiDeliveryPerfTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+    }
+
+    /**
+     * Marshalling and unmarshalling of one legacy onCsiUpdate frame.
+     */
+    @Test
+    public void timeParcelFrame() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            Parcel parcel = Parcel.obtain();
+            parcel.writeByteArray(mFrame);
+            parcel.setDataPosition(0);
+            mSink = parcel.createByteArray().length;
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Marshalling and unmarshalling of an onCsiBatch batch of {@link #BATCH_FRAMES} frames.
+     */
+    @Test
+    public void timeParcelBatch() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            Parcel parcel = Parcel.obtain();
+            mBatch.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            mSink = CsiBatch.CREATOR.createFromParcel(parcel).getFrameCount();
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Handing a frame to the application's thread, a capturing lambda per frame.
+     */
+    @Test
+    public void timeHandlerPost() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final byte[] frame = mFrame;
+        while (state.keepRunning()) {
+            mHandler.post(() -> {
+                mSink = frame.length;
+            });
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi.benchmark;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+
+import com.qualcomm.qti.qtiwifi.CsiFrame;
+import com.qualcomm.qti.qtiwifi.CsiUtil;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Per-frame cost of converting, parsing and formatting frames.
+ */
+@LargeTest
+@RunWith(Parameterized.class)
+public class CsiFramePerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameterized.Parameter(0)
+    public int mBandwidthMhz;
+
+    @Parameterized.Parameters(name = "{0}MHz")
+    public static Collection<Object[]> getParameters() {
+        ArrayList<Object[]> params = new ArrayList<>();
+        for (int bandwidth : CsiFrames.BANDWIDTHS_MHZ) {
+            params.add(new Object[] {bandwidth});
+        }
+        return params;
+    }
+
+    private byte[] mData;
+    private ArrayList<Byte> mList;
+    private byte[] mArray;
+    private CsiFrame mFrame;
+    private short[] mSamples;
+    private char[] mHex;
+    private String mHexString;
+    private volatile long mSink;
+
+    @Before
+    public void setUp() {
+        mData = CsiFrames.create(mBandwidthMhz, CsiFrames.CHAIN_COUNT, 0x0a0b0c0d0e0fL, 0);
+        mFrame = new CsiFrame(mData);
+        mList = CsiFrames.toList(mData);
+        mArray = new byte[mData.length];
+        mSamples = new short[CsiFrames.CHAIN_COUNT * CsiFrames.subcarriers(mBandwidthMhz) * 2];
+        mHex = new char[2 * mData.length];
+        mHexString = CsiUtil.toHexString(mData);
+    }
+
+    /**
+     * Conversion of the HIDL list as the service used to do it, iterating the list.
+     */
+    @Test
+    public void timeListToArrayIterator() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            int i = 0;
+            for (Byte b : mList) {
+                mArray[i++] = b;
+            }
+        }
+    }
+
+    @Test
+    public void timeListToArrayIndexed() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final int length = mList.size();
+        while (state.keepRunning()) {
+            for (int i = 0; i < length; i++) {
+                mArray[i] = mList.get(i);
+            }
+        }
+    }
+
+    @Test
+    public void timeListToArrayUtil() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final int length = mList.size();
+        while (state.keepRunning()) {
+            CsiUtil.copyFromList(mList, 0, mArray, 0, length);
+        }
+    }
+
+    @Test
+    public void timeParseHeader() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mFrame.wrap(mData, 0, mData.length);
+            mSink = mFrame.getPeerMac() + mFrame.getSubcarrierCount();
+        }
+    }
+
+    @Test
+    public void timeReadSamples() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mFrame.readSamples(mSamples, 0);
+        }
+    }
+
+    @Test
+    public void timeGetIQ() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final int chains = mFrame.getChainCount();
+        final int subcarriers = mFrame.getSubcarrierCount();
+        while (state.keepRunning()) {
+            long sum = 0;
+            for (int c = 0; c < chains; c++) {
+                for (int s = 0; s < subcarriers; s++) {
+                    sum += mFrame.getI(c, s) + mFrame.getQ(c, s);
+                }
+            }
+            mSink = sum;
+        }
+    }
+
+    /**
+     * Hex formatting as the reference client used to log frames, String.format per byte.
+     */
+    @Test
+    public void timeHexStringFormat() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            StringBuilder builder = new StringBuilder();
+            for (byte value : mData) {
+                builder.append(String.format("%02x", value & 0xff));
+            }
+            mSink = builder.length();
+        }
+    }
+
+    /**
+     * Table driven hex encoding into a reused buffer.
+     */
+    @Test
+    public void timeHexEncodeTable() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mSink = CsiUtil.encodeHex(mData, 0, mData.length, mHex, 0);
+        }
+    }
+
+    @Test
+    public void timeHexToString() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mSink = CsiUtil.toHexString(mData).length();
+        }
+    }
+
+    @Test
+    public void timeHexDecodeTable() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mSink = CsiUtil.decodeHex(mHexString, 0, mHexString.length(), mArray, 0);
+        }
+    }
+}
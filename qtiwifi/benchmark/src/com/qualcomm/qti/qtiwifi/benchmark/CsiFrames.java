@@ -0,0 +1,119 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi.benchmark;
+
+import com.qualcomm.qti.qtiwifi.CsiFrame;
+
+import java.util.ArrayList;
+
+/**
+ * Builds synthetic CFR frames of realistic sizes for the benchmarks.
+ */
+final class CsiFrames {
+    /* Bandwidths covered by the benchmarks, in MHz */
+    static final int[] BANDWIDTHS_MHZ = {20, 40, 80, 160};
+    static final int CHAIN_COUNT = 2;
+
+    private CsiFrames() {
+    }
+
+    /**
+     * Returns the number of subcarriers reported for a bandwidth, 64 per 20 MHz.
+     */
+    static int subcarriers(int bandwidthMhz) {
+        return bandwidthMhz / 20 * 64;
+    }
+
+    static int bandwidthCode(int bandwidthMhz) {
+        switch (bandwidthMhz) {
+            case 20: return CsiFrame.BANDWIDTH_20MHZ;
+            case 40: return CsiFrame.BANDWIDTH_40MHZ;
+            case 80: return CsiFrame.BANDWIDTH_80MHZ;
+            default: return CsiFrame.BANDWIDTH_160MHZ;
+        }
+    }
+
+    /**
+     * Builds a frame from {@code peerMac} whose samples rotate slowly across subcarriers and
+     * vary with {@code seed}, so consecutive frames differ a little as real captures do.
+     */
+    static byte[] create(int bandwidthMhz, int chains, long peerMac, int seed) {
+        final int subcarriers = subcarriers(bandwidthMhz);
+        final int payload = chains * subcarriers * CsiFrame.BYTES_PER_SUBCARRIER;
+        byte[] frame = new byte[CsiFrame.HEADER_SIZE + payload];
+        putInt(frame, CsiFrame.OFFSET_MAGIC, CsiFrame.MAGIC);
+        for (int i = 0; i < 6; i++) {
+            frame[CsiFrame.OFFSET_PEER_MAC + i] = (byte) (peerMac >>> (40 - 8 * i));
+        }
+        frame[CsiFrame.OFFSET_CAPTURE_BW] = (byte) bandwidthCode(bandwidthMhz);
+        frame[CsiFrame.OFFSET_CHANNEL_BW] = (byte) bandwidthCode(bandwidthMhz);
+        putShort(frame, CsiFrame.OFFSET_PRIMARY_FREQ, 5180);
+        putShort(frame, CsiFrame.OFFSET_CENTER_FREQ1, 5180 + (bandwidthMhz - 20) / 2);
+        frame[CsiFrame.OFFSET_CHAIN_COUNT] = (byte) chains;
+        putInt(frame, CsiFrame.OFFSET_TIMESTAMP, seed * 10000);
+        putInt(frame, CsiFrame.OFFSET_PAYLOAD_LENGTH, payload);
+        int offset = CsiFrame.HEADER_SIZE;
+        for (int c = 0; c < chains; c++) {
+            for (int s = 0; s < subcarriers; s++) {
+                double phase = 0.05 * s + 0.3 * c + 0.01 * seed;
+                double magnitude = 800 + 200 * Math.sin(0.02 * s + 0.1 * seed);
+                putShort(frame, offset, (int) (magnitude * Math.cos(phase)));
+                putShort(frame, offset + 2, (int) (magnitude * Math.sin(phase)));
+                offset += CsiFrame.BYTES_PER_SUBCARRIER;
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Returns the frame as the HIDL data callback receives it.
+     */
+    static ArrayList<Byte> toList(byte[] frame) {
+        ArrayList<Byte> list = new ArrayList<>(frame.length);
+        for (byte b : frame) {
+            list.add(b);
+        }
+        return list;
+    }
+
+    private static void putShort(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) value;
+        dst[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void putInt(byte[] dst, int offset, int value) {
+        putShort(dst, offset, value);
+        putShort(dst, offset + 2, value >> 16);
+    }
+}
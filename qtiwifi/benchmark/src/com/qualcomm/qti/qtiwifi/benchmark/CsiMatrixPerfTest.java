@@ -0,0 +1,118 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi.benchmark;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+
+import com.qualcomm.qti.qtiwifi.CsiFrame;
+import com.qualcomm.qti.qtiwifi.CsiMatrix;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Per-frame cost of loading a {@link CsiMatrix} and running its kernels.
+ */
+@LargeTest
+@RunWith(Parameterized.class)
+public class CsiMatrixPerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameterized.Parameter(0)
+    public int mBandwidthMhz;
+
+    @Parameterized.Parameters(name = "{0}MHz")
+    public static Collection<Object[]> getParameters() {
+        ArrayList<Object[]> params = new ArrayList<>();
+        for (int bandwidth : CsiFrames.BANDWIDTHS_MHZ) {
+            params.add(new Object[] {bandwidth});
+        }
+        return params;
+    }
+
+    private CsiFrame mFrame;
+    private CsiMatrix mMatrix;
+    private float[] mOut;
+
+    @Before
+    public void setUp() {
+        mFrame = new CsiFrame(CsiFrames.create(mBandwidthMhz, CsiFrames.CHAIN_COUNT,
+                0x0a0b0c0d0e0fL, 0));
+        mMatrix = new CsiMatrix().load(mFrame);
+        mOut = new float[mMatrix.size()];
+    }
+
+    @Test
+    public void timeLoad() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mMatrix.load(mFrame);
+        }
+    }
+
+    @Test
+    public void timeAmplitude() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mMatrix.amplitude(mOut);
+        }
+    }
+
+    @Test
+    public void timeUnwrappedPhase() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mMatrix.unwrappedPhase(mOut);
+        }
+    }
+
+    @Test
+    public void timeAmplitudeNormalized() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mMatrix.amplitude(mOut);
+            mMatrix.normalizePerChain(mOut, mOut);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi.benchmark;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+
+import com.qualcomm.qti.qtiwifi.CsiFeatures;
+import com.qualcomm.qti.qtiwifi.CsiFft;
+import com.qualcomm.qti.qtiwifi.CsiFrame;
+import com.qualcomm.qti.qtiwifi.CsiMatrix;
+import com.qualcomm.qti.server.qtiwifi.CsiSpectrogram;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Cost of one Doppler spectrogram tile over {@link CsiFeatures#SPECTROGRAM_FRAMES} frames,
+ * computed by {@link CsiSpectrogram} on pools of 1 to 8 threads to show how it scales with
+ * the cores, and of a single {@link CsiFft} transform.
+ */
+@LargeTest
+@RunWith(Parameterized.class)
+public class CsiSpectrogramPerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameterized.Parameter(0)
+    public int mBandwidthMhz;
+
+    @Parameterized.Parameter(1)
+    public int mThreads;
+
+    @Parameterized.Parameters(name = "{0}MHz_{1}threads")
+    public static Collection<Object[]> getParameters() {
+        ArrayList<Object[]> params = new ArrayList<>();
+        for (int bandwidth : CsiFrames.BANDWIDTHS_MHZ) {
+            for (int threads : new int[] {1, 2, 4, 8}) {
+                params.add(new Object[] {bandwidth, threads});
+            }
+        }
+        return params;
+    }
+
+    private ForkJoinPool mPool;
+    private CsiSpectrogram mSpectrogram;
+    private int mSubcarriers;
+    private float[] mHistory;
+    private byte[] mTile;
+    private CsiFft mFft;
+    private float[] mRe;
+    private float[] mIm;
+
+    @Before
+    public void setUp() {
+        mPool = new ForkJoinPool(mThreads);
+        mSpectrogram = new CsiSpectrogram(mPool, CsiFeatures.SPECTROGRAM_FRAMES,
+                CsiFeatures.SPECTROGRAM_GROUP_SUBCARRIERS);
+        mSubcarriers = CsiFrames.subcarriers(mBandwidthMhz);
+        final int rowLength = CsiFrames.CHAIN_COUNT * mSubcarriers;
+        mHistory = new float[CsiFeatures.SPECTROGRAM_FRAMES * rowLength];
+        CsiMatrix matrix = new CsiMatrix();
+        float[] row = new float[rowLength];
+        for (int i = 0; i < CsiFeatures.SPECTROGRAM_FRAMES; i++) {
+            matrix.load(new CsiFrame(CsiFrames.create(mBandwidthMhz, CsiFrames.CHAIN_COUNT,
+                    0x0a0b0c0d0e0fL, i)));
+            matrix.amplitude(row);
+            System.arraycopy(row, 0, mHistory, i * rowLength, rowLength);
+        }
+        mTile = new byte[mSpectrogram.getGroupCount(mSubcarriers)
+                * mSpectrogram.getBinCount()];
+        mFft = new CsiFft(CsiFeatures.SPECTROGRAM_FRAMES);
+        mRe = new float[CsiFeatures.SPECTROGRAM_FRAMES];
+        mIm = new float[CsiFeatures.SPECTROGRAM_FRAMES];
+        // Starts the pool's threads before measuring.
+        mSpectrogram.compute(mHistory, 0, CsiFrames.CHAIN_COUNT, mSubcarriers, mTile);
+    }
+
+    @After
+    public void tearDown() {
+        mPool.shutdown();
+    }
+
+    @Test
+    public void timeTile() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mSpectrogram.compute(mHistory, 0, CsiFrames.CHAIN_COUNT, mSubcarriers, mTile);
+        }
+    }
+
+    /**
+     * One of the chains x subcarriers transforms of a tile, independent of the threads.
+     */
+    @Test
+    public void timeFft() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mFft.transform(mRe, mIm);
+        }
+    }
+}
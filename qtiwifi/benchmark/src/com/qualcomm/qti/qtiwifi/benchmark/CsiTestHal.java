@@ -0,0 +1,154 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi.benchmark;
+
+import android.os.Binder;
+import android.os.Process;
+
+import com.qualcomm.qti.qtiwifi.CsiBatch;
+import com.qualcomm.qti.qtiwifi.CsiFeatures;
+import com.qualcomm.qti.qtiwifi.ICsiCallback;
+import com.qualcomm.qti.server.qtiwifi.QtiWifiCsiHal;
+
+import vendor.qti.hardware.wifi.wificfr.V1_0.CaptureStatus;
+import vendor.qti.hardware.wifi.wificfr.V1_0.CaptureStatusCode;
+import vendor.qti.hardware.wifi.wificfr.V1_0.IWificfr;
+import vendor.qti.hardware.wifi.wificfr.V1_0.IWificfrDataCallback;
+
+/**
+ * A QtiWifiCsiHal wired to an in-process IWificfr that hands out the HAL data callback, so
+ * benchmarks can call the service's ingest path directly.
+ */
+final class CsiTestHal {
+    private final CapturingCfr mCfr = new CapturingCfr();
+    private final QtiWifiCsiHal mHal = new QtiWifiCsiHal() {
+        @Override
+        public boolean initialize() {
+            return initIWifiCfrService();
+        }
+
+        @Override
+        protected IWificfr getWifiCfrMockable() {
+            return mCfr;
+        }
+    };
+
+    CsiTestHal() {
+        mHal.initialize();
+        mHal.startCsi(new Binder(), Process.myUid());
+    }
+
+    QtiWifiCsiHal getHal() {
+        return mHal;
+    }
+
+    /**
+     * Returns the callback the service registered with the HAL.
+     */
+    IWificfrDataCallback getDataCallback() {
+        return mCfr.mCallback;
+    }
+
+    /**
+     * Registers {@code count} legacy subscribers ignoring what they receive.
+     */
+    void addSubscribers(int count) {
+        for (int i = 0; i < count; i++) {
+            mHal.registerCsiCallback(new Binder(), new NoOpCallback(), i, 0, null);
+        }
+    }
+
+    void removeSubscribers(int count) {
+        for (int i = 0; i < count; i++) {
+            mHal.unregisterCsiCallback(i, 0);
+        }
+    }
+
+    static final class NoOpCallback extends ICsiCallback.Stub {
+        @Override
+        public void onCsiUpdate(byte[] info) {
+        }
+
+        @Override
+        public void onCsiBatch(CsiBatch batch) {
+        }
+
+        @Override
+        public void onCsiRingUpdate(long writePosition) {
+        }
+
+        @Override
+        public void onCsiDeliveryModeChanged(int mode) {
+        }
+
+        @Override
+        public void onCsiFeatures(CsiFeatures features) {
+        }
+
+        @Override
+        public void onCsiSessionEnded(int reason, long frameCount, long byteCount) {
+        }
+    }
+
+    private static final class CapturingCfr extends IWificfr.Stub {
+        volatile IWificfrDataCallback mCallback;
+
+        @Override
+        public CaptureStatus registerEventCallback(IWificfrDataCallback callback) {
+            mCallback = callback;
+            return success();
+        }
+
+        @Override
+        public CaptureStatus unregisterEventCallback(IWificfrDataCallback callback) {
+            return success();
+        }
+
+        @Override
+        public CaptureStatus csiCaptureStart() {
+            return success();
+        }
+
+        @Override
+        public CaptureStatus csiCaptureStop() {
+            return success();
+        }
+
+        private static CaptureStatus success() {
+            CaptureStatus status = new CaptureStatus();
+            status.code = CaptureStatusCode.SUCCESS;
+            return status;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Arrays;
+
+/**
+ * A group of CSI frames delivered in a single binder transaction.
+ *
+ * Frames are stored back to back in one byte array. Frame {@code i} occupies
+ * {@code [getFrameOffset(i), getFrameOffset(i) + getFrameLength(i))} of {@link #getData()} and
+ * was received from the HAL at {@link #getTimestampNanos(int)}, in
+ * {@link android.os.SystemClock#elapsedRealtimeNanos()} time base.
+ *
+ * The service keeps one batch per subscriber and refills it with {@link #clear()} and
+ * {@link #addFrame}, so its arrays only grow until they fit the configured batch size.
+ */
+public final class CsiBatch implements Parcelable {
+    private static final int INITIAL_FRAME_CAPACITY = 8;
+
+    private int mFrameCount;
+    private byte[] mData;
+    private int mDataLength;
+    /* mFrameCount + 1 entries; the last one is the end of the last frame */
+    private int[] mOffsets;
+    private long[] mTimestampsNanos;
+
+    public CsiBatch() {
+        this(0);
+    }
+
+    public CsiBatch(int initialDataCapacity) {
+        mData = new byte[initialDataCapacity];
+        mOffsets = new int[INITIAL_FRAME_CAPACITY + 1];
+        mTimestampsNanos = new long[INITIAL_FRAME_CAPACITY];
+    }
+
+    private CsiBatch(Parcel in) {
+        mFrameCount = in.readInt();
+        mData = in.createByteArray();
+        mDataLength = mData.length;
+        mOffsets = new int[mFrameCount + 1];
+        mTimestampsNanos = new long[mFrameCount];
+        for (int i = 0; i < mFrameCount; i++) {
+            mOffsets[i] = in.readInt();
+            mTimestampsNanos[i] = in.readLong();
+        }
+        mOffsets[mFrameCount] = mDataLength;
+    }
+
+    /**
+     * Empties the batch, keeping its storage.
+     */
+    public void clear() {
+        mFrameCount = 0;
+        mDataLength = 0;
+    }
+
+    /**
+     * Appends a frame to the batch.
+     */
+    public void addFrame(byte[] src, int offset, int length, long timestampNanos) {
+        if (mDataLength + length > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(mDataLength + length, mData.length * 2));
+        }
+        if (mFrameCount == mTimestampsNanos.length) {
+            mTimestampsNanos = Arrays.copyOf(mTimestampsNanos, mFrameCount * 2);
+            mOffsets = Arrays.copyOf(mOffsets, mFrameCount * 2 + 1);
+        }
+        System.arraycopy(src, offset, mData, mDataLength, length);
+        mOffsets[mFrameCount] = mDataLength;
+        mTimestampsNanos[mFrameCount] = timestampNanos;
+        mFrameCount++;
+        mDataLength += length;
+        mOffsets[mFrameCount] = mDataLength;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Returns the total number of frame bytes in the batch.
+     */
+    public int getDataLength() {
+        return mDataLength;
+    }
+
+    /**
+     * Returns the backing array holding all frames. Only the first {@link #getDataLength()}
+     * bytes are valid.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getFrameOffset(int index) {
+        checkIndex(index);
+        return mOffsets[index];
+    }
+
+    public int getFrameLength(int index) {
+        checkIndex(index);
+        return mOffsets[index + 1] - mOffsets[index];
+    }
+
+    public long getTimestampNanos(int index) {
+        checkIndex(index);
+        return mTimestampsNanos[index];
+    }
+
+    /**
+     * Returns a copy of a single frame.
+     */
+    public byte[] copyFrame(int index) {
+        checkIndex(index);
+        return Arrays.copyOfRange(mData, mOffsets[index], mOffsets[index + 1]);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mFrameCount) {
+            throw new IndexOutOfBoundsException("frame " + index + " of " + mFrameCount);
+        }
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mFrameCount);
+        dest.writeByteArray(mData, 0, mDataLength);
+        for (int i = 0; i < mFrameCount; i++) {
+            dest.writeInt(mOffsets[i]);
+            dest.writeLong(mTimestampsNanos[i]);
+        }
+    }
+
+    public static final Parcelable.Creator<CsiBatch> CREATOR =
+            new Parcelable.Creator<CsiBatch>() {
+        @Override
+        public CsiBatch createFromParcel(Parcel in) {
+            return new CsiBatch(in);
+        }
+
+        @Override
+        public CsiBatch[] newArray(int size) {
+            return new CsiBatch[size];
+        }
+    };
+}
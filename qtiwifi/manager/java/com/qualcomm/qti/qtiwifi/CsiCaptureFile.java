@@ -0,0 +1,88 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi;
+
+/**
+ * Layout of CSI capture files written by {@link CsiCaptureWriter}.
+ *
+ * A capture is a {@link #HEADER_SIZE} byte file header followed by records, one per frame,
+ * back to back in arrival order. All values are little endian.
+ *
+ * File header:
+ * <pre>
+ *   0  int   magic, {@link #MAGIC}
+ *   4  short format version, {@link #VERSION}
+ *   6  short flags, {@link #FLAG_ENCODED}
+ *   8  long  capture start, wall clock milliseconds
+ *  16  long  capture start, SystemClock.elapsedRealtimeNanos()
+ *  24  long  reserved
+ * </pre>
+ *
+ * Record:
+ * <pre>
+ *   0  int   payload length, greater than 0
+ *   4  int   reserved
+ *   8  long  HAL receipt time, SystemClock.elapsedRealtimeNanos()
+ *  16  long  peer MAC address in the low 48 bits, first octet most significant, 0 if the
+ *            frame has no valid CFR header
+ *  24  ...   payload, the CFR frame or, with {@link #FLAG_ENCODED}, its {@link CsiCodec}
+ *            encoding
+ * </pre>
+ *
+ * A payload length of 0 or a record running past the end of the file marks the end of a
+ * capture that was not closed properly.
+ */
+public final class CsiCaptureFile {
+    public static final int MAGIC = 0x49534351; // "QCSI"
+    public static final int VERSION = 1;
+
+    public static final int FLAG_ENCODED = 1;
+
+    public static final int HEADER_SIZE = 32;
+    public static final int MAGIC_OFFSET = 0;
+    public static final int VERSION_OFFSET = 4;
+    public static final int FLAGS_OFFSET = 6;
+    public static final int WALL_CLOCK_OFFSET = 8;
+    public static final int ELAPSED_REALTIME_OFFSET = 16;
+
+    public static final int RECORD_HEADER_SIZE = 24;
+    public static final int RECORD_LENGTH_OFFSET = 0;
+    public static final int RECORD_TIMESTAMP_OFFSET = 8;
+    public static final int RECORD_PEER_OFFSET = 16;
+
+    public static final String FILE_EXTENSION = ".qcsi";
+
+    private CsiCaptureFile() {
+    }
+}
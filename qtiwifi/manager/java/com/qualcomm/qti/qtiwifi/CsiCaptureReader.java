@@ -0,0 +1,425 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads captures in the {@link CsiCaptureFile} format through memory mapped windows, so
+ * captures larger than the address space allows to map at once work too.
+ *
+ * A sparse index of the timestamp and offset of every {@link #INDEX_INTERVAL}-th record is
+ * built on open by walking the record headers, and kept next to the capture in a file with
+ * the {@link #INDEX_EXTENSION} suffix so that reopening the capture skips the walk. Seeking
+ * to a time is a binary search over the index followed by at most
+ * {@link #INDEX_INTERVAL} record headers. Record timestamps are expected not to decrease,
+ * which holds for files written by {@link CsiCaptureWriter}.
+ *
+ * Frames are returned as {@link CsiFrame} views of the mapping, nothing is copied. Not thread
+ * safe; use one reader per thread.
+ */
+public class CsiCaptureReader implements Closeable {
+    private static final String TAG = "CsiCaptureReader";
+
+    public static final int INDEX_INTERVAL = 256;
+    public static final String INDEX_EXTENSION = ".idx";
+
+    /* Sidecar index layout: header, then one timestamp and offset pair per entry */
+    private static final int INDEX_MAGIC = 0x58534351; // "QCSX"
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_SIZE = 32;
+    private static final int INDEX_ENTRY_SIZE = 16;
+
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel mChannel;
+    private final int mFlags;
+    private final long mWallClockStartMillis;
+    private final long mElapsedRealtimeStartNanos;
+    private final long mFileLength;
+
+    /* End of the last complete record */
+    private long mEnd;
+    private long mRecordCount;
+    private long[] mIndexTimestamps;
+    private long[] mIndexOffsets;
+
+    private MappedByteBuffer mWindow;
+    private long mWindowStart;
+
+    /**
+     * Opens a capture, loading its index or building and saving it if it is missing or
+     * stale.
+     */
+    public static CsiCaptureReader open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        CsiCaptureReader reader;
+        try {
+            reader = new CsiCaptureReader(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        File indexFile = new File(file.getPath() + INDEX_EXTENSION);
+        if (!reader.loadIndex(indexFile)) {
+            reader.buildIndex();
+            try {
+                reader.saveIndex(indexFile);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not save index " + indexFile + ": " + e);
+            }
+        }
+        return reader;
+    }
+
+    private CsiCaptureReader(FileChannel channel) throws IOException {
+        mChannel = channel;
+        mFileLength = channel.size();
+        if (mFileLength < CsiCaptureFile.HEADER_SIZE) {
+            throw new IOException("Not a csi capture, " + mFileLength + " bytes");
+        }
+        ByteBuffer header = map(0, CsiCaptureFile.HEADER_SIZE);
+        if (header.getInt(CsiCaptureFile.MAGIC_OFFSET) != CsiCaptureFile.MAGIC) {
+            throw new IOException("Not a csi capture, bad magic");
+        }
+        final int version = header.getShort(CsiCaptureFile.VERSION_OFFSET);
+        if (version != CsiCaptureFile.VERSION) {
+            throw new IOException("Unsupported csi capture version " + version);
+        }
+        mFlags = header.getShort(CsiCaptureFile.FLAGS_OFFSET) & 0xffff;
+        mWallClockStartMillis = header.getLong(CsiCaptureFile.WALL_CLOCK_OFFSET);
+        mElapsedRealtimeStartNanos = header.getLong(CsiCaptureFile.ELAPSED_REALTIME_OFFSET);
+    }
+
+    /**
+     * Returns the capture flags, see {@link CsiCaptureFile#FLAG_ENCODED}.
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public long getWallClockStartMillis() {
+        return mWallClockStartMillis;
+    }
+
+    public long getElapsedRealtimeStartNanos() {
+        return mElapsedRealtimeStartNanos;
+    }
+
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Returns the timestamp of the first record, or -1 if the capture is empty.
+     */
+    public long getFirstTimestampNanos() {
+        return (mRecordCount == 0) ? -1 : readRecordTimestamp(CsiCaptureFile.HEADER_SIZE);
+    }
+
+    /**
+     * Returns a cursor before the first record.
+     */
+    public Cursor cursor() {
+        return new Cursor(CsiCaptureFile.HEADER_SIZE);
+    }
+
+    /**
+     * Returns a cursor before the first record received at or after {@code timestampNanos}.
+     * Iterate it until {@link Cursor#getTimestampNanos()} passes the end of the window of
+     * interest.
+     */
+    public Cursor seek(long timestampNanos) {
+        final int entries = mIndexTimestamps.length;
+        // Last index entry strictly before the time, records equal to it may precede it.
+        int low = 0;
+        int high = entries - 1;
+        int start = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (mIndexTimestamps[mid] < timestampNanos) {
+                start = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        long offset = (start < 0) ? CsiCaptureFile.HEADER_SIZE : mIndexOffsets[start];
+        while (mEnd - offset >= CsiCaptureFile.RECORD_HEADER_SIZE
+                && readRecordTimestamp(offset) < timestampNanos) {
+            // Records behind a loaded index were never walked by buildIndex().
+            final int length = readRecordLength(offset);
+            if (length <= 0 || length > mEnd - offset - CsiCaptureFile.RECORD_HEADER_SIZE) {
+                Log.e(TAG, "Corrupt record at " + offset);
+                offset = mEnd;
+                break;
+            }
+            offset += CsiCaptureFile.RECORD_HEADER_SIZE + length;
+        }
+        return new Cursor(offset);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mWindow = null;
+        mChannel.close();
+    }
+
+    /**
+     * Iterates records in file order.
+     */
+    public class Cursor {
+        private final CsiFrame mFrame = new CsiFrame();
+        private long mNext;
+        private long mOffset = -1;
+        private ByteBuffer mBuffer;
+        private int mPosition;
+        private int mLength;
+
+        private Cursor(long offset) {
+            mNext = offset;
+        }
+
+        /**
+         * Moves to the next record.
+         * @return false if there are no more records.
+         */
+        public boolean next() {
+            if (mNext >= mEnd) {
+                mOffset = -1;
+                return false;
+            }
+            mOffset = mNext;
+            mLength = readRecordLength(mOffset);
+            final int size = CsiCaptureFile.RECORD_HEADER_SIZE + mLength;
+            if (mLength <= 0 || size > mEnd - mOffset) {
+                Log.e(TAG, "Corrupt record at " + mOffset);
+                mOffset = -1;
+                mNext = mEnd;
+                return false;
+            }
+            mBuffer = window(mOffset, size);
+            mPosition = (int) (mOffset - mWindowStart);
+            mNext = mOffset + size;
+            return true;
+        }
+
+        /**
+         * Returns the file offset of the current record.
+         */
+        public long getOffset() {
+            return mOffset;
+        }
+
+        public long getTimestampNanos() {
+            return mBuffer.getLong(mPosition + CsiCaptureFile.RECORD_TIMESTAMP_OFFSET);
+        }
+
+        public long getPeerMac() {
+            return mBuffer.getLong(mPosition + CsiCaptureFile.RECORD_PEER_OFFSET);
+        }
+
+        public int getPayloadLength() {
+            return mLength;
+        }
+
+        /**
+         * Returns a view of the current frame, valid until the next call. For captures
+         * flagged {@link CsiCaptureFile#FLAG_ENCODED}, read the payload with
+         * {@link #readPayload} and decode it with {@link CsiCodec.Decoder} instead.
+         */
+        public CsiFrame getFrame() {
+            return mFrame.wrap(mBuffer, mPosition + CsiCaptureFile.RECORD_HEADER_SIZE,
+                    mLength);
+        }
+
+        /**
+         * Copies the payload of the current record into {@code dst}.
+         * @return the number of bytes copied.
+         */
+        public int readPayload(byte[] dst, int dstOffset) {
+            if (dstOffset < 0 || dst.length - dstOffset < mLength) {
+                throw new IndexOutOfBoundsException("need " + mLength + " bytes");
+            }
+            final int start = mPosition + CsiCaptureFile.RECORD_HEADER_SIZE;
+            for (int i = 0; i < mLength; i++) {
+                dst[dstOffset + i] = mBuffer.get(start + i);
+            }
+            return mLength;
+        }
+    }
+
+    private void buildIndex() {
+        long[] timestamps = new long[16];
+        long[] offsets = new long[16];
+        int entries = 0;
+        long count = 0;
+        long offset = CsiCaptureFile.HEADER_SIZE;
+        while (mFileLength - offset >= CsiCaptureFile.RECORD_HEADER_SIZE) {
+            final int length = readRecordLength(offset);
+            if (length <= 0
+                    || length > mFileLength - offset - CsiCaptureFile.RECORD_HEADER_SIZE) {
+                break;
+            }
+            if (count % INDEX_INTERVAL == 0) {
+                if (entries == timestamps.length) {
+                    timestamps = Arrays.copyOf(timestamps, entries * 2);
+                    offsets = Arrays.copyOf(offsets, entries * 2);
+                }
+                timestamps[entries] = readRecordTimestamp(offset);
+                offsets[entries] = offset;
+                entries++;
+            }
+            count++;
+            offset += CsiCaptureFile.RECORD_HEADER_SIZE + length;
+        }
+        mIndexTimestamps = Arrays.copyOf(timestamps, entries);
+        mIndexOffsets = Arrays.copyOf(offsets, entries);
+        mRecordCount = count;
+        mEnd = offset;
+    }
+
+    private boolean loadIndex(File indexFile) {
+        if (!indexFile.isFile()) return false;
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(),
+                StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < INDEX_HEADER_SIZE) return false;
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) break;
+            }
+            buffer.flip();
+            if (buffer.remaining() < INDEX_HEADER_SIZE
+                    || buffer.getInt() != INDEX_MAGIC
+                    || buffer.getInt() != INDEX_VERSION
+                    || buffer.getLong() != mFileLength) {
+                return false;
+            }
+            final long end = buffer.getLong();
+            final long count = buffer.getLong();
+            if (end < CsiCaptureFile.HEADER_SIZE || end > mFileLength || count < 0) {
+                return false;
+            }
+            final int entries = (int) ((count + INDEX_INTERVAL - 1) / INDEX_INTERVAL);
+            if (buffer.remaining() != (long) entries * INDEX_ENTRY_SIZE) return false;
+            mIndexTimestamps = new long[entries];
+            mIndexOffsets = new long[entries];
+            for (int i = 0; i < entries; i++) {
+                mIndexTimestamps[i] = buffer.getLong();
+                mIndexOffsets[i] = buffer.getLong();
+                if (mIndexOffsets[i] < CsiCaptureFile.HEADER_SIZE
+                        || mIndexOffsets[i] >= end) {
+                    return false;
+                }
+            }
+            mEnd = end;
+            mRecordCount = count;
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Ignoring index " + indexFile + ": " + e);
+            return false;
+        }
+    }
+
+    private void saveIndex(File indexFile) throws IOException {
+        final int entries = mIndexTimestamps.length;
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_HEADER_SIZE + entries * INDEX_ENTRY_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(INDEX_MAGIC);
+        buffer.putInt(INDEX_VERSION);
+        buffer.putLong(mFileLength);
+        buffer.putLong(mEnd);
+        buffer.putLong(mRecordCount);
+        for (int i = 0; i < entries; i++) {
+            buffer.putLong(mIndexTimestamps[i]);
+            buffer.putLong(mIndexOffsets[i]);
+        }
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private int readRecordLength(long offset) {
+        ByteBuffer window = window(offset, CsiCaptureFile.RECORD_HEADER_SIZE);
+        return window.getInt((int) (offset - mWindowStart)
+                + CsiCaptureFile.RECORD_LENGTH_OFFSET);
+    }
+
+    private long readRecordTimestamp(long offset) {
+        ByteBuffer window = window(offset, CsiCaptureFile.RECORD_HEADER_SIZE);
+        return window.getLong((int) (offset - mWindowStart)
+                + CsiCaptureFile.RECORD_TIMESTAMP_OFFSET);
+    }
+
+    /**
+     * Returns a mapping covering {@code size} bytes at {@code offset}, moving the window if
+     * needed. Buffers handed out earlier stay valid.
+     */
+    private ByteBuffer window(long offset, int size) {
+        if (mWindow == null || offset < mWindowStart
+                || offset + size > mWindowStart + mWindow.capacity()) {
+            final long length = Math.min(Math.max(WINDOW_SIZE, size), mFileLength - offset);
+            try {
+                mWindow = map(offset, length);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to map csi capture", e);
+            }
+            mWindowStart = offset;
+        }
+        return mWindow;
+    }
+
+    private MappedByteBuffer map(long offset, long length) throws IOException {
+        MappedByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+}
@@ -0,0 +1,181 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi;
+
+import android.os.SystemClock;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends frames to a capture file in the {@link CsiCaptureFile} format.
+ *
+ * The file is written through memory mapped chunks, so appending a record is a memory copy
+ * and makes no system call, except when the next chunk is mapped, which also extends the
+ * file. The kernel writes the pages back in the background, though touching a fresh page
+ * faults and may wait for writeback under memory pressure. Not thread safe.
+ */
+public class CsiCaptureWriter implements Closeable {
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final FileChannel mChannel;
+    private final int mChunkSize;
+    private final boolean mEncoded;
+    private final CsiFrame mFrame = new CsiFrame();
+    private MappedByteBuffer mChunk;
+    private long mChunkStart;
+    private long mRecordCount;
+    private boolean mClosed;
+
+    /**
+     * Creates or truncates {@code file} and writes the file header.
+     *
+     * @param flags {@link CsiCaptureFile#FLAG_ENCODED} if the frames written are
+     *        {@link CsiCodec} encoded, 0 otherwise
+     */
+    public static CsiCaptureWriter create(File file, int flags) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            return new CsiCaptureWriter(channel, flags, DEFAULT_CHUNK_SIZE);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts a capture at the beginning of {@code channel}, which must be open for reading
+     * and writing. The writer owns the channel from then on.
+     */
+    public CsiCaptureWriter(FileChannel channel, int flags, int chunkSize) throws IOException {
+        if (chunkSize < CsiCaptureFile.HEADER_SIZE) {
+            throw new IllegalArgumentException("chunkSize too small: " + chunkSize);
+        }
+        mChannel = channel;
+        mChunkSize = chunkSize;
+        mEncoded = (flags & CsiCaptureFile.FLAG_ENCODED) != 0;
+        map(0, chunkSize);
+        mChunk.putInt(CsiCaptureFile.MAGIC);
+        mChunk.putShort((short) CsiCaptureFile.VERSION);
+        mChunk.putShort((short) flags);
+        mChunk.putLong(System.currentTimeMillis());
+        mChunk.putLong(SystemClock.elapsedRealtimeNanos());
+        mChunk.putLong(0);
+    }
+
+    /**
+     * Appends a frame received at {@code timestampNanos}, SystemClock.elapsedRealtimeNanos().
+     */
+    public void write(byte[] frame, long timestampNanos) throws IOException {
+        write(frame, 0, frame.length, timestampNanos);
+    }
+
+    /**
+     * Appends {@code length} bytes of {@code frame} starting at {@code offset}. The peer is
+     * taken from the frame header.
+     *
+     * @throws IllegalStateException if the capture holds encoded frames, which have no
+     *         readable header; use {@link #write(byte[], int, int, long, long)} for those.
+     */
+    public void write(byte[] frame, int offset, int length, long timestampNanos)
+            throws IOException {
+        if (mEncoded) {
+            throw new IllegalStateException("Encoded frames need the peer MAC");
+        }
+        mFrame.wrap(frame, offset, length);
+        write(frame, offset, length, timestampNanos, mFrame.isValid() ? mFrame.getPeerMac() : 0);
+    }
+
+    /**
+     * Appends {@code length} bytes of {@code frame} starting at {@code offset}.
+     *
+     * @param peerMac peer of the frame, 0 if unknown
+     */
+    public void write(byte[] frame, int offset, int length, long timestampNanos, long peerMac)
+            throws IOException {
+        if (mClosed) throw new IOException("Capture is closed");
+        if (length <= 0) {
+            throw new IllegalArgumentException("Frames must not be empty");
+        }
+        final int recordSize = CsiCaptureFile.RECORD_HEADER_SIZE + length;
+        if (mChunk.remaining() < recordSize) {
+            map(mChunkStart + mChunk.position(), Math.max(mChunkSize, recordSize));
+        }
+        mChunk.putInt(length);
+        mChunk.putInt(0);
+        mChunk.putLong(timestampNanos);
+        mChunk.putLong(peerMac);
+        mChunk.put(frame, offset, length);
+        mRecordCount++;
+    }
+
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Returns the size of the capture so far, file header included.
+     */
+    public long getLength() {
+        return mChunkStart + mChunk.position();
+    }
+
+    /**
+     * Cuts the file back to the data written and closes it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        try {
+            mChannel.truncate(getLength());
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    private void map(long position, int size) throws IOException {
+        // Mapping past the end grows the file; the unused tail is cut off by close().
+        mChunk = mChannel.map(FileChannel.MapMode.READ_WRITE, position, size);
+        mChunk.order(ByteOrder.LITTLE_ENDIAN);
+        mChunkStart = position;
+    }
+}
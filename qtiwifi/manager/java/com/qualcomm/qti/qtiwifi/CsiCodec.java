@@ -0,0 +1,371 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi;
+
+/**
+ * Compact encoding of CFR frames for delivery and storage.
+ *
+ * The 16 bit I/Q samples are quantized to a configurable bit depth, delta coded against
+ * the previous frame of the same peer and written as zigzag variable length integers, so
+ * that the small frame to frame changes of a static channel take a byte or less per sample.
+ * Every {@code keyframeInterval}-th frame of a peer, and any frame whose shape differs from
+ * the previous one, is coded without reference so that a decoder which missed frames
+ * recovers. All values are little endian.
+ *
+ * Encoded frame:
+ * <pre>
+ *   0  byte  codec version, {@link #VERSION}
+ *   1  byte  flags, {@link #FLAG_KEYFRAME}, {@link #FLAG_RAW}
+ *   2  byte  quantization shift, 16 minus the bit depth
+ *   3  byte  reserved
+ *   4  int   per peer frame sequence number
+ *   8  int   length of the decoded frame
+ *  12  ...   CFR header as is, then one varint per 16 bit sample and any odd trailing
+ *            payload byte as is. Frames too short for a CFR header are stored as is and
+ *            flagged {@link #FLAG_RAW}.
+ * </pre>
+ *
+ * Decoded samples are the centers of their quantization steps, so the codec is lossless at
+ * 16 bits and loses at most half a step otherwise. Encoders and decoders keep state for up
+ * to {@link #MAX_PEERS} peers and are not thread safe.
+ */
+public final class CsiCodec {
+    public static final int VERSION = 1;
+
+    public static final int PREFIX_SIZE = 12;
+    public static final int VERSION_OFFSET = 0;
+    public static final int FLAGS_OFFSET = 1;
+    public static final int SHIFT_OFFSET = 2;
+    public static final int SEQUENCE_OFFSET = 4;
+    public static final int DECODED_LENGTH_OFFSET = 8;
+
+    public static final int FLAG_KEYFRAME = 1;
+    public static final int FLAG_RAW = 2;
+
+    public static final int MIN_BIT_DEPTH = 4;
+    public static final int MAX_BIT_DEPTH = 16;
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 32;
+    public static final int MAX_PEERS = 16;
+
+    private CsiCodec() {
+    }
+
+    /**
+     * Returns an upper bound for the encoded size of a frame of {@code length} bytes.
+     */
+    public static int maxEncodedLength(int length) {
+        // A 16 bit sample takes at most three varint bytes.
+        return PREFIX_SIZE + length + (length >> 1) + 1;
+    }
+
+    /**
+     * Returns the length of the frame an encoded frame decodes to.
+     */
+    public static int getDecodedLength(byte[] src, int offset) {
+        return readInt(src, offset + DECODED_LENGTH_OFFSET);
+    }
+
+    /**
+     * Encodes frames. Frames of one peer must be decoded in the order they were encoded.
+     */
+    public static final class Encoder {
+        private final int mShift;
+        private final int mKeyframeInterval;
+        private final PeerTable mPeers = new PeerTable();
+
+        /**
+         * @param bitDepth bits kept of each sample, {@link #MIN_BIT_DEPTH} to
+         *        {@link #MAX_BIT_DEPTH}
+         * @param keyframeInterval a peer's frames are coded without reference at least this
+         *        often, 1 disables delta coding
+         */
+        public Encoder(int bitDepth, int keyframeInterval) {
+            if (bitDepth < MIN_BIT_DEPTH || bitDepth > MAX_BIT_DEPTH) {
+                throw new IllegalArgumentException("Invalid bit depth " + bitDepth);
+            }
+            if (keyframeInterval <= 0) {
+                throw new IllegalArgumentException("keyframeInterval must be positive");
+            }
+            mShift = MAX_BIT_DEPTH - bitDepth;
+            mKeyframeInterval = keyframeInterval;
+        }
+
+        /**
+         * Encodes a frame into {@code dst}, which must have room for
+         * {@link #maxEncodedLength} bytes.
+         *
+         * @return the number of bytes written.
+         */
+        public int encode(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+            if (dstOffset < 0 || dst.length - dstOffset < maxEncodedLength(length)) {
+                throw new IndexOutOfBoundsException("dst too small for " + length + " bytes");
+            }
+            dst[dstOffset + VERSION_OFFSET] = VERSION;
+            dst[dstOffset + SHIFT_OFFSET] = (byte) mShift;
+            dst[dstOffset + SHIFT_OFFSET + 1] = 0;
+            writeInt(dst, dstOffset + DECODED_LENGTH_OFFSET, length);
+            if (length < CsiFrame.HEADER_SIZE) {
+                dst[dstOffset + FLAGS_OFFSET] = FLAG_RAW;
+                writeInt(dst, dstOffset + SEQUENCE_OFFSET, 0);
+                System.arraycopy(src, srcOffset, dst, dstOffset + PREFIX_SIZE, length);
+                return PREFIX_SIZE + length;
+            }
+
+            final int samples = (length - CsiFrame.HEADER_SIZE) >> 1;
+            final PeerState peer = mPeers.obtain(readMac(src, srcOffset));
+            final boolean keyframe = !peer.mPrimed || peer.mSampleCount != samples
+                    || peer.mFramesSinceKeyframe >= mKeyframeInterval - 1;
+            peer.mFramesSinceKeyframe = keyframe ? 0 : peer.mFramesSinceKeyframe + 1;
+            dst[dstOffset + FLAGS_OFFSET] = keyframe ? (byte) FLAG_KEYFRAME : 0;
+            writeInt(dst, dstOffset + SEQUENCE_OFFSET, peer.mSequence++);
+            System.arraycopy(src, srcOffset, dst, dstOffset + PREFIX_SIZE,
+                    CsiFrame.HEADER_SIZE);
+
+            final int[] previous = peer.prepare(samples);
+            final int shift = mShift;
+            int s = srcOffset + CsiFrame.HEADER_SIZE;
+            int d = dstOffset + PREFIX_SIZE + CsiFrame.HEADER_SIZE;
+            for (int i = 0; i < samples; i++, s += 2) {
+                final int q = ((short) ((src[s] & 0xff) | (src[s + 1] << 8))) >> shift;
+                final int v = keyframe ? q : q - previous[i];
+                previous[i] = q;
+                int z = (v << 1) ^ (v >> 31);
+                while ((z & ~0x7f) != 0) {
+                    dst[d++] = (byte) ((z & 0x7f) | 0x80);
+                    z >>>= 7;
+                }
+                dst[d++] = (byte) z;
+            }
+            if (((length - CsiFrame.HEADER_SIZE) & 1) != 0) {
+                dst[d++] = src[s];
+            }
+            peer.mPrimed = true;
+            return d - dstOffset;
+        }
+
+        /**
+         * Forgets all peers, so the next frame of each is a keyframe. Used when encoded
+         * frames could not be delivered.
+         */
+        public void reset() {
+            mPeers.clear();
+        }
+    }
+
+    /**
+     * Decodes frames produced by an {@link Encoder}.
+     */
+    public static final class Decoder {
+        private final PeerTable mPeers = new PeerTable();
+
+        /**
+         * Decodes a frame into {@code dst}, which must have room for
+         * {@link #getDecodedLength} bytes.
+         *
+         * @return the decoded length, or -1 if the frame is malformed or refers to a frame
+         *         that was not decoded. Frames of that peer are then skipped until its next
+         *         keyframe.
+         */
+        public int decode(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+            if (length < PREFIX_SIZE || src[srcOffset + VERSION_OFFSET] != VERSION) {
+                return -1;
+            }
+            final int flags = src[srcOffset + FLAGS_OFFSET];
+            final int shift = src[srcOffset + SHIFT_OFFSET];
+            final int sequence = readInt(src, srcOffset + SEQUENCE_OFFSET);
+            final int decodedLength = readInt(src, srcOffset + DECODED_LENGTH_OFFSET);
+            if (shift < 0 || shift > MAX_BIT_DEPTH - MIN_BIT_DEPTH || decodedLength < 0) {
+                return -1;
+            }
+            if (dstOffset < 0 || dst.length - dstOffset < decodedLength) {
+                throw new IndexOutOfBoundsException("dst too small for " + decodedLength
+                        + " bytes");
+            }
+            if ((flags & FLAG_RAW) != 0) {
+                if (length - PREFIX_SIZE < decodedLength) return -1;
+                System.arraycopy(src, srcOffset + PREFIX_SIZE, dst, dstOffset, decodedLength);
+                return decodedLength;
+            }
+            if (decodedLength < CsiFrame.HEADER_SIZE
+                    || length < PREFIX_SIZE + CsiFrame.HEADER_SIZE) {
+                return -1;
+            }
+
+            final int samples = (decodedLength - CsiFrame.HEADER_SIZE) >> 1;
+            final long mac = readMac(src, srcOffset + PREFIX_SIZE);
+            final boolean keyframe = (flags & FLAG_KEYFRAME) != 0;
+            final PeerState peer = keyframe ? mPeers.obtain(mac) : mPeers.find(mac);
+            if (peer == null) return -1;
+            if (!keyframe && (!peer.mPrimed || peer.mSampleCount != samples
+                    || peer.mSequence != sequence)) {
+                peer.mPrimed = false;
+                return -1;
+            }
+            // Set again below once the frame decoded completely.
+            peer.mPrimed = false;
+            System.arraycopy(src, srcOffset + PREFIX_SIZE, dst, dstOffset, CsiFrame.HEADER_SIZE);
+
+            final int[] previous = peer.prepare(samples);
+            final int half = (shift == 0) ? 0 : 1 << (shift - 1);
+            final int end = srcOffset + length;
+            int s = srcOffset + PREFIX_SIZE + CsiFrame.HEADER_SIZE;
+            int d = dstOffset + CsiFrame.HEADER_SIZE;
+            for (int i = 0; i < samples; i++, d += 2) {
+                int z = 0;
+                int bits = 0;
+                byte b;
+                do {
+                    if (s >= end || bits > 14) return -1;
+                    b = src[s++];
+                    z |= (b & 0x7f) << bits;
+                    bits += 7;
+                } while (b < 0);
+                final int v = (z >>> 1) ^ -(z & 1);
+                final int q = keyframe ? v : previous[i] + v;
+                previous[i] = q;
+                final int sample = (q << shift) + half;
+                dst[d] = (byte) sample;
+                dst[d + 1] = (byte) (sample >> 8);
+            }
+            if (((decodedLength - CsiFrame.HEADER_SIZE) & 1) != 0) {
+                if (s >= end) return -1;
+                dst[d] = src[s];
+            }
+            peer.mSequence = sequence + 1;
+            peer.mPrimed = true;
+            return decodedLength;
+        }
+
+        /**
+         * Forgets all peers, so frames are skipped until the next keyframe of each.
+         */
+        public void reset() {
+            mPeers.clear();
+        }
+    }
+
+    private static final class PeerState {
+        private static final int[] EMPTY = new int[0];
+
+        long mMac;
+        boolean mInUse;
+        boolean mPrimed;
+        int mSequence;
+        int mFramesSinceKeyframe;
+        int mSampleCount;
+        int[] mValues = EMPTY;
+        long mLastUse;
+
+        int[] prepare(int samples) {
+            if (mValues.length < samples) {
+                mValues = new int[samples];
+            }
+            mSampleCount = samples;
+            return mValues;
+        }
+    }
+
+    /**
+     * Small fixed set of peers, replacing the least recently used one when full.
+     */
+    private static final class PeerTable {
+        private final PeerState[] mStates = new PeerState[MAX_PEERS];
+        private long mClock;
+
+        PeerTable() {
+            for (int i = 0; i < mStates.length; i++) {
+                mStates[i] = new PeerState();
+            }
+        }
+
+        PeerState find(long mac) {
+            for (PeerState state : mStates) {
+                if (state.mInUse && state.mMac == mac) {
+                    state.mLastUse = ++mClock;
+                    return state;
+                }
+            }
+            return null;
+        }
+
+        PeerState obtain(long mac) {
+            PeerState state = find(mac);
+            if (state != null) return state;
+            state = mStates[0];
+            for (PeerState candidate : mStates) {
+                if (!candidate.mInUse) {
+                    state = candidate;
+                    break;
+                }
+                if (candidate.mLastUse < state.mLastUse) {
+                    state = candidate;
+                }
+            }
+            state.mInUse = true;
+            state.mMac = mac;
+            state.mPrimed = false;
+            state.mSequence = 0;
+            state.mFramesSinceKeyframe = 0;
+            state.mLastUse = ++mClock;
+            return state;
+        }
+
+        void clear() {
+            for (PeerState state : mStates) {
+                state.mInUse = false;
+                state.mPrimed = false;
+            }
+        }
+    }
+
+    private static long readMac(byte[] frame, int frameOffset) {
+        long mac = 0;
+        for (int i = 0; i < 6; i++) {
+            mac = (mac << 8) | (frame[frameOffset + CsiFrame.OFFSET_PEER_MAC + i] & 0xff);
+        }
+        return mac;
+    }
+
+    private static int readInt(byte[] src, int offset) {
+        return (src[offset] & 0xff) | (src[offset + 1] & 0xff) << 8
+                | (src[offset + 2] & 0xff) << 16 | src[offset + 3] << 24;
+    }
+
+    private static void writeInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) value;
+        dst[offset + 1] = (byte) (value >> 8);
+        dst[offset + 2] = (byte) (value >> 16);
+        dst[offset + 3] = (byte) (value >> 24);
+    }
+}
@@ -0,0 +1,383 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Signals derived by the service from the CSI of one peer over one update window, delivered
+ * to subscriptions created with {@link CsiSubscriptionConfig.Builder#setFeatures} instead of
+ * the raw frames.
+ *
+ * The service computes the features once per peer every {@link #UPDATE_INTERVAL_MILLIS} of
+ * frames and shares them between all subscribers. Features a subscription did not ask for
+ * are left unset.
+ */
+public final class CsiFeatures implements Parcelable {
+    /** Per-subcarrier variance of the amplitude, averaged over the chains */
+    public static final int FEATURE_AMPLITUDE_VARIANCE = 1 << 0;
+    /** Scale free amount of amplitude fluctuation, 0 for a static channel */
+    public static final int FEATURE_MOTION_SCORE = 1 << 1;
+    /** Share of the amplitude fluctuation in the breathing band, 0.1 to 0.5 Hz */
+    public static final int FEATURE_BREATHING_ENERGY = 1 << 2;
+    /**
+     * Per-subcarrier mean, variance, minimum and maximum of the amplitude over the last
+     * frames, see {@link CsiSubscriptionConfig.Builder#setWindowStatsFrames}
+     */
+    public static final int FEATURE_WINDOW_STATS = 1 << 3;
+    /**
+     * Doppler spectrogram tile of the amplitude over the last {@link #SPECTROGRAM_FRAMES}
+     * frames, see {@link #getSpectrogram}
+     */
+    public static final int FEATURE_DOPPLER_SPECTROGRAM = 1 << 4;
+    public static final int ALL_FEATURES = FEATURE_AMPLITUDE_VARIANCE | FEATURE_MOTION_SCORE
+            | FEATURE_BREATHING_ENERGY | FEATURE_WINDOW_STATS | FEATURE_DOPPLER_SPECTROGRAM;
+
+    /** Frames transformed for each spectrogram tile */
+    public static final int SPECTROGRAM_FRAMES = 64;
+    /** Subcarriers averaged into one row of a spectrogram tile */
+    public static final int SPECTROGRAM_GROUP_SUBCARRIERS = 16;
+    /** Frequency bins in one row of a spectrogram tile */
+    public static final int SPECTROGRAM_BINS = SPECTROGRAM_FRAMES / 2;
+
+    /** Length of the window each update is computed over */
+    public static final int UPDATE_INTERVAL_MILLIS = 100;
+
+    private static final float[] NO_VALUES = new float[0];
+    private static final byte[] NO_TILE = new byte[0];
+
+    private int mFeatures;
+    private long mPeerMac;
+    private long mTimestampNanos;
+    private int mFrameCount;
+    private float[] mAmplitudeVariance = NO_VALUES;
+    private float mMotionScore;
+    private float mBreathingEnergy = Float.NaN;
+    private int mWindowFrames;
+    private float[] mWindowMean = NO_VALUES;
+    private float[] mWindowVariance = NO_VALUES;
+    private float[] mWindowMin = NO_VALUES;
+    private float[] mWindowMax = NO_VALUES;
+    private byte[] mSpectrogram = NO_TILE;
+    private float mSpectrogramPeakDb;
+    private float mSpectrogramBinHz;
+
+    public CsiFeatures(long peerMac, long timestampNanos, int frameCount) {
+        mPeerMac = peerMac;
+        mTimestampNanos = timestampNanos;
+        mFrameCount = frameCount;
+    }
+
+    private CsiFeatures(Parcel in) {
+        mFeatures = in.readInt();
+        mPeerMac = in.readLong();
+        mTimestampNanos = in.readLong();
+        mFrameCount = in.readInt();
+        mAmplitudeVariance = readFloats(in);
+        mMotionScore = in.readFloat();
+        mBreathingEnergy = in.readFloat();
+        mWindowFrames = in.readInt();
+        mWindowMean = readFloats(in);
+        mWindowVariance = readFloats(in);
+        mWindowMin = readFloats(in);
+        mWindowMax = readFloats(in);
+        byte[] spectrogram = in.createByteArray();
+        mSpectrogram = (spectrogram != null) ? spectrogram : NO_TILE;
+        mSpectrogramPeakDb = in.readFloat();
+        mSpectrogramBinHz = in.readFloat();
+    }
+
+    private static float[] readFloats(Parcel in) {
+        float[] values = in.createFloatArray();
+        return (values != null) ? values : NO_VALUES;
+    }
+
+    /**
+     * Returns the FEATURE_ bits that are set.
+     */
+    public int getFeatures() {
+        return mFeatures;
+    }
+
+    public boolean hasFeature(int feature) {
+        return (mFeatures & feature) == feature;
+    }
+
+    /**
+     * Returns the peer the features were computed for, packed as by
+     * {@link CsiFrame#getPeerMac()}.
+     */
+    public long getPeerMac() {
+        return mPeerMac;
+    }
+
+    /**
+     * Returns when the last frame of the window was received from the HAL, in
+     * {@link android.os.SystemClock#elapsedRealtimeNanos()} time base.
+     */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /**
+     * Returns the number of frames of the window.
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Returns the amplitude variance per subcarrier, empty unless
+     * {@link #FEATURE_AMPLITUDE_VARIANCE} is set. The array must not be modified.
+     */
+    public float[] getAmplitudeVariance() {
+        return mAmplitudeVariance;
+    }
+
+    public void setAmplitudeVariance(float[] variance) {
+        mAmplitudeVariance = variance;
+        mFeatures |= FEATURE_AMPLITUDE_VARIANCE;
+    }
+
+    /**
+     * Returns the mean over the subcarriers of the amplitude variance relative to the squared
+     * mean amplitude; 0 unless {@link #FEATURE_MOTION_SCORE} is set.
+     */
+    public float getMotionScore() {
+        return mMotionScore;
+    }
+
+    public void setMotionScore(float score) {
+        mMotionScore = score;
+        mFeatures |= FEATURE_MOTION_SCORE;
+    }
+
+    /**
+     * Returns the share, between 0 and 1, of the mean amplitude's fluctuation over the last
+     * windows that falls in the breathing band. NaN until enough windows were seen or unless
+     * {@link #FEATURE_BREATHING_ENERGY} is set.
+     */
+    public float getBreathingEnergy() {
+        return mBreathingEnergy;
+    }
+
+    public void setBreathingEnergy(float energy) {
+        mBreathingEnergy = energy;
+        mFeatures |= FEATURE_BREATHING_ENERGY;
+    }
+
+    /**
+     * Returns the number of frames the window statistics cover, 0 unless
+     * {@link #FEATURE_WINDOW_STATS} is set. Fewer than requested while a peer's first frames
+     * arrive.
+     */
+    public int getWindowFrames() {
+        return mWindowFrames;
+    }
+
+    /**
+     * Returns the mean amplitude per subcarrier over the window, empty unless
+     * {@link #FEATURE_WINDOW_STATS} is set. This and the other window arrays must not be
+     * modified.
+     */
+    public float[] getWindowMean() {
+        return mWindowMean;
+    }
+
+    /**
+     * Returns the sample variance of the amplitude per subcarrier over the window.
+     */
+    public float[] getWindowVariance() {
+        return mWindowVariance;
+    }
+
+    public float[] getWindowMin() {
+        return mWindowMin;
+    }
+
+    public float[] getWindowMax() {
+        return mWindowMax;
+    }
+
+    /**
+     * Sets the window statistics from the current state of {@code stats}.
+     */
+    public void setWindowStats(CsiWindowStats stats) {
+        final int width = stats.getWidth();
+        mWindowFrames = stats.getCount();
+        mWindowMean = new float[width];
+        mWindowVariance = new float[width];
+        mWindowMin = new float[width];
+        mWindowMax = new float[width];
+        stats.getMean(mWindowMean);
+        stats.getVariance(mWindowVariance);
+        stats.getMin(mWindowMin);
+        stats.getMax(mWindowMax);
+        mFeatures |= FEATURE_WINDOW_STATS;
+    }
+
+    /**
+     * Returns the Doppler spectrogram tile, empty unless
+     * {@link #FEATURE_DOPPLER_SPECTROGRAM} is set. The tile has one row of
+     * {@link #SPECTROGRAM_BINS} levels per group of {@link #SPECTROGRAM_GROUP_SUBCARRIERS}
+     * subcarriers; level {@code v} of bin {@code k} is the power at {@code (k + 1)} times
+     * {@link #getSpectrogramBinHz()}, {@code (255 - v) / 2} dB below
+     * {@link #getSpectrogramPeakDb()}. The array must not be modified.
+     */
+    public byte[] getSpectrogram() {
+        return mSpectrogram;
+    }
+
+    public int getSpectrogramGroupCount() {
+        return mSpectrogram.length / SPECTROGRAM_BINS;
+    }
+
+    /**
+     * Returns the power of the strongest bin of the tile, in dB of squared amplitude units.
+     */
+    public float getSpectrogramPeakDb() {
+        return mSpectrogramPeakDb;
+    }
+
+    /**
+     * Returns the spacing of the tile's bins, derived from the frame rate.
+     */
+    public float getSpectrogramBinHz() {
+        return mSpectrogramBinHz;
+    }
+
+    public void setSpectrogram(byte[] tile, float peakDb, float binHz) {
+        mSpectrogram = tile;
+        mSpectrogramPeakDb = peakDb;
+        mSpectrogramBinHz = binHz;
+        mFeatures |= FEATURE_DOPPLER_SPECTROGRAM;
+    }
+
+    /**
+     * Returns a copy of these features with the window statistics of {@code stats} added.
+     * Other arrays are shared with this object.
+     */
+    public CsiFeatures withWindowStats(CsiWindowStats stats) {
+        CsiFeatures copy = copy(mFeatures & ~FEATURE_WINDOW_STATS);
+        copy.setWindowStats(stats);
+        return copy;
+    }
+
+    /**
+     * Returns these features restricted to the given FEATURE_ bits, this object itself if
+     * nothing needs to be removed. Arrays are shared with this object.
+     */
+    public CsiFeatures select(int features) {
+        if ((mFeatures & ~features) == 0) return this;
+        return copy(mFeatures & features);
+    }
+
+    private CsiFeatures copy(int kept) {
+        CsiFeatures copy = new CsiFeatures(mPeerMac, mTimestampNanos, mFrameCount);
+        if ((kept & FEATURE_AMPLITUDE_VARIANCE) != 0) {
+            copy.setAmplitudeVariance(mAmplitudeVariance);
+        }
+        if ((kept & FEATURE_MOTION_SCORE) != 0) {
+            copy.setMotionScore(mMotionScore);
+        }
+        if ((kept & FEATURE_BREATHING_ENERGY) != 0) {
+            copy.setBreathingEnergy(mBreathingEnergy);
+        }
+        if ((kept & FEATURE_WINDOW_STATS) != 0) {
+            copy.mWindowFrames = mWindowFrames;
+            copy.mWindowMean = mWindowMean;
+            copy.mWindowVariance = mWindowVariance;
+            copy.mWindowMin = mWindowMin;
+            copy.mWindowMax = mWindowMax;
+            copy.mFeatures |= FEATURE_WINDOW_STATS;
+        }
+        if ((kept & FEATURE_DOPPLER_SPECTROGRAM) != 0) {
+            copy.setSpectrogram(mSpectrogram, mSpectrogramPeakDb, mSpectrogramBinHz);
+        }
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return "CsiFeatures{peer=" + CsiFrame.macToString(mPeerMac)
+                + ", frames=" + mFrameCount
+                + (hasFeature(FEATURE_MOTION_SCORE) ? ", motion=" + mMotionScore : "")
+                + (hasFeature(FEATURE_BREATHING_ENERGY) ? ", breathing=" + mBreathingEnergy : "")
+                + (hasFeature(FEATURE_AMPLITUDE_VARIANCE)
+                        ? ", variance[" + mAmplitudeVariance.length + "]" : "")
+                + (hasFeature(FEATURE_WINDOW_STATS) ? ", window=" + mWindowFrames
+                        + "x" + mWindowMean.length : "")
+                + (hasFeature(FEATURE_DOPPLER_SPECTROGRAM) ? ", spectrogram="
+                        + getSpectrogramGroupCount() + "x" + SPECTROGRAM_BINS : "")
+                + "}";
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mFeatures);
+        dest.writeLong(mPeerMac);
+        dest.writeLong(mTimestampNanos);
+        dest.writeInt(mFrameCount);
+        dest.writeFloatArray(mAmplitudeVariance);
+        dest.writeFloat(mMotionScore);
+        dest.writeFloat(mBreathingEnergy);
+        dest.writeInt(mWindowFrames);
+        dest.writeFloatArray(mWindowMean);
+        dest.writeFloatArray(mWindowVariance);
+        dest.writeFloatArray(mWindowMin);
+        dest.writeFloatArray(mWindowMax);
+        dest.writeByteArray(mSpectrogram);
+        dest.writeFloat(mSpectrogramPeakDb);
+        dest.writeFloat(mSpectrogramBinHz);
+    }
+
+    public static final Parcelable.Creator<CsiFeatures> CREATOR =
+            new Parcelable.Creator<CsiFeatures>() {
+        @Override
+        public CsiFeatures createFromParcel(Parcel in) {
+            return new CsiFeatures(in);
+        }
+
+        @Override
+        public CsiFeatures[] newArray(int size) {
+            return new CsiFeatures[size];
+        }
+    };
+}
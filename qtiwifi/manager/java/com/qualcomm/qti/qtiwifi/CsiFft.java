@@ -0,0 +1,130 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi;
+
+import java.util.Arrays;
+
+/**
+ * Precomputed plan for an in place radix-2 complex FFT of one size.
+ *
+ * The twiddle factors, the bit reversal permutation and a Hann window are computed once, so
+ * a plan is built per size and reused for every transform. A plan is immutable and may be
+ * shared between threads; each thread supplies its own data arrays.
+ */
+public final class CsiFft {
+    private final int mSize;
+    /* cos and -sin of 2 pi k / size for k < size / 2 */
+    private final float[] mCos;
+    private final float[] mSin;
+    /* Pairs (i, j), i < j, swapped by the bit reversal permutation */
+    private final int[] mSwaps;
+    private final float[] mWindow;
+
+    /**
+     * @param size a power of two, at least 2
+     */
+    public CsiFft(int size) {
+        if (size < 2 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        }
+        mSize = size;
+        mCos = new float[size / 2];
+        mSin = new float[size / 2];
+        for (int k = 0; k < size / 2; k++) {
+            mCos[k] = (float) Math.cos(2 * Math.PI * k / size);
+            mSin[k] = (float) -Math.sin(2 * Math.PI * k / size);
+        }
+        final int bits = Integer.numberOfTrailingZeros(size);
+        int[] swaps = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            final int j = Integer.reverse(i) >>> (32 - bits);
+            if (i < j) {
+                swaps[count++] = i;
+                swaps[count++] = j;
+            }
+        }
+        mSwaps = Arrays.copyOf(swaps, count);
+        mWindow = new float[size];
+        for (int i = 0; i < size; i++) {
+            mWindow[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / size));
+        }
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Returns the Hann window of the plan's size. The array must not be modified.
+     */
+    public float[] getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Replaces {@code re} and {@code im}, at least {@link #getSize()} long, with their forward
+     * transform. Allocates nothing.
+     */
+    public void transform(float[] re, float[] im) {
+        final int n = mSize;
+        for (int k = 0; k < mSwaps.length; k += 2) {
+            final int i = mSwaps[k];
+            final int j = mSwaps[k + 1];
+            float t = re[i];
+            re[i] = re[j];
+            re[j] = t;
+            t = im[i];
+            im[i] = im[j];
+            im[j] = t;
+        }
+        for (int half = 1; half < n; half <<= 1) {
+            final int step = n / (2 * half);
+            for (int start = 0; start < n; start += 2 * half) {
+                for (int k = 0; k < half; k++) {
+                    final float wr = mCos[k * step];
+                    final float wi = mSin[k * step];
+                    final int a = start + k;
+                    final int b = a + half;
+                    final float xr = re[b] * wr - im[b] * wi;
+                    final float xi = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+}
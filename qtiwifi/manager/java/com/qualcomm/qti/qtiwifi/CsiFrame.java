@@ -0,0 +1,406 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Zero-copy view of one CFR frame as delivered by {@link QtiWifiManager.CsiCallback}.
+ *
+ * A frame is a fixed size header followed by the I/Q payload. All fields are little endian:
+ * <pre>
+ *   0  u32  start magic, {@link #MAGIC}
+ *   4  u32  vendor id
+ *   8  u8   metadata version
+ *   9  u8   data version
+ *  10  u8   chip type
+ *  11  u8   platform type
+ *  12  u32  reserved
+ *  16  u8[6] peer MAC address
+ *  22  u8   capture status
+ *  23  u8   capture bandwidth, one of the BANDWIDTH_ constants
+ *  24  u8   channel bandwidth, one of the BANDWIDTH_ constants
+ *  25  u8   phy mode
+ *  26  u16  primary 20 MHz channel frequency
+ *  28  u16  center frequency 1
+ *  30  u16  center frequency 2
+ *  32  u8   capture mode
+ *  33  u8   capture type
+ *  34  u8   number of spatial streams
+ *  35  u8   number of receive chains
+ *  36  u32  capture timestamp, firmware time base
+ *  40  u32  payload length in bytes
+ *  44  ...  payload
+ * </pre>
+ * The payload holds, for each receive chain in turn, one signed 16 bit I and Q pair per
+ * subcarrier.
+ *
+ * Nothing is decoded when a buffer is wrapped. Header fields are decoded together on first
+ * access and cached until the view is re-wrapped, so filtering on header fields never reads
+ * the payload; I/Q samples are read straight from the buffer on each access. Views can be
+ * reused with {@link #wrap} to avoid allocating one per frame.
+ */
+public final class CsiFrame {
+    public static final int MAGIC = 0xDEADBEAF;
+    public static final int HEADER_SIZE = 44;
+    /* One I and one Q sample of 16 bits each */
+    public static final int BYTES_PER_SUBCARRIER = 4;
+
+    public static final int BANDWIDTH_20MHZ = 0;
+    public static final int BANDWIDTH_40MHZ = 1;
+    public static final int BANDWIDTH_80MHZ = 2;
+    public static final int BANDWIDTH_160MHZ = 3;
+
+    public static final int OFFSET_MAGIC = 0;
+    public static final int OFFSET_VENDOR_ID = 4;
+    public static final int OFFSET_METADATA_VERSION = 8;
+    public static final int OFFSET_PEER_MAC = 16;
+    public static final int OFFSET_STATUS = 22;
+    public static final int OFFSET_CAPTURE_BW = 23;
+    public static final int OFFSET_CHANNEL_BW = 24;
+    public static final int OFFSET_PHY_MODE = 25;
+    public static final int OFFSET_PRIMARY_FREQ = 26;
+    public static final int OFFSET_CENTER_FREQ1 = 28;
+    public static final int OFFSET_CENTER_FREQ2 = 30;
+    public static final int OFFSET_CAPTURE_TYPE = 33;
+    public static final int OFFSET_STS_COUNT = 34;
+    public static final int OFFSET_CHAIN_COUNT = 35;
+    public static final int OFFSET_TIMESTAMP = 36;
+    public static final int OFFSET_PAYLOAD_LENGTH = 40;
+
+    private byte[] mArray;
+    private ByteBuffer mBuffer;
+    private int mOffset;
+    private int mLength;
+
+    /* Cached header, valid when mHeaderDecoded is set */
+    private boolean mHeaderDecoded;
+    private boolean mValid;
+    private long mPeerMac;
+    private int mCaptureBandwidth;
+    private int mChannelBandwidth;
+    private int mPhyMode;
+    private int mPrimaryFrequency;
+    private int mCenterFrequency1;
+    private int mCenterFrequency2;
+    private int mChainCount;
+    private long mTimestamp;
+    private int mPayloadLength;
+    private int mSubcarrierCount;
+
+    public CsiFrame() {
+    }
+
+    public CsiFrame(byte[] data) {
+        wrap(data, 0, data.length);
+    }
+
+    /**
+     * Points this view at a frame stored in an array. Nothing is copied or decoded.
+     */
+    public CsiFrame wrap(byte[] data, int offset, int length) {
+        checkBounds(data.length, offset, length);
+        mArray = data;
+        mBuffer = null;
+        return reset(offset, length);
+    }
+
+    /**
+     * Points this view at a frame stored in a buffer, for example a memory mapped capture.
+     * Only absolute reads are used, the buffer's position and limit are left alone.
+     */
+    public CsiFrame wrap(ByteBuffer buffer, int offset, int length) {
+        checkBounds(buffer.capacity(), offset, length);
+        mArray = null;
+        mBuffer = buffer;
+        return reset(offset, length);
+    }
+
+    private CsiFrame reset(int offset, int length) {
+        mOffset = offset;
+        mLength = length;
+        mHeaderDecoded = false;
+        return this;
+    }
+
+    private static void checkBounds(int capacity, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > capacity - length) {
+            throw new IndexOutOfBoundsException("offset=" + offset + " length=" + length
+                    + " capacity=" + capacity);
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the frame, header included.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Returns true if the frame starts with the CFR magic and its payload fits the buffer.
+     */
+    public boolean isValid() {
+        decodeHeader();
+        return mValid;
+    }
+
+    /**
+     * Peer MAC address packed into the low 48 bits, first octet most significant.
+     */
+    public long getPeerMac() {
+        decodeHeader();
+        return mPeerMac;
+    }
+
+    public int getCaptureBandwidth() {
+        decodeHeader();
+        return mCaptureBandwidth;
+    }
+
+    public int getChannelBandwidth() {
+        decodeHeader();
+        return mChannelBandwidth;
+    }
+
+    /**
+     * Capture bandwidth in MHz.
+     */
+    public int getBandwidthMhz() {
+        decodeHeader();
+        return bandwidthToMhz(mCaptureBandwidth);
+    }
+
+    public int getPhyMode() {
+        decodeHeader();
+        return mPhyMode;
+    }
+
+    /**
+     * Frequency of the primary 20 MHz channel in MHz.
+     */
+    public int getPrimaryFrequency() {
+        decodeHeader();
+        return mPrimaryFrequency;
+    }
+
+    public int getCenterFrequency1() {
+        decodeHeader();
+        return mCenterFrequency1;
+    }
+
+    public int getCenterFrequency2() {
+        decodeHeader();
+        return mCenterFrequency2;
+    }
+
+    public int getChainCount() {
+        decodeHeader();
+        return mChainCount;
+    }
+
+    public int getSubcarrierCount() {
+        decodeHeader();
+        return mSubcarrierCount;
+    }
+
+    /**
+     * Capture timestamp reported by the firmware, as an unsigned 32 bit value.
+     */
+    public long getTimestamp() {
+        decodeHeader();
+        return mTimestamp;
+    }
+
+    public int getPayloadOffset() {
+        return mOffset + HEADER_SIZE;
+    }
+
+    public int getPayloadLength() {
+        decodeHeader();
+        return mPayloadLength;
+    }
+
+    /**
+     * Returns the in-phase sample of a subcarrier on a receive chain.
+     */
+    public short getI(int chain, int subcarrier) {
+        return readShort(sampleOffset(chain, subcarrier));
+    }
+
+    /**
+     * Returns the quadrature sample of a subcarrier on a receive chain.
+     */
+    public short getQ(int chain, int subcarrier) {
+        return readShort(sampleOffset(chain, subcarrier) + 2);
+    }
+
+    /**
+     * Copies all I/Q samples into {@code dst} starting at {@code dstOffset}, interleaved as
+     * I then Q per subcarrier and chain after chain, i.e. the payload order.
+     *
+     * @return the number of shorts written, twice the chain count times the subcarrier count.
+     */
+    public int readSamples(short[] dst, int dstOffset) {
+        decodeHeader();
+        final int count = mChainCount * mSubcarrierCount * 2;
+        if (dstOffset < 0 || count > dst.length - dstOffset) {
+            throw new IndexOutOfBoundsException("need " + count + " shorts at " + dstOffset);
+        }
+        int src = getPayloadOffset();
+        if (mArray != null) {
+            final byte[] array = mArray;
+            for (int i = 0; i < count; i++, src += 2) {
+                dst[dstOffset + i] = (short) ((array[src] & 0xff) | (array[src + 1] << 8));
+            }
+        } else {
+            for (int i = 0; i < count; i++, src += 2) {
+                dst[dstOffset + i] = readShort(src);
+            }
+        }
+        return count;
+    }
+
+    private int sampleOffset(int chain, int subcarrier) {
+        decodeHeader();
+        if (chain < 0 || chain >= mChainCount || subcarrier < 0
+                || subcarrier >= mSubcarrierCount) {
+            throw new IndexOutOfBoundsException("chain " + chain + ", subcarrier " + subcarrier);
+        }
+        return getPayloadOffset() + (chain * mSubcarrierCount + subcarrier) * BYTES_PER_SUBCARRIER;
+    }
+
+    private void decodeHeader() {
+        if (mHeaderDecoded) return;
+        mHeaderDecoded = true;
+        mValid = mLength >= HEADER_SIZE && readInt(mOffset + OFFSET_MAGIC) == MAGIC;
+        if (!mValid) {
+            mPeerMac = 0;
+            mCaptureBandwidth = mChannelBandwidth = mPhyMode = 0;
+            mPrimaryFrequency = mCenterFrequency1 = mCenterFrequency2 = 0;
+            mChainCount = mPayloadLength = mSubcarrierCount = 0;
+            mTimestamp = 0;
+            return;
+        }
+        long mac = 0;
+        for (int i = 0; i < 6; i++) {
+            mac = (mac << 8) | readUnsignedByte(mOffset + OFFSET_PEER_MAC + i);
+        }
+        mPeerMac = mac;
+        mCaptureBandwidth = readUnsignedByte(mOffset + OFFSET_CAPTURE_BW);
+        mChannelBandwidth = readUnsignedByte(mOffset + OFFSET_CHANNEL_BW);
+        mPhyMode = readUnsignedByte(mOffset + OFFSET_PHY_MODE);
+        mPrimaryFrequency = readShort(mOffset + OFFSET_PRIMARY_FREQ) & 0xffff;
+        mCenterFrequency1 = readShort(mOffset + OFFSET_CENTER_FREQ1) & 0xffff;
+        mCenterFrequency2 = readShort(mOffset + OFFSET_CENTER_FREQ2) & 0xffff;
+        mChainCount = readUnsignedByte(mOffset + OFFSET_CHAIN_COUNT);
+        mTimestamp = readInt(mOffset + OFFSET_TIMESTAMP) & 0xffffffffL;
+        // Trust the declared payload length only as far as the buffer goes.
+        long declared = readInt(mOffset + OFFSET_PAYLOAD_LENGTH) & 0xffffffffL;
+        mPayloadLength = (int) Math.min(declared, mLength - HEADER_SIZE);
+        mSubcarrierCount = (mChainCount == 0) ? 0
+                : mPayloadLength / (mChainCount * BYTES_PER_SUBCARRIER);
+    }
+
+    private int readUnsignedByte(int index) {
+        return (mArray != null ? mArray[index] : mBuffer.get(index)) & 0xff;
+    }
+
+    private short readShort(int index) {
+        return (short) (readUnsignedByte(index) | (readUnsignedByte(index + 1) << 8));
+    }
+
+    private int readInt(int index) {
+        return readUnsignedByte(index) | (readUnsignedByte(index + 1) << 8)
+                | (readUnsignedByte(index + 2) << 16) | (readUnsignedByte(index + 3) << 24);
+    }
+
+    /**
+     * Converts one of the BANDWIDTH_ constants to MHz, 0 if unknown.
+     */
+    public static int bandwidthToMhz(int bandwidth) {
+        switch (bandwidth) {
+            case BANDWIDTH_20MHZ: return 20;
+            case BANDWIDTH_40MHZ: return 40;
+            case BANDWIDTH_80MHZ: return 80;
+            case BANDWIDTH_160MHZ: return 160;
+            default: return 0;
+        }
+    }
+
+    /**
+     * Packs a MAC address in colon separated hex notation, two digits per octet, the same
+     * way as {@link #getPeerMac()}.
+     *
+     * @throws IllegalArgumentException if {@code mac} is not in that notation.
+     */
+    public static long parseMac(String mac) {
+        if (mac.length() != 17) {
+            throw new IllegalArgumentException("Invalid MAC address " + mac);
+        }
+        final byte[] octet = new byte[1];
+        long packed = 0;
+        for (int i = 0; i < 17; i += 3) {
+            if ((i > 0 && mac.charAt(i - 1) != ':') || CsiUtil.decodeHex(mac, i, 2, octet, 0) < 0) {
+                throw new IllegalArgumentException("Invalid MAC address " + mac);
+            }
+            packed = (packed << 8) | (octet[0] & 0xff);
+        }
+        return packed;
+    }
+
+    /**
+     * Formats a packed MAC address in colon separated hex notation.
+     */
+    public static String macToString(long mac) {
+        StringBuilder sb = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int octet = (int) (mac >>> shift) & 0xff;
+            sb.append(Character.forDigit(octet >> 4, 16))
+                    .append(Character.forDigit(octet & 0xf, 16));
+            if (shift > 0) sb.append(':');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        decodeHeader();
+        if (!mValid) return "CsiFrame{invalid, length=" + mLength + "}";
+        return "CsiFrame{peer=" + macToString(mPeerMac)
+                + ", bw=" + bandwidthToMhz(mCaptureBandwidth) + "MHz, freq=" + mPrimaryFrequency
+                + ", chains=" + mChainCount
+                + ", subcarriers=" + mSubcarrierCount + ", timestamp=" + mTimestamp + "}";
+    }
+}
@@ -0,0 +1,148 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets in the style of HdrHistogram.
+ *
+ * Values below {@link #LINEAR_LIMIT} nanoseconds are counted exactly; above that every
+ * power of two is split into 16 buckets, so percentiles are accurate to about 6% over the
+ * whole range of a long. Recording is a few atomic increments and safe from any thread;
+ * readers see a consistent enough view without stopping the writers.
+ */
+public final class CsiLatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    public static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Records one latency; negative values are counted as 0.
+     */
+    public void record(long nanos) {
+        mCounts.incrementAndGet(bucketOf(nanos));
+        mCount.incrementAndGet();
+        long max = mMax.get();
+        while (nanos > max && !mMax.compareAndSet(max, nanos)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Adds the counts of another histogram to this one.
+     */
+    public void add(CsiLatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            final long count = other.mCounts.get(i);
+            if (count != 0) {
+                mCounts.addAndGet(i, count);
+            }
+        }
+        mCount.addAndGet(other.mCount.get());
+        final long otherMax = other.mMax.get();
+        long max = mMax.get();
+        while (otherMax > max && !mMax.compareAndSet(max, otherMax)) {
+            max = mMax.get();
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMaxNanos() {
+        return mMax.get();
+    }
+
+    /**
+     * Returns the latency {@code percentile} percent of the recorded values are at or below,
+     * rounded up to the end of its bucket, or 0 if nothing was recorded.
+     */
+    public long getPercentileNanos(double percentile) {
+        long total = 0;
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+        final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+
+    /**
+     * Returns the count, p50, p99 and maximum in microseconds.
+     */
+    @Override
+    public String toString() {
+        return "n=" + getCount()
+                + " p50=" + getPercentileNanos(50) / 1000
+                + "us p99=" + getPercentileNanos(99) / 1000
+                + "us max=" + getMaxNanos() / 1000 + "us";
+    }
+
+    private static int bucketOf(long nanos) {
+        if (nanos < LINEAR_LIMIT) {
+            return (int) Math.max(0, nanos);
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS
+                + (int) ((nanos >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        final int octave = (bucket - LINEAR_LIMIT) / SUB_BUCKETS;
+        final int subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        final int shift = octave + 1;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,200 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi;
+
+/**
+ * CSI of one frame as a dense chains x subcarriers matrix of complex samples, with bulk
+ * kernels for the usual first processing steps.
+ *
+ * Samples are kept in a flat {@code short[]}: the I and Q of subcarrier {@code s} on chain
+ * {@code c} are at {@code 2 * (c * subcarriers + s)} and the index after it. Kernels write into
+ * caller supplied arrays laid out as {@code c * subcarriers + s} and allocate nothing, so a
+ * matrix and its output arrays can be reused for every frame of a capture.
+ */
+public final class CsiMatrix {
+    private static final float TWO_PI = (float) (2 * Math.PI);
+
+    private short[] mSamples = new short[0];
+    private int mChainCount;
+    private int mSubcarrierCount;
+
+    public CsiMatrix() {
+    }
+
+    public CsiMatrix(int chainCount, int subcarrierCount) {
+        resize(chainCount, subcarrierCount);
+    }
+
+    /**
+     * Changes the dimensions, keeping the backing array if it is large enough.
+     */
+    public void resize(int chainCount, int subcarrierCount) {
+        if (chainCount < 0 || subcarrierCount < 0) {
+            throw new IllegalArgumentException("Negative dimensions");
+        }
+        final int needed = chainCount * subcarrierCount * 2;
+        if (mSamples.length < needed) {
+            mSamples = new short[needed];
+        }
+        mChainCount = chainCount;
+        mSubcarrierCount = subcarrierCount;
+    }
+
+    /**
+     * Loads the samples of a frame, resizing to its dimensions.
+     */
+    public CsiMatrix load(CsiFrame frame) {
+        resize(frame.getChainCount(), frame.getSubcarrierCount());
+        frame.readSamples(mSamples, 0);
+        return this;
+    }
+
+    public int getChainCount() {
+        return mChainCount;
+    }
+
+    public int getSubcarrierCount() {
+        return mSubcarrierCount;
+    }
+
+    /**
+     * Returns the number of complex samples, the size needed for kernel output arrays.
+     */
+    public int size() {
+        return mChainCount * mSubcarrierCount;
+    }
+
+    /**
+     * Returns the backing array; only the first {@code 2 * size()} entries are valid.
+     */
+    public short[] getSamples() {
+        return mSamples;
+    }
+
+    public short getI(int chain, int subcarrier) {
+        return mSamples[2 * index(chain, subcarrier)];
+    }
+
+    public short getQ(int chain, int subcarrier) {
+        return mSamples[2 * index(chain, subcarrier) + 1];
+    }
+
+    public void set(int chain, int subcarrier, short i, short q) {
+        final int index = 2 * index(chain, subcarrier);
+        mSamples[index] = i;
+        mSamples[index + 1] = q;
+    }
+
+    private int index(int chain, int subcarrier) {
+        if (chain < 0 || chain >= mChainCount || subcarrier < 0
+                || subcarrier >= mSubcarrierCount) {
+            throw new IndexOutOfBoundsException("chain " + chain + ", subcarrier " + subcarrier);
+        }
+        return chain * mSubcarrierCount + subcarrier;
+    }
+
+    private void checkOutput(float[] out) {
+        if (out.length < size()) {
+            throw new IllegalArgumentException("Output needs " + size() + " entries, has "
+                    + out.length);
+        }
+    }
+
+    /**
+     * Writes the magnitude of every sample into {@code out}.
+     */
+    public void amplitude(float[] out) {
+        checkOutput(out);
+        final short[] samples = mSamples;
+        final int n = size();
+        for (int k = 0, s = 0; k < n; k++, s += 2) {
+            final float i = samples[s];
+            final float q = samples[s + 1];
+            out[k] = (float) Math.sqrt(i * i + q * q);
+        }
+    }
+
+    /**
+     * Writes the phase of every sample into {@code out}, unwrapped along the subcarriers of
+     * each chain so that neighbouring subcarriers never differ by more than pi.
+     */
+    public void unwrappedPhase(float[] out) {
+        checkOutput(out);
+        final short[] samples = mSamples;
+        final int subcarriers = mSubcarrierCount;
+        for (int c = 0; c < mChainCount; c++) {
+            final int base = c * subcarriers;
+            float offset = 0;
+            float previous = 0;
+            for (int s = 0; s < subcarriers; s++) {
+                final int k = base + s;
+                float phase = (float) Math.atan2(samples[2 * k + 1], samples[2 * k]);
+                if (s > 0) {
+                    final float delta = phase + offset - previous;
+                    if (delta > Math.PI) {
+                        offset -= TWO_PI * (float) Math.floor((delta + Math.PI) / TWO_PI);
+                    } else if (delta < -Math.PI) {
+                        offset += TWO_PI * (float) Math.floor((-delta + Math.PI) / TWO_PI);
+                    }
+                }
+                previous = phase + offset;
+                out[k] = previous;
+            }
+        }
+    }
+
+    /**
+     * Scales {@code in}, a per-sample array such as the output of {@link #amplitude}, so that
+     * each chain has unit RMS, and writes the result into {@code out}. {@code in} and
+     * {@code out} may be the same array. Chains that are all zero are left at zero.
+     */
+    public void normalizePerChain(float[] in, float[] out) {
+        checkOutput(in);
+        checkOutput(out);
+        final int subcarriers = mSubcarrierCount;
+        for (int c = 0; c < mChainCount; c++) {
+            final int base = c * subcarriers;
+            double sumSquares = 0;
+            for (int s = 0; s < subcarriers; s++) {
+                final float v = in[base + s];
+                sumSquares += v * v;
+            }
+            final float scale = (sumSquares == 0) ? 0
+                    : (float) (1.0 / Math.sqrt(sumSquares / subcarriers));
+            for (int s = 0; s < subcarriers; s++) {
+                out[base + s] = in[base + s] * scale;
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi;
+
+/**
+ * Layout of the shared memory ring buffer used by the shared memory CSI transport.
+ *
+ * The region starts with a {@link #HEADER_SIZE} byte header followed by the data area of
+ * {@code capacity} bytes. All values are little endian.
+ *
+ * Header:
+ * <pre>
+ *   0  int   magic, {@link #MAGIC}
+ *   4  int   layout version, {@link #VERSION}
+ *   8  int   data area capacity in bytes, a multiple of 8
+ *  16  long  write position: total bytes committed since creation
+ *  24  long  reserve position: end of the record currently being written
+ * </pre>
+ *
+ * Positions only ever grow; a position maps to data area offset {@code position % capacity}.
+ * Each record is 8 byte aligned and never wraps around the end of the data area:
+ * <pre>
+ *   0  int   payload length, or {@link #WRAP_MARKER} if the rest of the area is unused
+ *   4  int   reserved
+ *   8  long  frame sequence number, starting at 0
+ *  16  long  HAL receipt time, SystemClock.elapsedRealtimeNanos()
+ *  24  ...   payload
+ * </pre>
+ *
+ * The writer advances the reserve position before overwriting old records and the write
+ * position once a record is complete, then rings the client over binder with the new write
+ * position. A reader that finds the reserve position more than {@code capacity} ahead of a
+ * record it just read knows the record was overwritten while it was being copied. The
+ * writer fences the reserve position before the record and the record before the write
+ * position; the reader fences in the opposite order.
+ */
+public final class CsiRingBuffer {
+    public static final int MAGIC = 0x52495343; // "CSIR"
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 64;
+    public static final int MAGIC_OFFSET = 0;
+    public static final int VERSION_OFFSET = 4;
+    public static final int CAPACITY_OFFSET = 8;
+    public static final int WRITE_POSITION_OFFSET = 16;
+    public static final int RESERVE_POSITION_OFFSET = 24;
+
+    public static final int RECORD_HEADER_SIZE = 24;
+    public static final int RECORD_LENGTH_OFFSET = 0;
+    public static final int RECORD_SEQUENCE_OFFSET = 8;
+    public static final int RECORD_TIMESTAMP_OFFSET = 16;
+    public static final int WRAP_MARKER = -1;
+
+    public static final int MIN_CAPACITY = 64 * 1024;
+    public static final int MAX_CAPACITY = 32 * 1024 * 1024;
+
+    private CsiRingBuffer() {
+    }
+
+    /**
+     * Returns the number of data area bytes taken by a record with the given payload length.
+     */
+    public static int recordSize(int payloadLength) {
+        return align(RECORD_HEADER_SIZE + payloadLength);
+    }
+
+    public static int align(int size) {
+        return (size + 7) & ~7;
+    }
+}
@@ -0,0 +1,232 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi;
+
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+
+import java.io.Closeable;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads CSI frames out of a shared memory ring buffer filled by the service.
+ * See {@link CsiRingBuffer} for the layout.
+ *
+ * The reader never blocks the writer. If the client falls more than one buffer behind, the
+ * overwritten frames are skipped and accounted in {@link #getOverrunCount()} and
+ * {@link #getLostFrameCount()}.
+ *
+ * A reader must only be used from one thread at a time.
+ */
+public class CsiRingBufferReader implements Closeable {
+    private final SharedMemory mSharedMemory;
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+
+    /* Latest write position announced by the service */
+    private volatile long mPublishedPosition;
+
+    private long mReadPosition;
+    private long mLastSequence = -1;
+    private long mFrameSequence;
+    private long mFrameTimestampNanos;
+    private long mOverrunCount;
+    private long mLostFrameCount;
+
+    public CsiRingBufferReader(SharedMemory sharedMemory) throws ErrnoException {
+        mSharedMemory = sharedMemory;
+        mBuffer = sharedMemory.mapReadOnly().order(ByteOrder.LITTLE_ENDIAN);
+        if (mBuffer.getInt(CsiRingBuffer.MAGIC_OFFSET) != CsiRingBuffer.MAGIC
+                || mBuffer.getInt(CsiRingBuffer.VERSION_OFFSET) != CsiRingBuffer.VERSION) {
+            SharedMemory.unmap(mBuffer);
+            throw new IllegalArgumentException("Not a CSI ring buffer");
+        }
+        mCapacity = mBuffer.getInt(CsiRingBuffer.CAPACITY_OFFSET);
+        mReadPosition = mBuffer.getLong(CsiRingBuffer.WRITE_POSITION_OFFSET);
+        mPublishedPosition = mReadPosition;
+    }
+
+    /**
+     * Records a write position announced by the service. May be called from any thread.
+     */
+    public void onWritePosition(long writePosition) {
+        if (writePosition > mPublishedPosition) {
+            mPublishedPosition = writePosition;
+        }
+    }
+
+    /**
+     * Returns true if frames announced by the service have not been read yet.
+     */
+    public boolean hasFrames() {
+        return mReadPosition < mPublishedPosition;
+    }
+
+    /**
+     * Returns the payload length of the next frame, or -1 if there is none.
+     */
+    public int peekFrameLength() {
+        while (true) {
+            long published = mPublishedPosition;
+            if (mReadPosition >= published) return -1;
+            if (published - mReadPosition > mCapacity) {
+                skipOverrun();
+                continue;
+            }
+            // Pairs with the release of the write position by the writer.
+            VarHandle.acquireFence();
+            int index = (int) (mReadPosition % mCapacity);
+            int length = mBuffer.getInt(CsiRingBuffer.HEADER_SIZE + index
+                    + CsiRingBuffer.RECORD_LENGTH_OFFSET);
+            // The length is only meaningful if the record was not overwritten meanwhile.
+            if (isOverwritten()) {
+                skipOverrun();
+                continue;
+            }
+            if (length == CsiRingBuffer.WRAP_MARKER) {
+                mReadPosition += mCapacity - index;
+                continue;
+            }
+            if (length < 0 || length > mCapacity - index - CsiRingBuffer.RECORD_HEADER_SIZE) {
+                // The writer never produces this, treat it like a lapped record.
+                skipOverrun();
+                continue;
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Copies the next frame into {@code dst} at {@code offset} and returns its length, or
+     * returns -1 if no frame is available. The frame's sequence number and timestamp are
+     * available from {@link #getFrameSequence()} and {@link #getFrameTimestampNanos()}
+     * afterwards.
+     *
+     * @throws IllegalArgumentException if the frame does not fit, see
+     *         {@link #peekFrameLength()}.
+     */
+    public int readFrame(byte[] dst, int offset) {
+        while (true) {
+            int length = peekFrameLength();
+            if (length < 0) return -1;
+            int record = CsiRingBuffer.HEADER_SIZE + (int) (mReadPosition % mCapacity);
+            if (length > dst.length - offset) {
+                if (isOverwritten()) {
+                    skipOverrun();
+                    continue;
+                }
+                throw new IllegalArgumentException("Frame of " + length
+                        + " bytes does not fit in " + (dst.length - offset) + " bytes");
+            }
+            long sequence = mBuffer.getLong(record + CsiRingBuffer.RECORD_SEQUENCE_OFFSET);
+            long timestamp = mBuffer.getLong(record + CsiRingBuffer.RECORD_TIMESTAMP_OFFSET);
+            mBuffer.position(record + CsiRingBuffer.RECORD_HEADER_SIZE);
+            mBuffer.get(dst, offset, length);
+
+            // The writer may have lapped us while we were copying.
+            if (isOverwritten()) {
+                skipOverrun();
+                continue;
+            }
+
+            mReadPosition += CsiRingBuffer.recordSize(length);
+            if (mLastSequence >= 0 && sequence > mLastSequence + 1) {
+                mLostFrameCount += sequence - mLastSequence - 1;
+            }
+            mLastSequence = sequence;
+            mFrameSequence = sequence;
+            mFrameTimestampNanos = timestamp;
+            return length;
+        }
+    }
+
+    /**
+     * Returns true if the writer has reserved the record at the read position for a newer
+     * frame. Everything read from that record before this call may be torn.
+     */
+    private boolean isOverwritten() {
+        // Keeps the record reads above from moving past the reserve position read.
+        VarHandle.loadLoadFence();
+        long reserved = mBuffer.getLong(CsiRingBuffer.RESERVE_POSITION_OFFSET);
+        return reserved - mCapacity > mReadPosition;
+    }
+
+    /**
+     * Skips to the last record committed by the writer. That record is never overwritten
+     * by the record being reserved, so the reader can always make progress from there.
+     */
+    private void skipOverrun() {
+        mOverrunCount++;
+        long written = mBuffer.getLong(CsiRingBuffer.WRITE_POSITION_OFFSET);
+        VarHandle.acquireFence();
+        mReadPosition = Math.max(mReadPosition, written);
+    }
+
+    /**
+     * Sequence number of the frame last returned by {@link #readFrame}.
+     */
+    public long getFrameSequence() {
+        return mFrameSequence;
+    }
+
+    /**
+     * HAL receipt time of the frame last returned by {@link #readFrame}, in
+     * {@link android.os.SystemClock#elapsedRealtimeNanos()} time base.
+     */
+    public long getFrameTimestampNanos() {
+        return mFrameTimestampNanos;
+    }
+
+    /**
+     * Number of times the reader fell a full buffer behind and had to skip ahead.
+     */
+    public long getOverrunCount() {
+        return mOverrunCount;
+    }
+
+    /**
+     * Number of frames written by the service that this reader never saw.
+     */
+    public long getLostFrameCount() {
+        return mLostFrameCount;
+    }
+
+    @Override
+    public void close() {
+        SharedMemory.unmap(mBuffer);
+        mSharedMemory.close();
+    }
+}
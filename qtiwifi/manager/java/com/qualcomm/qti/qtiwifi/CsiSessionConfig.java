@@ -0,0 +1,190 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits of a capture session started with {@link QtiWifiManager#startCsiSession}. The service
+ * ends the session by itself once any limit is reached, and stops the capture when no session
+ * or other capture request is left. Build instances with {@link Builder}; a limit of 0 means
+ * none.
+ */
+public final class CsiSessionConfig implements Parcelable {
+    /*
+     * Reasons passed to ICsiCallback#onCsiSessionEnded.
+     */
+    /** Stopped by the client, or its callback was unregistered or replaced */
+    public static final int END_REASON_STOPPED = 0;
+    /** The maximum duration elapsed */
+    public static final int END_REASON_DURATION = 1;
+    /** The frame budget was used up */
+    public static final int END_REASON_FRAME_BUDGET = 2;
+    /** The next frame would have exceeded the byte budget */
+    public static final int END_REASON_BYTE_BUDGET = 3;
+    /** Writing to the output file failed */
+    public static final int END_REASON_OUTPUT_ERROR = 4;
+
+    private long mMaxDurationMillis = 0;
+    private long mMaxFrames = 0;
+    private long mMaxBytes = 0;
+
+    private CsiSessionConfig() {
+    }
+
+    private CsiSessionConfig(CsiSessionConfig other) {
+        mMaxDurationMillis = other.mMaxDurationMillis;
+        mMaxFrames = other.mMaxFrames;
+        mMaxBytes = other.mMaxBytes;
+    }
+
+    private CsiSessionConfig(Parcel in) {
+        mMaxDurationMillis = in.readLong();
+        mMaxFrames = in.readLong();
+        mMaxBytes = in.readLong();
+    }
+
+    /**
+     * Time after which the session ends, 0 for no limit.
+     */
+    public long getMaxDurationMillis() {
+        return mMaxDurationMillis;
+    }
+
+    /**
+     * Number of frames after which the session ends, 0 for no limit.
+     */
+    public long getMaxFrames() {
+        return mMaxFrames;
+    }
+
+    /**
+     * Bytes of CFR frames, as received from the HAL, the session may capture; 0 for no
+     * limit.
+     */
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Returns the name of an END_REASON_ value.
+     */
+    public static String endReasonToString(int reason) {
+        switch (reason) {
+            case END_REASON_STOPPED: return "stopped";
+            case END_REASON_DURATION: return "duration";
+            case END_REASON_FRAME_BUDGET: return "frame-budget";
+            case END_REASON_BYTE_BUDGET: return "byte-budget";
+            case END_REASON_OUTPUT_ERROR: return "output-error";
+            default: return "unknown(" + reason + ")";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CsiSessionConfig{maxDurationMillis=" + mMaxDurationMillis
+                + ", maxFrames=" + mMaxFrames
+                + ", maxBytes=" + mMaxBytes + "}";
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mMaxDurationMillis);
+        dest.writeLong(mMaxFrames);
+        dest.writeLong(mMaxBytes);
+    }
+
+    public static final Parcelable.Creator<CsiSessionConfig> CREATOR =
+            new Parcelable.Creator<CsiSessionConfig>() {
+        @Override
+        public CsiSessionConfig createFromParcel(Parcel in) {
+            return new CsiSessionConfig(in);
+        }
+
+        @Override
+        public CsiSessionConfig[] newArray(int size) {
+            return new CsiSessionConfig[size];
+        }
+    };
+
+    public static final class Builder {
+        private final CsiSessionConfig mConfig = new CsiSessionConfig();
+
+        /**
+         * End the session {@code duration} after it started.
+         */
+        public Builder setMaxDuration(long duration, TimeUnit unit) {
+            final long millis = unit.toMillis(duration);
+            if (millis < 1) {
+                throw new IllegalArgumentException("Duration must be at least 1 ms");
+            }
+            mConfig.mMaxDurationMillis = millis;
+            return this;
+        }
+
+        /**
+         * End the session once {@code maxFrames} frames were captured.
+         */
+        public Builder setMaxFrames(long maxFrames) {
+            if (maxFrames < 1) {
+                throw new IllegalArgumentException("maxFrames must be positive");
+            }
+            mConfig.mMaxFrames = maxFrames;
+            return this;
+        }
+
+        /**
+         * End the session before the captured frames would exceed {@code maxBytes}.
+         */
+        public Builder setMaxBytes(long maxBytes) {
+            if (maxBytes < 1) {
+                throw new IllegalArgumentException("maxBytes must be positive");
+            }
+            mConfig.mMaxBytes = maxBytes;
+            return this;
+        }
+
+        public CsiSessionConfig build() {
+            return new CsiSessionConfig(mConfig);
+        }
+    }
+}
@@ -0,0 +1,593 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Arrays;
+
+/**
+ * Delivery options chosen by an application when registering a
+ * {@link QtiWifiManager.CsiCallback}. Build instances with {@link Builder}.
+ */
+public final class CsiSubscriptionConfig implements Parcelable {
+    /** Upper bound on the bytes in one batch, well below the binder async buffer */
+    public static final int MAX_BATCH_BYTES = 128 * 1024;
+
+    /*
+     * Delivery modes of a flow controlled subscriber, see Builder#setFlowControl. Each mode
+     * includes the ones before it.
+     */
+    /** Frames are delivered as configured */
+    public static final int DELIVERY_MODE_NORMAL = 0;
+    /** Deliveries are held back while the client is busy and coalesced into larger ones */
+    public static final int DELIVERY_MODE_COALESCE = 1;
+    /** Only every {@link #DECIMATION_FACTOR}-th frame is delivered */
+    public static final int DELIVERY_MODE_DECIMATE = 2;
+    /** Nothing is delivered; only the newest frames are kept queued */
+    public static final int DELIVERY_MODE_DROP_OLDEST = 3;
+
+    /** Frame decimation applied in {@link #DELIVERY_MODE_DECIMATE} */
+    public static final int DECIMATION_FACTOR = 4;
+
+    /** Window of {@link CsiFeatures#FEATURE_WINDOW_STATS} unless set otherwise, in frames */
+    public static final int DEFAULT_WINDOW_STATS_FRAMES = 64;
+    /** Longest window of {@link CsiFeatures#FEATURE_WINDOW_STATS}, bounding service memory */
+    public static final int MAX_WINDOW_STATS_FRAMES = 256;
+    /** Most peers a subscription can filter on, as many as the service tracks at once */
+    public static final int MAX_PEER_MACS = 64;
+
+    private int mMaxBatchFrames = 1;
+    private int mMaxBatchBytes = MAX_BATCH_BYTES;
+    private int mMaxBatchLatencyMillis = 0;
+    private int mSharedMemoryCapacity = 0;
+
+    /* Filters, evaluated by the service on the frame header before anything is copied */
+    private long[] mPeerMacs = new long[0];
+    private int mBandwidthMask = 0;
+    private int mPrimaryFrequency = 0;
+    private long mMinFrameIntervalMicros = 0;
+    private int mFirstSubcarrier = 0;
+    private int mSubcarrierCount = 0;
+
+    /* Downsampling, applied by the service to the frames that passed the filters */
+    private int mFrameDecimation = 1;
+    private int mSubcarrierStride = 1;
+    private boolean mAverageSubcarriers = false;
+
+    /* Payload encoding, see CsiCodec. A bit depth of 0 delivers frames as is. */
+    private int mEncodingBitDepth = 0;
+    private int mKeyframeInterval = CsiCodec.DEFAULT_KEYFRAME_INTERVAL;
+
+    /* Whether the client acknowledges deliveries, enabling adaptive backpressure */
+    private boolean mFlowControl = false;
+
+    /* CsiFeatures.FEATURE_ bits delivered instead of raw frames, 0 for raw frames */
+    private int mFeatures = 0;
+    private int mWindowStatsFrames = DEFAULT_WINDOW_STATS_FRAMES;
+
+    private CsiSubscriptionConfig() {
+    }
+
+    private CsiSubscriptionConfig(CsiSubscriptionConfig other) {
+        mMaxBatchFrames = other.mMaxBatchFrames;
+        mMaxBatchBytes = other.mMaxBatchBytes;
+        mMaxBatchLatencyMillis = other.mMaxBatchLatencyMillis;
+        mSharedMemoryCapacity = other.mSharedMemoryCapacity;
+        mPeerMacs = other.mPeerMacs.clone();
+        mBandwidthMask = other.mBandwidthMask;
+        mPrimaryFrequency = other.mPrimaryFrequency;
+        mMinFrameIntervalMicros = other.mMinFrameIntervalMicros;
+        mFirstSubcarrier = other.mFirstSubcarrier;
+        mSubcarrierCount = other.mSubcarrierCount;
+        mFrameDecimation = other.mFrameDecimation;
+        mSubcarrierStride = other.mSubcarrierStride;
+        mAverageSubcarriers = other.mAverageSubcarriers;
+        mEncodingBitDepth = other.mEncodingBitDepth;
+        mKeyframeInterval = other.mKeyframeInterval;
+        mFlowControl = other.mFlowControl;
+        mFeatures = other.mFeatures;
+        mWindowStatsFrames = other.mWindowStatsFrames;
+    }
+
+    private CsiSubscriptionConfig(Parcel in) {
+        mMaxBatchFrames = in.readInt();
+        mMaxBatchBytes = in.readInt();
+        mMaxBatchLatencyMillis = in.readInt();
+        mSharedMemoryCapacity = in.readInt();
+        long[] peerMacs = in.createLongArray();
+        mPeerMacs = (peerMacs != null) ? peerMacs : new long[0];
+        mBandwidthMask = in.readInt();
+        mPrimaryFrequency = in.readInt();
+        mMinFrameIntervalMicros = in.readLong();
+        mFirstSubcarrier = in.readInt();
+        mSubcarrierCount = in.readInt();
+        mFrameDecimation = in.readInt();
+        mSubcarrierStride = in.readInt();
+        mAverageSubcarriers = in.readInt() != 0;
+        mEncodingBitDepth = in.readInt();
+        mKeyframeInterval = in.readInt();
+        mFlowControl = in.readInt() != 0;
+        mFeatures = in.readInt();
+        mWindowStatsFrames = in.readInt();
+    }
+
+    /**
+     * Maximum number of frames coalesced into one delivery. 1 disables batching.
+     */
+    public int getMaxBatchFrames() {
+        return mMaxBatchFrames;
+    }
+
+    /**
+     * A batch is delivered as soon as it holds at least this many bytes.
+     */
+    public int getMaxBatchBytes() {
+        return mMaxBatchBytes;
+    }
+
+    /**
+     * A batch is delivered at the latest this long after its first frame was queued.
+     */
+    public int getMaxBatchLatencyMillis() {
+        return mMaxBatchLatencyMillis;
+    }
+
+    public boolean isBatchingEnabled() {
+        return mMaxBatchFrames > 1;
+    }
+
+    /**
+     * Size of the data area of the shared memory ring buffer, or 0 for binder delivery.
+     * When set, the batching limits decide how often the client is notified.
+     */
+    public int getSharedMemoryCapacity() {
+        return mSharedMemoryCapacity;
+    }
+
+    /**
+     * Peer MAC addresses to receive frames from, packed as by {@link CsiFrame#getPeerMac()}.
+     * Empty to accept all peers.
+     */
+    public long[] getPeerMacs() {
+        return mPeerMacs.clone();
+    }
+
+    public int getPeerMacCount() {
+        return mPeerMacs.length;
+    }
+
+    /**
+     * Bit {@code 1 << bw} is set for each accepted CsiFrame.BANDWIDTH_ value, 0 accepts all.
+     */
+    public int getBandwidthMask() {
+        return mBandwidthMask;
+    }
+
+    /**
+     * Accepted primary 20 MHz channel frequency in MHz, 0 accepts all channels.
+     */
+    public int getPrimaryFrequency() {
+        return mPrimaryFrequency;
+    }
+
+    /**
+     * Minimum time between two delivered frames, 0 for no rate limit.
+     */
+    public long getMinFrameIntervalMicros() {
+        return mMinFrameIntervalMicros;
+    }
+
+    /**
+     * First subcarrier delivered of each chain.
+     */
+    public int getFirstSubcarrier() {
+        return mFirstSubcarrier;
+    }
+
+    /**
+     * Number of subcarriers delivered of each chain, 0 for all of them.
+     */
+    public int getSubcarrierCount() {
+        return mSubcarrierCount;
+    }
+
+    /**
+     * Only every n-th frame that passed the filters is delivered, 1 delivers all of them.
+     */
+    public int getFrameDecimation() {
+        return mFrameDecimation;
+    }
+
+    /**
+     * Subcarrier downsampling factor, 1 keeps every subcarrier.
+     */
+    public int getSubcarrierStride() {
+        return mSubcarrierStride;
+    }
+
+    /**
+     * True if each group of {@link #getSubcarrierStride} subcarriers is averaged rather than
+     * represented by its first subcarrier.
+     */
+    public boolean isAverageSubcarriers() {
+        return mAverageSubcarriers;
+    }
+
+    /**
+     * Sample bit depth of {@link CsiCodec} encoded delivery, 0 if frames are delivered as is.
+     */
+    public int getEncodingBitDepth() {
+        return mEncodingBitDepth;
+    }
+
+    /**
+     * Maximum number of frames of a peer between two {@link CsiCodec} keyframes.
+     */
+    public int getKeyframeInterval() {
+        return mKeyframeInterval;
+    }
+
+    /**
+     * True if the client acknowledges each delivery with
+     * {@link IQtiWifiManager#ackCsiDelivery}, letting the service degrade delivery while the
+     * client lags behind.
+     */
+    public boolean isFlowControlEnabled() {
+        return mFlowControl;
+    }
+
+    /**
+     * Returns the CsiFeatures.FEATURE_ bits delivered instead of raw frames, 0 if the
+     * subscription receives raw frames.
+     */
+    public int getFeatures() {
+        return mFeatures;
+    }
+
+    /**
+     * Returns the number of most recent frames per peer that
+     * {@link CsiFeatures#FEATURE_WINDOW_STATS} is computed over.
+     */
+    public int getWindowStatsFrames() {
+        return mWindowStatsFrames;
+    }
+
+    /**
+     * Returns a copy of this config with flow control enabled.
+     */
+    CsiSubscriptionConfig withFlowControl() {
+        CsiSubscriptionConfig config = new CsiSubscriptionConfig(this);
+        config.mFlowControl = true;
+        return config;
+    }
+
+    /**
+     * Returns the name of a DELIVERY_MODE_ value.
+     */
+    public static String deliveryModeToString(int mode) {
+        switch (mode) {
+            case DELIVERY_MODE_NORMAL: return "normal";
+            case DELIVERY_MODE_COALESCE: return "coalesce";
+            case DELIVERY_MODE_DECIMATE: return "decimate";
+            case DELIVERY_MODE_DROP_OLDEST: return "drop-oldest";
+            default: return "unknown(" + mode + ")";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CsiSubscriptionConfig{maxBatchFrames=" + mMaxBatchFrames
+                + ", maxBatchBytes=" + mMaxBatchBytes
+                + ", maxBatchLatencyMillis=" + mMaxBatchLatencyMillis
+                + ", sharedMemoryCapacity=" + mSharedMemoryCapacity
+                + ", peerMacs=" + mPeerMacs.length
+                + ", bandwidthMask=0x" + Integer.toHexString(mBandwidthMask)
+                + ", primaryFrequency=" + mPrimaryFrequency
+                + ", minFrameIntervalMicros=" + mMinFrameIntervalMicros
+                + ", subcarriers=" + mFirstSubcarrier + "+" + mSubcarrierCount
+                + ", frameDecimation=" + mFrameDecimation
+                + ", subcarrierStride=" + mSubcarrierStride
+                + (mAverageSubcarriers ? " averaged" : "")
+                + ", encodingBitDepth=" + mEncodingBitDepth
+                + ", keyframeInterval=" + mKeyframeInterval
+                + (mFlowControl ? ", flowControl" : "")
+                + (mFeatures != 0 ? ", features=0x" + Integer.toHexString(mFeatures) : "")
+                + ((mFeatures & CsiFeatures.FEATURE_WINDOW_STATS) != 0
+                        ? ", windowStatsFrames=" + mWindowStatsFrames : "") + "}";
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mMaxBatchFrames);
+        dest.writeInt(mMaxBatchBytes);
+        dest.writeInt(mMaxBatchLatencyMillis);
+        dest.writeInt(mSharedMemoryCapacity);
+        dest.writeLongArray(mPeerMacs);
+        dest.writeInt(mBandwidthMask);
+        dest.writeInt(mPrimaryFrequency);
+        dest.writeLong(mMinFrameIntervalMicros);
+        dest.writeInt(mFirstSubcarrier);
+        dest.writeInt(mSubcarrierCount);
+        dest.writeInt(mFrameDecimation);
+        dest.writeInt(mSubcarrierStride);
+        dest.writeInt(mAverageSubcarriers ? 1 : 0);
+        dest.writeInt(mEncodingBitDepth);
+        dest.writeInt(mKeyframeInterval);
+        dest.writeInt(mFlowControl ? 1 : 0);
+        dest.writeInt(mFeatures);
+        dest.writeInt(mWindowStatsFrames);
+    }
+
+    public static final Parcelable.Creator<CsiSubscriptionConfig> CREATOR =
+            new Parcelable.Creator<CsiSubscriptionConfig>() {
+        @Override
+        public CsiSubscriptionConfig createFromParcel(Parcel in) {
+            return new CsiSubscriptionConfig(in);
+        }
+
+        @Override
+        public CsiSubscriptionConfig[] newArray(int size) {
+            return new CsiSubscriptionConfig[size];
+        }
+    };
+
+    /**
+     * Builder for {@link CsiSubscriptionConfig}.
+     */
+    public static final class Builder {
+        private final CsiSubscriptionConfig mConfig = new CsiSubscriptionConfig();
+
+        /**
+         * Coalesce up to {@code maxFrames} frames, {@code maxBytes} bytes or
+         * {@code maxLatencyMillis} of waiting into one delivery, whichever is reached first.
+         */
+        public Builder setBatching(int maxFrames, int maxBytes, int maxLatencyMillis) {
+            if (maxFrames < 1) {
+                throw new IllegalArgumentException("maxFrames must be at least 1");
+            }
+            if (maxBytes < 1) {
+                throw new IllegalArgumentException("maxBytes must be positive");
+            }
+            if (maxLatencyMillis < 0) {
+                throw new IllegalArgumentException("maxLatencyMillis must not be negative");
+            }
+            mConfig.mMaxBatchFrames = maxFrames;
+            mConfig.mMaxBatchBytes = Math.min(maxBytes, MAX_BATCH_BYTES);
+            mConfig.mMaxBatchLatencyMillis = maxLatencyMillis;
+            return this;
+        }
+
+        /**
+         * Deliver frames through a shared memory ring buffer with a data area of
+         * {@code capacityBytes}, see {@link QtiWifiManager#registerCsiRingBufferCallback}.
+         */
+        public Builder setSharedMemoryCapacity(int capacityBytes) {
+            if (capacityBytes < CsiRingBuffer.MIN_CAPACITY
+                    || capacityBytes > CsiRingBuffer.MAX_CAPACITY) {
+                throw new IllegalArgumentException("capacityBytes must be between "
+                        + CsiRingBuffer.MIN_CAPACITY + " and " + CsiRingBuffer.MAX_CAPACITY);
+            }
+            mConfig.mSharedMemoryCapacity = CsiRingBuffer.align(capacityBytes);
+            return this;
+        }
+
+        /**
+         * Only deliver frames from the given peers. Each call adds to the set, up to
+         * {@link #MAX_PEER_MACS} peers.
+         *
+         * @param mac MAC address in colon separated hex notation
+         */
+        public Builder addPeerMac(String mac) {
+            if (mConfig.mPeerMacs.length >= MAX_PEER_MACS) {
+                throw new IllegalArgumentException("More than " + MAX_PEER_MACS + " peers");
+            }
+            long packed = CsiFrame.parseMac(mac);
+            long[] macs = Arrays.copyOf(mConfig.mPeerMacs, mConfig.mPeerMacs.length + 1);
+            macs[macs.length - 1] = packed;
+            mConfig.mPeerMacs = macs;
+            return this;
+        }
+
+        /**
+         * Only deliver frames captured with one of the given bandwidths.
+         *
+         * @param bandwidths CsiFrame.BANDWIDTH_ values
+         */
+        public Builder setBandwidths(int... bandwidths) {
+            int mask = 0;
+            for (int bandwidth : bandwidths) {
+                if (bandwidth < CsiFrame.BANDWIDTH_20MHZ || bandwidth > CsiFrame.BANDWIDTH_160MHZ) {
+                    throw new IllegalArgumentException("Unknown bandwidth " + bandwidth);
+                }
+                mask |= 1 << bandwidth;
+            }
+            mConfig.mBandwidthMask = mask;
+            return this;
+        }
+
+        /**
+         * Only deliver frames captured on the channel whose primary 20 MHz channel is at
+         * {@code frequencyMhz}.
+         */
+        public Builder setPrimaryFrequency(int frequencyMhz) {
+            if (frequencyMhz < 0) {
+                throw new IllegalArgumentException("frequencyMhz must not be negative");
+            }
+            mConfig.mPrimaryFrequency = frequencyMhz;
+            return this;
+        }
+
+        /**
+         * Deliver at most {@code framesPerSecond} frames per second; frames arriving sooner
+         * than that after the last delivered one are skipped.
+         */
+        public Builder setMaxFrameRate(int framesPerSecond) {
+            if (framesPerSecond <= 0) {
+                throw new IllegalArgumentException("framesPerSecond must be positive");
+            }
+            mConfig.mMinFrameIntervalMicros = 1000000L / framesPerSecond;
+            return this;
+        }
+
+        /**
+         * Deliver at most one frame every {@code intervalMillis} milliseconds; frames
+         * arriving sooner than that after the last delivered one are skipped.
+         */
+        public Builder setMinFrameInterval(int intervalMillis) {
+            if (intervalMillis < 0) {
+                throw new IllegalArgumentException("intervalMillis must not be negative");
+            }
+            mConfig.mMinFrameIntervalMicros = intervalMillis * 1000L;
+            return this;
+        }
+
+        /**
+         * Only deliver every {@code n}-th frame of those that passed the other filters.
+         */
+        public Builder setFrameDecimation(int n) {
+            if (n <= 0) {
+                throw new IllegalArgumentException("n must be positive");
+            }
+            mConfig.mFrameDecimation = n;
+            return this;
+        }
+
+        /**
+         * Reduce the number of subcarriers by {@code factor}. Each group of {@code factor}
+         * adjacent subcarriers is replaced either by its first subcarrier or, if
+         * {@code average} is set, by the mean of its I and Q samples. Applied after
+         * {@link #setSubcarrierRange}.
+         */
+        public Builder setSubcarrierDownsampling(int factor, boolean average) {
+            if (factor <= 0) {
+                throw new IllegalArgumentException("factor must be positive");
+            }
+            mConfig.mSubcarrierStride = factor;
+            mConfig.mAverageSubcarriers = average;
+            return this;
+        }
+
+        /**
+         * Only deliver {@code count} subcarriers of each chain starting at {@code first}.
+         * The delivered frames keep the CFR layout with a correspondingly shorter payload.
+         */
+        public Builder setSubcarrierRange(int first, int count) {
+            if (first < 0 || count <= 0) {
+                throw new IllegalArgumentException("Invalid subcarrier range");
+            }
+            mConfig.mFirstSubcarrier = first;
+            mConfig.mSubcarrierCount = count;
+            return this;
+        }
+
+        /**
+         * Have the service deliver frames encoded with {@link CsiCodec}, keeping
+         * {@code bitDepth} bits of each I/Q sample. Frames received through
+         * {@link QtiWifiManager#registerCsiCallback} are decoded by the manager; ring buffer
+         * clients decode them with a {@link CsiCodec.Decoder}.
+         */
+        public Builder setEncoding(int bitDepth) {
+            return setEncoding(bitDepth, CsiCodec.DEFAULT_KEYFRAME_INTERVAL);
+        }
+
+        /**
+         * Like {@link #setEncoding(int)}, also choosing how often a peer's frames are coded
+         * without reference to the previous one.
+         */
+        public Builder setEncoding(int bitDepth, int keyframeInterval) {
+            if (bitDepth < CsiCodec.MIN_BIT_DEPTH || bitDepth > CsiCodec.MAX_BIT_DEPTH) {
+                throw new IllegalArgumentException("bitDepth must be between "
+                        + CsiCodec.MIN_BIT_DEPTH + " and " + CsiCodec.MAX_BIT_DEPTH);
+            }
+            if (keyframeInterval <= 0) {
+                throw new IllegalArgumentException("keyframeInterval must be positive");
+            }
+            mConfig.mEncodingBitDepth = bitDepth;
+            mConfig.mKeyframeInterval = keyframeInterval;
+            return this;
+        }
+
+        /**
+         * Acknowledge every delivery with {@link IQtiWifiManager#ackCsiDelivery}. The service
+         * then tracks the deliveries still outstanding and, before the client's binder buffer
+         * fills up, coalesces, decimates or holds back frames for it, reporting each change
+         * through {@link ICsiCallback#onCsiDeliveryModeChanged}. Callbacks registered through
+         * {@link QtiWifiManager} always use flow control.
+         */
+        public Builder setFlowControl(boolean enabled) {
+            mConfig.mFlowControl = enabled;
+            return this;
+        }
+
+        /**
+         * Receive {@link CsiFeatures} computed by the service instead of raw frames, through
+         * {@link QtiWifiManager.CsiCallback#onCsiFeatures}. Of the other options only
+         * {@link #addPeerMac} applies to feature subscriptions.
+         *
+         * @param features CsiFeatures.FEATURE_ bits
+         */
+        public Builder setFeatures(int features) {
+            if (features == 0 || (features & ~CsiFeatures.ALL_FEATURES) != 0) {
+                throw new IllegalArgumentException("Invalid features 0x"
+                        + Integer.toHexString(features));
+            }
+            mConfig.mFeatures = features;
+            return this;
+        }
+
+        /**
+         * Compute {@link CsiFeatures#FEATURE_WINDOW_STATS} over the last {@code frames}
+         * frames of each peer, between 2 and {@link #MAX_WINDOW_STATS_FRAMES}. Subscriptions
+         * asking for the same window share its computation.
+         */
+        public Builder setWindowStatsFrames(int frames) {
+            if (frames < 2 || frames > MAX_WINDOW_STATS_FRAMES) {
+                throw new IllegalArgumentException("Invalid window of " + frames + " frames");
+            }
+            mConfig.mWindowStatsFrames = frames;
+            return this;
+        }
+
+        public CsiSubscriptionConfig build() {
+            return new CsiSubscriptionConfig(mConfig);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi;
+
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Bulk conversions for csi frames: table driven hex encoding and decoding into caller owned
+ * buffers, and copying of the {@code ArrayList<Byte>} frames HIDL hands out.
+ */
+public final class CsiUtil {
+    /* Both hex digits of every byte value, lower case */
+    private static final char[] HEX_PAIRS = new char[2 * 256];
+    /* Value of each ASCII hex digit, -1 for other characters */
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        final char[] digits = "0123456789abcdef".toCharArray();
+        for (int i = 0; i < 256; i++) {
+            HEX_PAIRS[2 * i] = digits[i >> 4];
+            HEX_PAIRS[2 * i + 1] = digits[i & 0xf];
+        }
+        for (int i = 0; i < HEX_VALUES.length; i++) {
+            HEX_VALUES[i] = (byte) Character.digit(i, 16);
+        }
+    }
+
+    private CsiUtil() {
+    }
+
+    /**
+     * Writes the lower case hex digits of {@code length} bytes of {@code src} to {@code dst}.
+     *
+     * @return the number of chars written, {@code 2 * length}.
+     */
+    public static int encodeHex(byte[] src, int srcOffset, int length, char[] dst,
+            int dstOffset) {
+        if (length > (dst.length - dstOffset) / 2) {
+            throw new IndexOutOfBoundsException("dst too small for " + length + " bytes");
+        }
+        int out = dstOffset;
+        for (int i = srcOffset, end = srcOffset + length; i < end; i++) {
+            final int pair = (src[i] & 0xff) << 1;
+            dst[out] = HEX_PAIRS[pair];
+            dst[out + 1] = HEX_PAIRS[pair + 1];
+            out += 2;
+        }
+        return out - dstOffset;
+    }
+
+    public static String toHexString(byte[] src) {
+        return toHexString(src, 0, src.length);
+    }
+
+    public static String toHexString(byte[] src, int offset, int length) {
+        char[] chars = new char[2 * length];
+        encodeHex(src, offset, length, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Parses {@code length} hex digits of {@code src}, either case, into {@code dst}.
+     *
+     * @return the number of bytes written, or -1 if {@code length} is odd or a character is
+     *         not a hex digit.
+     */
+    public static int decodeHex(CharSequence src, int srcOffset, int length, byte[] dst,
+            int dstOffset) {
+        if ((length & 1) != 0) return -1;
+        if (length / 2 > dst.length - dstOffset) {
+            throw new IndexOutOfBoundsException("dst too small for " + length + " digits");
+        }
+        int out = dstOffset;
+        for (int i = srcOffset, end = srcOffset + length; i < end; i += 2) {
+            final int high = hexValue(src.charAt(i));
+            final int low = hexValue(src.charAt(i + 1));
+            if ((high | low) < 0) return -1;
+            dst[out++] = (byte) ((high << 4) | low);
+        }
+        return out - dstOffset;
+    }
+
+    /**
+     * Like {@link #decodeHex(CharSequence, int, int, byte[], int)} for a whole char array.
+     */
+    public static int decodeHex(char[] src, int srcOffset, int length, byte[] dst,
+            int dstOffset) {
+        if ((length & 1) != 0) return -1;
+        if (length / 2 > dst.length - dstOffset) {
+            throw new IndexOutOfBoundsException("dst too small for " + length + " digits");
+        }
+        int out = dstOffset;
+        for (int i = srcOffset, end = srcOffset + length; i < end; i += 2) {
+            final int high = hexValue(src[i]);
+            final int low = hexValue(src[i + 1]);
+            if ((high | low) < 0) return -1;
+            dst[out++] = (byte) ((high << 4) | low);
+        }
+        return out - dstOffset;
+    }
+
+    /**
+     * Parses a string of hex digits.
+     *
+     * @throws IllegalArgumentException if the string is not an even number of hex digits.
+     */
+    public static byte[] fromHexString(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        if (decodeHex(hex, 0, hex.length(), bytes, 0) < 0) {
+            throw new IllegalArgumentException("Invalid hex string");
+        }
+        return bytes;
+    }
+
+    private static int hexValue(char c) {
+        return (c < HEX_VALUES.length) ? HEX_VALUES[c] : -1;
+    }
+
+    /**
+     * Copies {@code length} bytes of a HIDL byte vector starting at {@code srcOffset} into
+     * {@code dst}. Lists with random access, as HIDL produces, are read by index since
+     * iterating would allocate an Iterator per frame.
+     */
+    public static void copyFromList(List<Byte> src, int srcOffset, byte[] dst, int dstOffset,
+            int length) {
+        if (srcOffset < 0 || length < 0 || length > src.size() - srcOffset
+                || dstOffset < 0 || length > dst.length - dstOffset) {
+            throw new IndexOutOfBoundsException("Invalid range " + srcOffset + "+" + length);
+        }
+        if (src instanceof RandomAccess) {
+            for (int i = 0; i < length; i++) {
+                dst[dstOffset + i] = src.get(srcOffset + i);
+            }
+        } else {
+            int i = dstOffset;
+            for (Byte value : src.subList(srcOffset, srcOffset + length)) {
+                dst[i++] = value;
+            }
+        }
+    }
+
+    /**
+     * Returns the contents of a HIDL byte vector as an array.
+     */
+    public static byte[] toByteArray(List<Byte> src) {
+        byte[] bytes = new byte[src.size()];
+        copyFromList(src, 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+}
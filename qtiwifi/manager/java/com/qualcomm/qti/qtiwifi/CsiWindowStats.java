@@ -0,0 +1,237 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.qtiwifi;
+
+import java.util.Arrays;
+
+/**
+ * Rolling statistics over the last {@code windowLength} rows of a stream of equally wide
+ * float vectors, typically one amplitude per subcarrier for each frame of a peer.
+ *
+ * Mean and variance are updated incrementally, with Welford's method extended to drop the
+ * row leaving the window; minimum and maximum are kept with monotonic queues of ring
+ * positions. All storage is allocated up front, so {@link #add} costs O(width) amortized and
+ * allocates nothing. Snapshots fill caller supplied arrays from the running state without
+ * touching the history, which can be read in place with {@link #get}.
+ *
+ * Not thread safe.
+ */
+public final class CsiWindowStats {
+    private final int mWindowLength;
+    private final int mWidth;
+
+    /* Row r of the ring is at [r * width, (r + 1) * width); mNext is the row written next */
+    private final float[] mHistory;
+    private int mNext;
+    private int mCount;
+
+    private final double[] mMean;
+    private final double[] mM2;
+
+    /*
+     * Monotonic queues of ring rows per column, each a ring of windowLength entries at
+     * column * windowLength: values decreasing from the front for the maximum, increasing
+     * for the minimum. The front is the extreme of the window.
+     */
+    private final int[] mMaxQueue;
+    private final int[] mMaxHead;
+    private final int[] mMaxSize;
+    private final int[] mMinQueue;
+    private final int[] mMinHead;
+    private final int[] mMinSize;
+
+    public CsiWindowStats(int windowLength, int width) {
+        if (windowLength < 1 || width < 1) {
+            throw new IllegalArgumentException("windowLength and width must be positive");
+        }
+        mWindowLength = windowLength;
+        mWidth = width;
+        mHistory = new float[windowLength * width];
+        mMean = new double[width];
+        mM2 = new double[width];
+        mMaxQueue = new int[windowLength * width];
+        mMaxHead = new int[width];
+        mMaxSize = new int[width];
+        mMinQueue = new int[windowLength * width];
+        mMinHead = new int[width];
+        mMinSize = new int[width];
+    }
+
+    public int getWindowLength() {
+        return mWindowLength;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns the number of rows in the window, at most {@link #getWindowLength()}.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    public void clear() {
+        mNext = 0;
+        mCount = 0;
+        Arrays.fill(mMean, 0);
+        Arrays.fill(mM2, 0);
+        Arrays.fill(mMaxSize, 0);
+        Arrays.fill(mMinSize, 0);
+    }
+
+    /**
+     * Adds the row {@code values[offset .. offset + width)}, dropping the oldest row once the
+     * window is full.
+     */
+    public void add(float[] values, int offset) {
+        if (offset < 0 || offset > values.length - mWidth) {
+            throw new IndexOutOfBoundsException("Row of " + mWidth + " at " + offset);
+        }
+        final int row = mNext;
+        final int base = row * mWidth;
+        final boolean full = mCount == mWindowLength;
+        final int n = full ? mCount : mCount + 1;
+        for (int col = 0; col < mWidth; col++) {
+            final float value = values[offset + col];
+            final double mean = mMean[col];
+            if (full) {
+                final float old = mHistory[base + col];
+                final double newMean = mean + (value - old) / n;
+                mM2[col] = Math.max(0, mM2[col] + (value - old) * (value - newMean + old - mean));
+                mMean[col] = newMean;
+                // The row being replaced may be the front of either queue.
+                final int queueBase = col * mWindowLength;
+                if (mMaxSize[col] > 0 && mMaxQueue[queueBase + mMaxHead[col]] == row) {
+                    mMaxHead[col] = (mMaxHead[col] + 1) % mWindowLength;
+                    mMaxSize[col]--;
+                }
+                if (mMinSize[col] > 0 && mMinQueue[queueBase + mMinHead[col]] == row) {
+                    mMinHead[col] = (mMinHead[col] + 1) % mWindowLength;
+                    mMinSize[col]--;
+                }
+            } else {
+                final double delta = value - mean;
+                final double newMean = mean + delta / n;
+                mM2[col] += delta * (value - newMean);
+                mMean[col] = newMean;
+            }
+            mHistory[base + col] = value;
+            push(mMaxQueue, mMaxHead, mMaxSize, col, row, value, true);
+            push(mMinQueue, mMinHead, mMinSize, col, row, value, false);
+        }
+        mCount = n;
+        mNext = (row + 1) % mWindowLength;
+    }
+
+    /**
+     * Appends {@code row} to the back of a column's queue after removing the entries it
+     * dominates.
+     */
+    private void push(int[] queue, int[] head, int[] size, int col, int row, float value,
+            boolean max) {
+        final int queueBase = col * mWindowLength;
+        int count = size[col];
+        while (count > 0) {
+            final int last = queueBase + (head[col] + count - 1) % mWindowLength;
+            final float lastValue = mHistory[queue[last] * mWidth + col];
+            if (max ? lastValue > value : lastValue < value) break;
+            count--;
+        }
+        queue[queueBase + (head[col] + count) % mWindowLength] = row;
+        size[col] = count + 1;
+    }
+
+    /**
+     * Returns column {@code col} of the row added {@code age} rows ago, 0 for the newest.
+     */
+    public float get(int age, int col) {
+        if (age < 0 || age >= mCount || col < 0 || col >= mWidth) {
+            throw new IndexOutOfBoundsException("age " + age + ", column " + col);
+        }
+        final int row = (mNext - 1 - age + mWindowLength) % mWindowLength;
+        return mHistory[row * mWidth + col];
+    }
+
+    /**
+     * Writes the mean of every column into {@code out}.
+     */
+    public void getMean(float[] out) {
+        checkOutput(out);
+        for (int col = 0; col < mWidth; col++) {
+            out[col] = (float) mMean[col];
+        }
+    }
+
+    /**
+     * Writes the sample variance of every column into {@code out}, 0 with fewer than two
+     * rows.
+     */
+    public void getVariance(float[] out) {
+        checkOutput(out);
+        for (int col = 0; col < mWidth; col++) {
+            out[col] = (mCount > 1) ? (float) (mM2[col] / (mCount - 1)) : 0;
+        }
+    }
+
+    /**
+     * Writes the minimum of every column into {@code out}, NaN while the window is empty.
+     */
+    public void getMin(float[] out) {
+        getExtreme(mMinQueue, mMinHead, out);
+    }
+
+    /**
+     * Writes the maximum of every column into {@code out}, NaN while the window is empty.
+     */
+    public void getMax(float[] out) {
+        getExtreme(mMaxQueue, mMaxHead, out);
+    }
+
+    private void getExtreme(int[] queue, int[] head, float[] out) {
+        checkOutput(out);
+        for (int col = 0; col < mWidth; col++) {
+            out[col] = (mCount == 0) ? Float.NaN
+                    : mHistory[queue[col * mWindowLength + head[col]] * mWidth + col];
+        }
+    }
+
+    private void checkOutput(float[] out) {
+        if (out.length < mWidth) {
+            throw new IllegalArgumentException("Output needs " + mWidth + " entries, has "
+                    + out.length);
+        }
+    }
+}
@@ -37,21 +37,39 @@ import android.content.Context;
 import android.os.Handler;
 import android.os.Binder;
 import android.os.IBinder;
-import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.os.SystemClock;
+import android.system.ErrnoException;
 import android.util.Log;
 import android.content.ServiceConnection;
 import android.content.ComponentName;
 import android.content.Intent;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class QtiWifiManager {
     private static final String TAG = "QtiWifiManager";
+
+    /**
+     * Runs csi callbacks directly on the binder thread delivering them, for clients that do
+     * their own hand-off and want to avoid any scheduling latency.
+     */
+    public static final Executor DIRECT_EXECUTOR = Runnable::run;
     private static ApplicationBinderCallback mApplicationCallback = null;
     private static Context mContext;
     private static boolean mServiceAlreadyBound = false;
     private static IQtiWifiManager mUniqueInstance = null;
     IQtiWifiManager mService;
+    private final HashMap<CsiRingCallback, CsiRingCallbackProxy> mRingCallbackProxies =
+            new HashMap<>();
+    private final HashMap<CsiCallback, CsiCallbackProxy> mCallbackProxies = new HashMap<>();
+    /* Identifies the capture request of each callback started with startCsi to the service */
+    private final HashMap<CsiCallback, IBinder> mCaptureTokens = new HashMap<>();
 
     private QtiWifiManager(Context context, IQtiWifiManager service) {
         mContext = context;
@@ -120,42 +138,473 @@ public class QtiWifiManager {
      */
     public interface CsiCallback {
         public abstract void onCsiUpdate(byte[] info);
+
+        /**
+         * Like {@link #onCsiUpdate(byte[])}, also passing when the frame was received from
+         * the HAL, in SystemClock.elapsedRealtimeNanos(). Frames delivered without a service
+         * timestamp carry the time they reached this process.
+         */
+        default void onCsiUpdate(byte[] info, long timestampNanos) {
+            onCsiUpdate(info);
+        }
+
+        /**
+         * The service changed how frames are delivered because this callback fell behind,
+         * see {@link CsiSubscriptionConfig.Builder#setFlowControl}.
+         *
+         * @param mode CsiSubscriptionConfig.DELIVERY_MODE_ value
+         */
+        default void onCsiDeliveryModeChanged(int mode) {
+        }
+
+        /**
+         * New features were computed for a peer, for callbacks registered with a config
+         * setting {@link CsiSubscriptionConfig.Builder#setFeatures}.
+         */
+        default void onCsiFeatures(CsiFeatures features) {
+        }
+
+        /**
+         * A session started with {@link QtiWifiManager#startCsiSession} ended, after all its
+         * frames were delivered or written.
+         *
+         * @param reason CsiSessionConfig.END_REASON_ value
+         */
+        default void onCsiSessionEnded(int reason, long frameCount, long byteCount) {
+        }
     }
 
     /**
-     * Callback proxy for CsiCallback objects.
-     *
+     * Callback for csi frames delivered through a shared memory ring buffer, see
+     * {@link QtiWifiManager#registerCsiRingBufferCallback}.
      */
+    public interface CsiRingCallback {
+        /**
+         * New frames are available. Drain them with {@link CsiRingBufferReader#readFrame}
+         * until it returns -1.
+         */
+        public abstract void onCsiAvailable(CsiRingBufferReader reader);
 
-    private static class CsiCallbackProxy extends ICsiCallback.Stub {
-        private final Handler mHandler;
+        /**
+         * Same as {@link CsiCallback#onCsiDeliveryModeChanged}.
+         */
+        default void onCsiDeliveryModeChanged(int mode) {
+        }
+    }
+
+    /**
+     * Base for the ICsiCallback implementations, ignoring the deliveries a proxy does not use.
+     * Proxies acknowledge each delivery once it was handled, which the service uses for flow
+     * control.
+     */
+    private abstract static class AbstractCsiCallbackProxy extends ICsiCallback.Stub {
+        private final IQtiWifiManager mService;
+        private final int mCallbackIdentifier;
+
+        AbstractCsiCallbackProxy(IQtiWifiManager service, int callbackIdentifier) {
+            mService = service;
+            mCallbackIdentifier = callbackIdentifier;
+        }
+
+        void ackDelivery(long deliveryCount) {
+            try {
+                mService.ackCsiDelivery(mCallbackIdentifier, deliveryCount);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Failed to acknowledge csi delivery: " + e);
+            }
+        }
+
+        @Override
+        public void onCsiUpdate(byte[] info) throws RemoteException {
+        }
+
+        @Override
+        public void onCsiBatch(CsiBatch batch) throws RemoteException {
+        }
+
+        @Override
+        public void onCsiRingUpdate(long writePosition) throws RemoteException {
+        }
+
+        @Override
+        public void onCsiDeliveryModeChanged(int mode) throws RemoteException {
+        }
+
+        @Override
+        public void onCsiFeatures(CsiFeatures features) throws RemoteException {
+        }
+
+        @Override
+        public void onCsiSessionEnded(int reason, long frameCount, long byteCount)
+                throws RemoteException {
+        }
+    }
+
+    /**
+     * Callback proxy for CsiCallback objects. Deliveries are queued without locking and
+     * drained by a single task on the executor, which is scheduled again only once it has
+     * emptied the queue, so a burst of deliveries costs one hand-off. Other events go
+     * through the same queue to keep their order with the frames.
+     */
+    private static class CsiCallbackProxy extends AbstractCsiCallbackProxy {
+        private final Executor mExecutor;
         private final CsiCallback mCallback;
+        /* CsiBatch deliveries and Runnable events, in arrival order */
+        private final ConcurrentLinkedQueue<Object> mPending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
+        private final Runnable mDrain = this::drain;
+        /* Only used by the drain task, which never runs concurrently with itself */
+        private final CsiCodec.Decoder mDecoder;
+        private long mDrainedCount;
+        /* Latency from HAL receipt to the callback being run */
+        private final CsiLatencyHistogram mLatency = new CsiLatencyHistogram();
 
-        CsiCallbackProxy(Looper looper, CsiCallback callback) {
-            mHandler = new Handler(looper);
+        CsiCallbackProxy(Executor executor, CsiCallback callback, CsiSubscriptionConfig config,
+                IQtiWifiManager service) {
+            super(service, callback.hashCode());
+            mExecutor = executor;
             mCallback = callback;
+            mDecoder = (config.getEncodingBitDepth() != 0) ? new CsiCodec.Decoder() : null;
         }
 
         @Override
         public void onCsiUpdate(byte[] info) throws RemoteException {
-            mHandler.post(() -> {
-                mCallback.onCsiUpdate(info);
+            // Frames delivered one at a time carry no service timestamp.
+            CsiBatch batch = new CsiBatch();
+            batch.addFrame(info, 0, info.length, SystemClock.elapsedRealtimeNanos());
+            mPending.offer(batch);
+            schedule();
+        }
+
+        @Override
+        public void onCsiBatch(CsiBatch batch) throws RemoteException {
+            mPending.offer(batch);
+            schedule();
+        }
+
+        @Override
+        public void onCsiDeliveryModeChanged(int mode) throws RemoteException {
+            mPending.offer((Runnable) () -> {
+                mCallback.onCsiDeliveryModeChanged(mode);
+            });
+            schedule();
+        }
+
+        @Override
+        public void onCsiFeatures(CsiFeatures features) throws RemoteException {
+            mPending.offer((Runnable) () -> {
+                mCallback.onCsiFeatures(features);
+            });
+            schedule();
+        }
+
+        @Override
+        public void onCsiSessionEnded(int reason, long frameCount, long byteCount)
+                throws RemoteException {
+            mPending.offer((Runnable) () -> {
+                mCallback.onCsiSessionEnded(reason, frameCount, byteCount);
+            });
+            schedule();
+        }
+
+        private void schedule() {
+            if (mScheduled.compareAndSet(false, true)) {
+                mExecutor.execute(mDrain);
+            }
+        }
+
+        private void drain() {
+            do {
+                Object pending;
+                while ((pending = mPending.poll()) != null) {
+                    if (pending instanceof CsiBatch) {
+                        deliver((CsiBatch) pending);
+                        mDrainedCount++;
+                    } else {
+                        ((Runnable) pending).run();
+                    }
+                }
+                ackDelivery(mDrainedCount);
+                mScheduled.set(false);
+                // A delivery queued after the last poll but before the flag was cleared
+                // found the task still scheduled; pick it up here.
+            } while (!mPending.isEmpty() && mScheduled.compareAndSet(false, true));
+        }
+
+        private void deliver(CsiBatch batch) {
+            final int count = batch.getFrameCount();
+            for (int i = 0; i < count; i++) {
+                byte[] frame = (mDecoder != null) ? decode(batch, i) : batch.copyFrame(i);
+                if (frame != null) {
+                    final long timestampNanos = batch.getTimestampNanos(i);
+                    mLatency.record(SystemClock.elapsedRealtimeNanos() - timestampNanos);
+                    mCallback.onCsiUpdate(frame, timestampNanos);
+                }
+            }
+        }
+
+        private byte[] decode(CsiBatch batch, int index) {
+            final byte[] data = batch.getData();
+            final int offset = batch.getFrameOffset(index);
+            final int length = batch.getFrameLength(index);
+            if (length < CsiCodec.PREFIX_SIZE) return null;
+            final int decodedLength = CsiCodec.getDecodedLength(data, offset);
+            // Every encoded byte yields at most two decoded ones.
+            if (decodedLength < 0 || decodedLength > 2 * length) return null;
+            byte[] frame = new byte[decodedLength];
+            if (mDecoder.decode(data, offset, length, frame, 0) < 0) {
+                Log.w(TAG, "Dropping csi frame that could not be decoded");
+                return null;
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * Callback proxy for CsiRingCallback objects. Doorbells arriving while the drain task is
+     * scheduled or running are folded into it. Other events are run by the same task, after
+     * the frames announced before them.
+     */
+    private static class CsiRingCallbackProxy extends AbstractCsiCallbackProxy {
+        private final Executor mExecutor;
+        private final CsiRingCallback mCallback;
+        private final ConcurrentLinkedQueue<Runnable> mEvents = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
+        private final Runnable mDrain = this::drain;
+        private volatile CsiRingBufferReader mReader;
+        /* Reader to be closed by the drain task once no callback can be using it */
+        private volatile CsiRingBufferReader mClosedReader;
+        /* Doorbells received, written by the binder thread only */
+        private volatile long mUpdateCount;
+
+        CsiRingCallbackProxy(Executor executor, CsiRingCallback callback,
+                IQtiWifiManager service) {
+            super(service, callback.hashCode());
+            mExecutor = executor;
+            mCallback = callback;
+        }
+
+        void setReader(CsiRingBufferReader reader) {
+            mReader = reader;
+        }
+
+        /**
+         * Stops notifications and closes the reader from the drain task, after any callback
+         * already scheduled.
+         */
+        void close() {
+            final CsiRingBufferReader reader = mReader;
+            mReader = null;
+            if (reader != null) {
+                mClosedReader = reader;
+                schedule();
+            }
+        }
+
+        @Override
+        public void onCsiRingUpdate(long writePosition) throws RemoteException {
+            CsiRingBufferReader reader = mReader;
+            if (reader == null) return;
+            reader.onWritePosition(writePosition);
+            mUpdateCount++;
+            schedule();
+        }
+
+        @Override
+        public void onCsiDeliveryModeChanged(int mode) throws RemoteException {
+            mEvents.offer(() -> {
+                mCallback.onCsiDeliveryModeChanged(mode);
             });
+            schedule();
+        }
+
+        private void schedule() {
+            if (mScheduled.compareAndSet(false, true)) {
+                mExecutor.execute(mDrain);
+            }
+        }
+
+        private void drain() {
+            long updateCount;
+            do {
+                updateCount = mUpdateCount;
+                CsiRingBufferReader reader = mReader;
+                if (reader != null && reader.hasFrames()) {
+                    mCallback.onCsiAvailable(reader);
+                }
+                ackDelivery(updateCount);
+                Runnable event;
+                while ((event = mEvents.poll()) != null) {
+                    event.run();
+                }
+                CsiRingBufferReader closed = mClosedReader;
+                if (closed != null) {
+                    mClosedReader = null;
+                    closed.close();
+                }
+                mScheduled.set(false);
+            } while ((mUpdateCount != updateCount || mClosedReader != null
+                    || !mEvents.isEmpty()) && mScheduled.compareAndSet(false, true));
         }
     }
 
+    /**
+     * Returns an executor posting to {@code handler}, or to the main looper if it is null.
+     */
+    private static Executor toExecutor(Handler handler) {
+        return (handler == null) ? mContext.getMainExecutor() : handler::post;
+    }
+
     public void registerCsiCallback(CsiCallback callback, Handler handler) {
+        registerCsiCallback(callback, handler, new CsiSubscriptionConfig.Builder().build());
+    }
+
+    /**
+     * Register a callback for csi events with the given delivery options.
+     *
+     * @param callback Callback for csi events
+     * @param handler Handler on whose thread the callback runs, main looper if null
+     * @param config Delivery options, see {@link CsiSubscriptionConfig}
+     * @return false if the service could not register the callback
+     */
+    public boolean registerCsiCallback(CsiCallback callback, Handler handler,
+            CsiSubscriptionConfig config) {
+        return registerCsiCallback(toExecutor(handler), callback, config);
+    }
+
+    /**
+     * Register a callback for csi events run on the given executor. Frames arriving while the
+     * executor is busy are handed over together, in order.
+     *
+     * @param executor Executor running the callback, {@link #DIRECT_EXECUTOR} to run it on the
+     *        binder thread
+     * @param callback Callback for csi events
+     * @param config Delivery options, see {@link CsiSubscriptionConfig}
+     * @return false if the service could not register the callback
+     */
+    public boolean registerCsiCallback(Executor executor, CsiCallback callback,
+            CsiSubscriptionConfig config) {
+        if (executor == null) throw new IllegalArgumentException("executor cannot be null");
         if (callback == null) throw new IllegalArgumentException("callback cannot be null");
-        Log.v(TAG, "registerCsiCallback: callback=" + callback + ", handler=" + handler);
+        if (config == null) throw new IllegalArgumentException("config cannot be null");
+        Log.v(TAG, "registerCsiCallback: callback=" + callback + ", executor=" + executor
+                + ", config=" + config);
 
-        Looper looper = (handler == null) ? mContext.getMainLooper() : handler.getLooper();
         Binder binder = new Binder();
+        CsiCallbackProxy proxy = new CsiCallbackProxy(executor, callback, config, mService);
         try {
-            mService.registerCsiCallback(binder, new CsiCallbackProxy(looper, callback),
-                    callback.hashCode());
+            if (!mService.registerCsiCallbackWithConfig(binder, proxy, callback.hashCode(),
+                    config.withFlowControl())) {
+                Log.e(TAG, "registerCsiCallback: service rejected the callback");
+                return false;
+            }
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
+        synchronized (mCallbackProxies) {
+            mCallbackProxies.put(callback, proxy);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the latencies from the service receiving a frame from the HAL until
+     * {@code callback} was run with it, or null if the callback is not registered. The
+     * histogram is live and may be read from any thread.
+     */
+    public CsiLatencyHistogram getCsiLatency(CsiCallback callback) {
+        synchronized (mCallbackProxies) {
+            CsiCallbackProxy proxy = mCallbackProxies.get(callback);
+            return (proxy != null) ? proxy.mLatency : null;
+        }
+    }
+
+    /**
+     * Register a callback for csi frames delivered through a shared memory ring buffer instead
+     * of binder transactions. Frames are written in place by the service and binder only
+     * carries a notification, so this suits clients consuming every frame at full rate.
+     *
+     * @param callback Callback notified when frames are available
+     * @param handler Handler on whose thread the callback runs, main looper if null
+     * @param config Delivery options; {@link CsiSubscriptionConfig#getSharedMemoryCapacity()}
+     *        must be set. Frames of an encoding config are written to the ring encoded.
+     * @return the reader for the ring buffer, also passed to the callback. It is closed by
+     *         {@link #unregisterCsiRingBufferCallback}.
+     */
+    public CsiRingBufferReader registerCsiRingBufferCallback(CsiRingCallback callback,
+            Handler handler, CsiSubscriptionConfig config) {
+        return registerCsiRingBufferCallback(toExecutor(handler), callback, config);
+    }
+
+    /**
+     * Like {@link #registerCsiRingBufferCallback(CsiRingCallback, Handler,
+     * CsiSubscriptionConfig)}, running the callback on the given executor.
+     *
+     * @param executor Executor running the callback, {@link #DIRECT_EXECUTOR} to run it on the
+     *        binder thread
+     */
+    public CsiRingBufferReader registerCsiRingBufferCallback(Executor executor,
+            CsiRingCallback callback, CsiSubscriptionConfig config) {
+        if (executor == null) throw new IllegalArgumentException("executor cannot be null");
+        if (callback == null) throw new IllegalArgumentException("callback cannot be null");
+        if (config == null || config.getSharedMemoryCapacity() == 0) {
+            throw new IllegalArgumentException("config must set a shared memory capacity");
+        }
+        if (config.getFeatures() != 0) {
+            throw new IllegalArgumentException("features are not delivered through a ring buffer");
+        }
+        Log.v(TAG, "registerCsiRingBufferCallback: callback=" + callback + ", executor="
+                + executor + ", config=" + config);
+
+        CsiRingCallbackProxy proxy = new CsiRingCallbackProxy(executor, callback, mService);
+        SharedMemory sharedMemory;
+        try {
+            sharedMemory = mService.openCsiRingBuffer(new Binder(), proxy, callback.hashCode(),
+                    config.withFlowControl());
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+        if (sharedMemory == null) {
+            Log.e(TAG, "registerCsiRingBufferCallback: service did not provide a ring buffer");
+            return null;
+        }
+        CsiRingBufferReader reader;
+        try {
+            reader = new CsiRingBufferReader(sharedMemory);
+        } catch (ErrnoException e) {
+            Log.e(TAG, "registerCsiRingBufferCallback: failed to map ring buffer " + e);
+            sharedMemory.close();
+            unregisterCsiRingBufferCallback(callback);
+            return null;
+        }
+        proxy.setReader(reader);
+        synchronized (mRingCallbackProxies) {
+            mRingCallbackProxies.put(callback, proxy);
+        }
+        return reader;
+    }
+
+    /**
+     * Unregister a callback registered with {@link #registerCsiRingBufferCallback} and close
+     * its reader.
+     */
+    public void unregisterCsiRingBufferCallback(CsiRingCallback callback) {
+        if (callback == null) throw new IllegalArgumentException("callback cannot be null");
+        Log.v(TAG, "unregisterCsiRingBufferCallback: callback=" + callback);
+
+        try {
+            mService.unregisterCsiCallback(callback.hashCode());
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        } finally {
+            CsiRingCallbackProxy proxy;
+            synchronized (mRingCallbackProxies) {
+                proxy = mRingCallbackProxies.remove(callback);
+            }
+            if (proxy != null) {
+                proxy.close();
+            }
+        }
     }
 
     /**
@@ -169,6 +618,9 @@ public class QtiWifiManager {
         if (callback == null) throw new IllegalArgumentException("callback cannot be null");
         Log.v(TAG, "unregisterCsiCallback: callback=" + callback);
 
+        synchronized (mCallbackProxies) {
+            mCallbackProxies.remove(callback);
+        }
         try {
             mService.unregisterCsiCallback(callback.hashCode());
         } catch (RemoteException e) {
@@ -176,6 +628,65 @@ public class QtiWifiManager {
         }
     }
 
+    /**
+     * Starts a capture session, which the service ends by itself once a limit of
+     * {@code session} is reached and reports through
+     * {@link CsiCallback#onCsiSessionEnded}. The capture runs while any session does, without
+     * calling {@link #startCsi}.
+     *
+     * @param executor Executor running the callback
+     * @param callback Callback for the session; receives the frames unless {@code output} is
+     *        given. Must not be registered for csi events at the same time.
+     * @param session Limits of the session, see {@link CsiSessionConfig}
+     * @param config Selects the frames and how they are delivered or encoded. Features and
+     *        shared memory delivery are not supported.
+     * @param output File the frames are written to in the {@link CsiCaptureFile} format
+     *        instead of being delivered, or null. May be a pipe; the service writes it
+     *        sequentially and closes its copy when the session ends.
+     * @return whether the session started. The callback then counts as registered for
+     *         {@link #getCsiLatency} until {@link #unregisterCsiCallback}.
+     */
+    public boolean startCsiSession(Executor executor, CsiCallback callback,
+            CsiSessionConfig session, CsiSubscriptionConfig config,
+            ParcelFileDescriptor output) {
+        if (executor == null) throw new IllegalArgumentException("executor cannot be null");
+        if (callback == null) throw new IllegalArgumentException("callback cannot be null");
+        if (session == null) throw new IllegalArgumentException("session cannot be null");
+        if (config == null) throw new IllegalArgumentException("config cannot be null");
+        Log.v(TAG, "startCsiSession: callback=" + callback + ", session=" + session
+                + ", config=" + config + ", output=" + output);
+
+        CsiCallbackProxy proxy = new CsiCallbackProxy(executor, callback, config, mService);
+        boolean started;
+        try {
+            started = mService.startCsiSession(new Binder(), proxy, callback.hashCode(), session,
+                    config.withFlowControl(), output);
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+        if (started) {
+            synchronized (mCallbackProxies) {
+                mCallbackProxies.put(callback, proxy);
+            }
+        }
+        return started;
+    }
+
+    /**
+     * Ends a session started with {@link #startCsiSession} before its limits. Frames already
+     * captured are still delivered or written, then the callback is told the session ended.
+     */
+    public void stopCsiSession(CsiCallback callback) {
+        if (callback == null) throw new IllegalArgumentException("callback cannot be null");
+        Log.v(TAG, "stopCsiSession: callback=" + callback);
+
+        try {
+            mService.stopCsiSession(callback.hashCode());
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+    }
+
     /**
      * Run driver command from user space
      */
@@ -190,20 +701,56 @@ public class QtiWifiManager {
     }
 
     public boolean startCsi(CsiCallback callback, Handler handler) {
-        registerCsiCallback(callback, handler);
+        return startCsi(callback, handler, new CsiSubscriptionConfig.Builder().build());
+    }
+
+    public boolean startCsi(CsiCallback callback, Handler handler,
+            CsiSubscriptionConfig config) {
+        return startCsi(toExecutor(handler), callback, config);
+    }
+
+    /**
+     * Registers {@code callback} and requests the csi capture until {@link #stopCsi} is called
+     * with it. The service keeps capturing while any client's request is outstanding, so
+     * clients starting and stopping do not interrupt each other.
+     *
+     * @return false if the service rejected the callback, in which case no capture is
+     *         requested, or if the capture request failed
+     */
+    public boolean startCsi(Executor executor, CsiCallback callback,
+            CsiSubscriptionConfig config) {
+        if (!registerCsiCallback(executor, callback, config)) return false;
+        IBinder token;
+        synchronized (mCaptureTokens) {
+            if (mCaptureTokens.containsKey(callback)) return true;
+            token = new Binder();
+            mCaptureTokens.put(callback, token);
+        }
         try {
-            mService.startCsi();
+            mService.acquireCsiCapture(token);
             return true;
         } catch (RemoteException e) {
             Log.e(TAG, "startCsi: " + e);
+            synchronized (mCaptureTokens) {
+                mCaptureTokens.remove(callback, token);
+            }
             return false;
         }
     }
 
+    /**
+     * Unregisters {@code callback} and withdraws its capture request. The capture stops once
+     * no client needs it.
+     */
     public boolean stopCsi(CsiCallback callback) {
         unregisterCsiCallback(callback);
+        IBinder token;
+        synchronized (mCaptureTokens) {
+            token = mCaptureTokens.remove(callback);
+        }
+        if (token == null) return true;
         try {
-            mService.stopCsi();
+            mService.releaseCsiCapture(token);
             return true;
         } catch (RemoteException e) {
             Log.e(TAG, "stopCsi: " + e);
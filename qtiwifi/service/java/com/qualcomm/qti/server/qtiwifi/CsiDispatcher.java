@@ -0,0 +1,248 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.server.qtiwifi;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.qualcomm.qti.qtiwifi.CsiFrame;
+import com.qualcomm.qti.qtiwifi.CsiSubscriptionConfig;
+
+/**
+ * Fans CSI frames out to every registered {@link CsiSubscriber}.
+ *
+ * The set of subscribers is published as an immutable array so that the HAL callback thread
+ * can walk it without locking or allocating; registration changes copy the array. Along with
+ * it goes a routing table: subscribers filtering on peers are only evaluated for frames of
+ * those peers, found through a {@link CsiLongIntMap}, so their number does not add to the
+ * cost of other peers' frames.
+ */
+public class CsiDispatcher implements CsiSubscriber.DeathListener {
+    private static final String TAG = "CsiDispatcher";
+
+    private static final CsiSubscriber[] NO_SUBSCRIBERS = new CsiSubscriber[0];
+    private static final long[] NO_PEERS = new long[0];
+
+    private final Object mLock = new Object();
+    private final HashMap<Long, CsiSubscriber> mSubscribers = new HashMap<>();
+    private volatile CsiSubscriber[] mSnapshot = NO_SUBSCRIBERS;
+    /* Told about dead subscribers once they are removed */
+    private final CsiSubscriber.DeathListener mDeathListener;
+
+    /**
+     * Immutable routing table built from a snapshot.
+     */
+    private static final class Routes {
+        /* Subscribers without a peer filter */
+        final CsiSubscriber[] anyPeer;
+        /* Index into byPeer of each peer some subscriber filters on */
+        final CsiLongIntMap peerIndex;
+        final CsiSubscriber[][] byPeer;
+
+        Routes(CsiSubscriber[] subscribers) {
+            ArrayList<CsiSubscriber> anyPeerList = new ArrayList<>();
+            HashMap<Long, ArrayList<CsiSubscriber>> byPeerMap = new HashMap<>();
+            for (CsiSubscriber subscriber : subscribers) {
+                final CsiSubscriptionConfig config = subscriber.getConfig();
+                final long[] peerMacs = (config != null) ? config.getPeerMacs() : NO_PEERS;
+                if (peerMacs.length == 0) {
+                    anyPeerList.add(subscriber);
+                    continue;
+                }
+                for (long peerMac : peerMacs) {
+                    ArrayList<CsiSubscriber> list = byPeerMap.get(peerMac);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        byPeerMap.put(peerMac, list);
+                    }
+                    if (!list.contains(subscriber)) {
+                        list.add(subscriber);
+                    }
+                }
+            }
+            anyPeer = anyPeerList.toArray(NO_SUBSCRIBERS);
+            peerIndex = new CsiLongIntMap(byPeerMap.size());
+            byPeer = new CsiSubscriber[byPeerMap.size()][];
+            int index = 0;
+            for (HashMap.Entry<Long, ArrayList<CsiSubscriber>> entry : byPeerMap.entrySet()) {
+                peerIndex.put(entry.getKey(), index);
+                byPeer[index++] = entry.getValue().toArray(NO_SUBSCRIBERS);
+            }
+        }
+    }
+
+    private volatile Routes mRoutes = new Routes(NO_SUBSCRIBERS);
+
+    /* Subscribers evaluated by the last select(), only touched by the HAL callback thread */
+    private CsiSubscriber[] mSelection = NO_SUBSCRIBERS;
+    private CsiSubscriber[] mPeerSelection = NO_SUBSCRIBERS;
+
+    /**
+     * @param deathListener told about each dead subscriber after it was removed
+     */
+    public CsiDispatcher(CsiSubscriber.DeathListener deathListener) {
+        mDeathListener = deathListener;
+    }
+
+    /**
+     * Adds a subscriber, replacing any previous one registered with the same key.
+     * @return number of subscribers after the addition.
+     */
+    public int addSubscriber(CsiSubscriber subscriber) {
+        CsiSubscriber previous;
+        int count;
+        synchronized (mLock) {
+            previous = mSubscribers.put(subscriber.getKey(), subscriber);
+            publishLocked();
+            count = mSubscribers.size();
+        }
+        if (previous != null) {
+            previous.stop();
+        }
+        subscriber.start(this);
+        return count;
+    }
+
+    /**
+     * Removes and stops the subscriber registered with the given key.
+     * @return the removed subscriber, or null if none was registered.
+     */
+    public CsiSubscriber removeSubscriber(long key) {
+        CsiSubscriber removed;
+        synchronized (mLock) {
+            removed = mSubscribers.remove(key);
+            if (removed == null) return null;
+            publishLocked();
+        }
+        removed.stop();
+        return removed;
+    }
+
+    /**
+     * Removes and stops {@code subscriber} if it is still the one registered with its key.
+     * @return whether it was removed.
+     */
+    public boolean removeSubscriber(CsiSubscriber subscriber) {
+        synchronized (mLock) {
+            if (mSubscribers.get(subscriber.getKey()) != subscriber) return false;
+            mSubscribers.remove(subscriber.getKey());
+            publishLocked();
+        }
+        subscriber.stop();
+        return true;
+    }
+
+    private void publishLocked() {
+        mSnapshot = mSubscribers.values().toArray(NO_SUBSCRIBERS);
+        mRoutes = new Routes(mSnapshot);
+    }
+
+    /**
+     * Returns the subscriber registered with the given key, or null.
+     */
+    public CsiSubscriber getSubscriber(long key) {
+        synchronized (mLock) {
+            return mSubscribers.get(key);
+        }
+    }
+
+    public boolean hasSubscribers() {
+        return mSnapshot.length != 0;
+    }
+
+    /**
+     * Returns the current subscribers. The returned array must not be modified.
+     */
+    public CsiSubscriber[] getSubscribers() {
+        return mSnapshot;
+    }
+
+    /**
+     * Runs the filters of the subscribers that may want an incoming frame against its header,
+     * so that frames nobody wants are dropped before they are copied out of the HAL.
+     * @return true if at least one subscriber accepted the frame.
+     */
+    public boolean select(CsiFrame header, long nowNanos) {
+        final Routes routes = mRoutes;
+        CsiSubscriber[] peerSubscribers = NO_SUBSCRIBERS;
+        if (routes.byPeer.length != 0 && header.isValid()) {
+            final int index = routes.peerIndex.get(header.getPeerMac());
+            if (index != CsiLongIntMap.NO_VALUE) {
+                peerSubscribers = routes.byPeer[index];
+            }
+        }
+        final boolean any = select(routes.anyPeer, header, nowNanos)
+                | select(peerSubscribers, header, nowNanos);
+        mSelection = routes.anyPeer;
+        mPeerSelection = peerSubscribers;
+        return any;
+    }
+
+    private static boolean select(CsiSubscriber[] subscribers, CsiFrame header, long nowNanos) {
+        boolean any = false;
+        for (int i = 0; i < subscribers.length; i++) {
+            any |= subscribers[i].select(header, nowNanos);
+        }
+        return any;
+    }
+
+    /**
+     * Queues the frame on every subscriber that accepted it in the preceding
+     * {@link #select}. The caller keeps its own reference to the frame.
+     */
+    public void dispatch(CsiFrameBuffer frame) {
+        dispatch(mSelection, frame);
+        dispatch(mPeerSelection, frame);
+        mSelection = NO_SUBSCRIBERS;
+        mPeerSelection = NO_SUBSCRIBERS;
+    }
+
+    private static void dispatch(CsiSubscriber[] subscribers, CsiFrameBuffer frame) {
+        for (int i = 0; i < subscribers.length; i++) {
+            if (subscribers[i].isSelected()) {
+                subscribers[i].enqueue(frame);
+            }
+        }
+    }
+
+    @Override
+    public void onSubscriberDied(CsiSubscriber subscriber) {
+        if (removeSubscriber(subscriber)) {
+            Log.i(TAG, "Removed dead subscriber uid=" + subscriber.getUid());
+            mDeathListener.onSubscriberDied(subscriber);
+        }
+    }
+}
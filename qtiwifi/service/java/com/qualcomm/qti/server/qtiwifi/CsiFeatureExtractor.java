@@ -0,0 +1,391 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.server.qtiwifi;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import com.qualcomm.qti.qtiwifi.CsiFeatures;
+import com.qualcomm.qti.qtiwifi.CsiFrame;
+import com.qualcomm.qti.qtiwifi.CsiMatrix;
+import com.qualcomm.qti.qtiwifi.CsiWindowStats;
+
+/**
+ * Derives {@link CsiFeatures} per peer from a stream of frames.
+ *
+ * Frames of a peer are collected into windows of {@link CsiFeatures#UPDATE_INTERVAL_MILLIS};
+ * a window is closed, and its features returned, by the first frame after it. The amplitude
+ * of each subcarrier, averaged over the chains, is accumulated with Welford's method. The
+ * mean amplitude of each window feeds a series of {@link #SERIES_LENGTH} windows whose
+ * spectrum gives the breathing band energy. The same amplitudes also feed a
+ * {@link CsiWindowStats} per peer for every window length set with
+ * {@link #setWindowLengths}. For {@link CsiFeatures#FEATURE_DOPPLER_SPECTROGRAM} the per-chain
+ * amplitudes of the last {@link CsiFeatures#SPECTROGRAM_FRAMES} frames are kept and turned
+ * into a tile by {@link CsiSpectrogram} on the given pool.
+ *
+ * Not thread safe; used by the feature stage's worker only.
+ */
+public class CsiFeatureExtractor {
+    /* Windows kept per peer for the breathing band, 12.8 s at 10 windows per second */
+    static final int SERIES_LENGTH = 128;
+    /* Peers tracked at once; the least recently seen one is replaced beyond that */
+    static final int MAX_PEERS = 32;
+
+    private static final long UPDATE_INTERVAL_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(CsiFeatures.UPDATE_INTERVAL_MILLIS);
+    /* A peer silent for this long starts over instead of closing a stale window */
+    private static final long STALE_NANOS = 10 * UPDATE_INTERVAL_NANOS;
+
+    private static final double WINDOW_RATE_HZ = 1000.0 / CsiFeatures.UPDATE_INTERVAL_MILLIS;
+    private static final double BREATHING_LOW_HZ = 0.1;
+    private static final double BREATHING_HIGH_HZ = 0.5;
+    private static final int BAND_FIRST_BIN =
+            (int) Math.ceil(BREATHING_LOW_HZ * SERIES_LENGTH / WINDOW_RATE_HZ);
+    private static final int BAND_LAST_BIN =
+            (int) Math.floor(BREATHING_HIGH_HZ * SERIES_LENGTH / WINDOW_RATE_HZ);
+    /* cos and sin of 2 pi n / SERIES_LENGTH, the DFT twiddles of every bin */
+    private static final float[] COS = new float[SERIES_LENGTH];
+    private static final float[] SIN = new float[SERIES_LENGTH];
+
+    static {
+        for (int n = 0; n < SERIES_LENGTH; n++) {
+            COS[n] = (float) Math.cos(2 * Math.PI * n / SERIES_LENGTH);
+            SIN[n] = (float) Math.sin(2 * Math.PI * n / SERIES_LENGTH);
+        }
+    }
+
+    private static final int[] NO_LENGTHS = new int[0];
+    private static final CsiWindowStats[] NO_WINDOW_STATS = new CsiWindowStats[0];
+
+    private static final class PeerState {
+        final int subcarrierCount;
+        long windowStartNanos;
+        long lastNanos;
+        int frameCount;
+        final double[] mean;
+        final double[] m2;
+        double amplitudeSum;
+        /* Mean amplitude of the last windows, a ring starting at seriesPosition */
+        final float[] series = new float[SERIES_LENGTH];
+        int seriesPosition;
+        int seriesCount;
+        /* Rolling statistics for the extractor's window lengths, in the same order */
+        int[] windowLengths = NO_LENGTHS;
+        CsiWindowStats[] windowStats = NO_WINDOW_STATS;
+        /*
+         * Per-chain amplitudes and receive times of the last SPECTROGRAM_FRAMES frames, a
+         * ring written at historyPosition; allocated once the spectrogram is asked for
+         */
+        float[] history;
+        long[] historyNanos;
+        int historyChains;
+        int historyPosition;
+        int historyCount;
+
+        PeerState(int subcarrierCount, long nowNanos) {
+            this.subcarrierCount = subcarrierCount;
+            mean = new double[subcarrierCount];
+            m2 = new double[subcarrierCount];
+            windowStartNanos = nowNanos;
+            lastNanos = nowNanos;
+        }
+
+        void startWindow(long nowNanos) {
+            windowStartNanos = nowNanos;
+            frameCount = 0;
+            amplitudeSum = 0;
+            Arrays.fill(mean, 0);
+            Arrays.fill(m2, 0);
+        }
+    }
+
+    private final HashMap<Long, PeerState> mPeers = new HashMap<>();
+    private final CsiFrame mFrame = new CsiFrame();
+    private final CsiMatrix mMatrix = new CsiMatrix();
+    private float[] mAmplitude = new float[0];
+    /* Chain averaged amplitude of the current frame, one per subcarrier */
+    private float[] mRow = new float[0];
+    private int[] mWindowLengths = NO_LENGTHS;
+    /* Window statistics of the last closed window, one per window length */
+    private CsiFeatures[] mWindowResults = new CsiFeatures[0];
+    private final float[] mCentered = new float[SERIES_LENGTH];
+    private final CsiSpectrogram mSpectrogram;
+
+    /**
+     * @param pool runs the spectrogram transforms
+     */
+    public CsiFeatureExtractor(ForkJoinPool pool) {
+        mSpectrogram = new CsiSpectrogram(pool, CsiFeatures.SPECTROGRAM_FRAMES,
+                CsiFeatures.SPECTROGRAM_GROUP_SUBCARRIERS);
+    }
+
+    /**
+     * Adds a frame.
+     *
+     * @param features CsiFeatures.FEATURE_ bits to compute for a closed window
+     * @return the features of the peer's previous window if this frame closed it, else null.
+     */
+    public CsiFeatures process(byte[] data, int length, long timestampNanos, int features) {
+        mFrame.wrap(data, 0, length);
+        if (!mFrame.isValid()) return null;
+        final int chains = mFrame.getChainCount();
+        final int subcarriers = mFrame.getSubcarrierCount();
+        if (chains == 0 || subcarriers == 0) return null;
+
+        final long peerMac = mFrame.getPeerMac();
+        PeerState peer = mPeers.get(peerMac);
+        if (peer == null || peer.subcarrierCount != subcarriers
+                || timestampNanos - peer.lastNanos >= STALE_NANOS) {
+            peer = newPeer(peerMac, subcarriers, timestampNanos);
+        }
+        CsiFeatures result = null;
+        if (timestampNanos - peer.windowStartNanos >= UPDATE_INTERVAL_NANOS
+                && peer.frameCount > 0) {
+            result = finishWindow(peerMac, peer, features);
+            peer.startWindow(timestampNanos);
+        }
+        addFrame(peer, chains, subcarriers, timestampNanos, features);
+        peer.lastNanos = timestampNanos;
+        return result;
+    }
+
+    /**
+     * Sets the window lengths, in frames, of the rolling statistics kept per peer for
+     * {@link CsiFeatures#FEATURE_WINDOW_STATS}. Peers keep the statistics of lengths they
+     * already had and start the others empty.
+     *
+     * @param lengths distinct lengths in ascending order
+     */
+    public void setWindowLengths(int[] lengths) {
+        mWindowLengths = lengths;
+        mWindowResults = new CsiFeatures[lengths.length];
+    }
+
+    /**
+     * Returns the features last returned by {@link #process} with the window statistics over
+     * {@code frames} frames added, or null if they were not computed for that window.
+     */
+    public CsiFeatures getWindowStatsUpdate(int frames) {
+        final int index = Arrays.binarySearch(mWindowLengths, frames);
+        return (index >= 0) ? mWindowResults[index] : null;
+    }
+
+    /**
+     * Returns the number of peers currently tracked.
+     */
+    public int getPeerCount() {
+        return mPeers.size();
+    }
+
+    private PeerState newPeer(long peerMac, int subcarriers, long nowNanos) {
+        if (!mPeers.containsKey(peerMac) && mPeers.size() >= MAX_PEERS) {
+            Iterator<HashMap.Entry<Long, PeerState>> it = mPeers.entrySet().iterator();
+            HashMap.Entry<Long, PeerState> oldest = null;
+            while (it.hasNext()) {
+                HashMap.Entry<Long, PeerState> entry = it.next();
+                if (oldest == null || entry.getValue().lastNanos < oldest.getValue().lastNanos) {
+                    oldest = entry;
+                }
+            }
+            mPeers.remove(oldest.getKey());
+        }
+        PeerState peer = new PeerState(subcarriers, nowNanos);
+        mPeers.put(peerMac, peer);
+        return peer;
+    }
+
+    private void addFrame(PeerState peer, int chains, int subcarriers, long timestampNanos,
+            int features) {
+        mMatrix.load(mFrame);
+        if (mAmplitude.length < mMatrix.size()) {
+            mAmplitude = new float[mMatrix.size()];
+        }
+        mMatrix.amplitude(mAmplitude);
+        if (mRow.length < subcarriers) {
+            mRow = new float[subcarriers];
+        }
+        final int n = ++peer.frameCount;
+        double frameSum = 0;
+        for (int s = 0; s < subcarriers; s++) {
+            float amplitude = 0;
+            for (int c = 0; c < chains; c++) {
+                amplitude += mAmplitude[c * subcarriers + s];
+            }
+            amplitude /= chains;
+            mRow[s] = amplitude;
+            final double delta = amplitude - peer.mean[s];
+            peer.mean[s] += delta / n;
+            peer.m2[s] += delta * (amplitude - peer.mean[s]);
+            frameSum += amplitude;
+        }
+        peer.amplitudeSum += frameSum / subcarriers;
+
+        if (peer.windowLengths != mWindowLengths) {
+            updateWindowStats(peer);
+        }
+        for (CsiWindowStats stats : peer.windowStats) {
+            stats.add(mRow, 0);
+        }
+
+        if ((features & CsiFeatures.FEATURE_DOPPLER_SPECTROGRAM) != 0) {
+            addHistory(peer, chains, subcarriers, timestampNanos);
+        }
+    }
+
+    private void addHistory(PeerState peer, int chains, int subcarriers, long timestampNanos) {
+        final int rowLength = chains * subcarriers;
+        if (peer.history == null || peer.historyChains != chains) {
+            peer.history = new float[CsiFeatures.SPECTROGRAM_FRAMES * rowLength];
+            peer.historyNanos = new long[CsiFeatures.SPECTROGRAM_FRAMES];
+            peer.historyChains = chains;
+            peer.historyPosition = 0;
+            peer.historyCount = 0;
+        }
+        System.arraycopy(mAmplitude, 0, peer.history, peer.historyPosition * rowLength,
+                rowLength);
+        peer.historyNanos[peer.historyPosition] = timestampNanos;
+        peer.historyPosition = (peer.historyPosition + 1) % CsiFeatures.SPECTROGRAM_FRAMES;
+        peer.historyCount = Math.min(peer.historyCount + 1, CsiFeatures.SPECTROGRAM_FRAMES);
+    }
+
+    /**
+     * Sets the peer's spectrogram tile if its history is full.
+     */
+    private void addSpectrogram(PeerState peer, CsiFeatures result) {
+        if (peer.historyCount < CsiFeatures.SPECTROGRAM_FRAMES) return;
+        final int oldest = peer.historyPosition;
+        final int newest = (oldest + CsiFeatures.SPECTROGRAM_FRAMES - 1)
+                % CsiFeatures.SPECTROGRAM_FRAMES;
+        final long spanNanos = peer.historyNanos[newest] - peer.historyNanos[oldest];
+        if (spanNanos <= 0) return;
+        byte[] tile = new byte[mSpectrogram.getGroupCount(peer.subcarrierCount)
+                * CsiFeatures.SPECTROGRAM_BINS];
+        final float peakDb = mSpectrogram.compute(peer.history, oldest, peer.historyChains,
+                peer.subcarrierCount, tile);
+        // Bins are the frame rate over the FFT size apart.
+        final double frameRateHz = (CsiFeatures.SPECTROGRAM_FRAMES - 1) * 1e9 / spanNanos;
+        result.setSpectrogram(tile, peakDb,
+                (float) (frameRateHz / CsiFeatures.SPECTROGRAM_FRAMES));
+    }
+
+    private void updateWindowStats(PeerState peer) {
+        CsiWindowStats[] stats = new CsiWindowStats[mWindowLengths.length];
+        for (int i = 0; i < stats.length; i++) {
+            final int previous = Arrays.binarySearch(peer.windowLengths, mWindowLengths[i]);
+            stats[i] = (previous >= 0) ? peer.windowStats[previous]
+                    : new CsiWindowStats(mWindowLengths[i], peer.subcarrierCount);
+        }
+        peer.windowLengths = mWindowLengths;
+        peer.windowStats = stats;
+    }
+
+    private CsiFeatures finishWindow(long peerMac, PeerState peer, int features) {
+        CsiFeatures result = new CsiFeatures(peerMac, peer.lastNanos, peer.frameCount);
+        final int subcarriers = peer.subcarrierCount;
+        final int n = peer.frameCount;
+        if ((features & (CsiFeatures.FEATURE_AMPLITUDE_VARIANCE
+                | CsiFeatures.FEATURE_MOTION_SCORE)) != 0) {
+            float[] variance = new float[subcarriers];
+            double motion = 0;
+            for (int s = 0; s < subcarriers; s++) {
+                variance[s] = (n > 1) ? (float) (peer.m2[s] / (n - 1)) : 0;
+                final double mean = peer.mean[s];
+                if (mean > 0) {
+                    motion += variance[s] / (mean * mean);
+                }
+            }
+            if ((features & CsiFeatures.FEATURE_AMPLITUDE_VARIANCE) != 0) {
+                result.setAmplitudeVariance(variance);
+            }
+            if ((features & CsiFeatures.FEATURE_MOTION_SCORE) != 0) {
+                result.setMotionScore((float) (motion / subcarriers));
+            }
+        }
+
+        peer.series[peer.seriesPosition] = (float) (peer.amplitudeSum / n);
+        peer.seriesPosition = (peer.seriesPosition + 1) % SERIES_LENGTH;
+        peer.seriesCount = Math.min(peer.seriesCount + 1, SERIES_LENGTH);
+        if ((features & CsiFeatures.FEATURE_BREATHING_ENERGY) != 0) {
+            result.setBreathingEnergy(breathingEnergy(peer));
+        }
+        if ((features & CsiFeatures.FEATURE_DOPPLER_SPECTROGRAM) != 0) {
+            addSpectrogram(peer, result);
+        }
+        final boolean windowStats = (features & CsiFeatures.FEATURE_WINDOW_STATS) != 0
+                && peer.windowLengths == mWindowLengths;
+        for (int i = 0; i < mWindowResults.length; i++) {
+            mWindowResults[i] = windowStats ? result.withWindowStats(peer.windowStats[i]) : null;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the share of the series' energy, its mean removed, in the breathing band bins
+     * of its DFT, or NaN while the series is not full yet.
+     */
+    private float breathingEnergy(PeerState peer) {
+        if (peer.seriesCount < SERIES_LENGTH) return Float.NaN;
+        double mean = 0;
+        for (float value : peer.series) {
+            mean += value;
+        }
+        mean /= SERIES_LENGTH;
+        double energy = 0;
+        for (int i = 0; i < SERIES_LENGTH; i++) {
+            // Chronological order, oldest first.
+            final float value =
+                    (float) (peer.series[(peer.seriesPosition + i) % SERIES_LENGTH] - mean);
+            mCentered[i] = value;
+            energy += value * value;
+        }
+        if (energy == 0) return 0;
+        double band = 0;
+        for (int k = BAND_FIRST_BIN; k <= BAND_LAST_BIN; k++) {
+            double re = 0;
+            double im = 0;
+            int phase = 0;
+            for (int i = 0; i < SERIES_LENGTH; i++) {
+                re += mCentered[i] * COS[phase];
+                im -= mCentered[i] * SIN[phase];
+                phase = (phase + k) % SERIES_LENGTH;
+            }
+            band += re * re + im * im;
+        }
+        // Parseval: the bins sum to N times the energy; each band bin has a negative twin.
+        return (float) Math.min(1.0, 2 * band / (SERIES_LENGTH * energy));
+    }
+}
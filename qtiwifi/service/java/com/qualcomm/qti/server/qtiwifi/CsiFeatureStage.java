@@ -0,0 +1,380 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.server.qtiwifi;
+
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.qualcomm.qti.qtiwifi.CsiFeatures;
+import com.qualcomm.qti.qtiwifi.CsiSubscriptionConfig;
+import com.qualcomm.qti.qtiwifi.ICsiCallback;
+
+/**
+ * Feature extraction shared by all feature subscriptions.
+ *
+ * While any subscription exists, the HAL callback hands every frame to this stage once. Its
+ * worker thread runs a single {@link CsiFeatureExtractor} over them, computing the union of
+ * the features subscribed to, and sends each update to every subscription of that peer
+ * through {@link ICsiCallback#onCsiFeatures}. Window statistics are kept once per peer for
+ * each distinct window length subscribed to. Spectrogram tiles are transformed in parallel on
+ * a pool sized to the CPUs, whose threads are started on demand and retire when idle. Updates
+ * are small and infrequent, so they are sent directly from the worker.
+ */
+public class CsiFeatureStage {
+    private static final String TAG = "CsiFeatureStage";
+
+    static final int QUEUE_CAPACITY = 64;
+
+    /**
+     * Told about subscriptions removed because their client died.
+     */
+    public interface DeathListener {
+        void onSubscriptionDied(int uid);
+    }
+
+    private static final class Subscription {
+        final long key;
+        final int uid;
+        final int callbackIdentifier;
+        final IBinder binder;
+        final ICsiCallback callback;
+        final int features;
+        /* Window of FEATURE_WINDOW_STATS in frames, 0 if not subscribed to */
+        final int windowStatsFrames;
+        /* Sorted, empty for all peers */
+        final long[] peerMacs;
+        IBinder.DeathRecipient deathRecipient;
+        volatile long deliveredCount;
+
+        Subscription(IBinder binder, ICsiCallback callback, int callbackIdentifier, int uid,
+                CsiSubscriptionConfig config) {
+            this.key = CsiSubscriber.makeKey(uid, callbackIdentifier);
+            this.uid = uid;
+            this.callbackIdentifier = callbackIdentifier;
+            this.binder = binder;
+            this.callback = callback;
+            this.features = config.getFeatures();
+            // Bounded here too, the window is allocated per peer on the worker thread.
+            this.windowStatsFrames = ((features & CsiFeatures.FEATURE_WINDOW_STATS) != 0)
+                    ? Math.max(2, Math.min(config.getWindowStatsFrames(),
+                            CsiSubscriptionConfig.MAX_WINDOW_STATS_FRAMES)) : 0;
+            this.peerMacs = config.getPeerMacs();
+            Arrays.sort(this.peerMacs);
+        }
+
+        boolean accepts(long peerMac) {
+            return peerMacs.length == 0 || Arrays.binarySearch(peerMacs, peerMac) >= 0;
+        }
+    }
+
+    private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+    private static final int[] NO_LENGTHS = new int[0];
+
+    private final Object mLock = new Object();
+    private final HashMap<Long, Subscription> mSubscriptions = new HashMap<>();
+    private volatile Subscription[] mSnapshot = NO_SUBSCRIPTIONS;
+    /* Union of the features of all subscriptions */
+    private volatile int mFeatures;
+    /* Distinct window statistics lengths of all subscriptions, ascending */
+    private volatile int[] mWindowLengths = NO_LENGTHS;
+
+    private final ArrayBlockingQueue<CsiFrameBuffer> mQueue =
+            new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    /*
+     * Started with the first subscription and kept until stop(). Guarded by mLock. A stopped
+     * worker may still finish its frame, so the extractor is used under its own lock.
+     */
+    private Thread mWorker;
+    private final ForkJoinPool mPool = new ForkJoinPool(
+            Runtime.getRuntime().availableProcessors(), pool -> {
+                ForkJoinWorkerThread thread =
+                        ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("CsiSpectrogram-" + thread.getPoolIndex());
+                return thread;
+            }, null, false);
+    private final CsiFeatureExtractor mExtractor = new CsiFeatureExtractor(mPool);
+    private final DeathListener mDeathListener;
+
+    /* Counters read by dumpsys */
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private volatile long mProcessedCount;
+    private volatile long mUpdateCount;
+    private volatile int mPeerCount;
+
+    public CsiFeatureStage(DeathListener deathListener) {
+        mDeathListener = deathListener;
+    }
+
+    /**
+     * Returns true if any feature subscription exists, i.e. frames should be offered.
+     */
+    public boolean isActive() {
+        return mSnapshot.length != 0;
+    }
+
+    /**
+     * Queues a frame for feature extraction. Called on the HAL callback thread; never blocks,
+     * dropping the oldest queued frame when full.
+     */
+    public void offer(CsiFrameBuffer frame) {
+        frame.retain();
+        while (!mQueue.offer(frame)) {
+            CsiFrameBuffer oldest = mQueue.poll();
+            if (oldest != null) {
+                oldest.release();
+                mDroppedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Adds a subscription for {@code config.getFeatures()}, replacing any previous one with
+     * the same uid and identifier.
+     * @return false if the client is already dead.
+     */
+    public boolean addSubscription(IBinder binder, ICsiCallback callback, int callbackIdentifier,
+            int uid, CsiSubscriptionConfig config) {
+        final Subscription subscription =
+                new Subscription(binder, callback, callbackIdentifier, uid, config);
+        subscription.deathRecipient = () -> removeSubscription(subscription);
+        try {
+            binder.linkToDeath(subscription.deathRecipient, 0);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Error on linkToDeath - " + e);
+            return false;
+        }
+        Subscription previous;
+        synchronized (mLock) {
+            previous = mSubscriptions.put(subscription.key, subscription);
+            publishLocked();
+            startWorkerLocked();
+        }
+        if (previous != null) {
+            previous.binder.unlinkToDeath(previous.deathRecipient, 0);
+        }
+        return true;
+    }
+
+    /**
+     * Starts the worker again after {@link #stop()} if there are subscriptions.
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (!mSubscriptions.isEmpty()) {
+                startWorkerLocked();
+            }
+        }
+    }
+
+    /**
+     * Stops the worker and drops the queued frames, keeping the subscriptions. Frames must
+     * not be offered until {@link #start()}.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            if (mWorker == null) return;
+            mWorker.interrupt();
+            mWorker = null;
+        }
+        CsiFrameBuffer frame;
+        while ((frame = mQueue.poll()) != null) {
+            frame.release();
+        }
+    }
+
+    private void startWorkerLocked() {
+        if (mWorker == null) {
+            mWorker = new Thread(this::workLoop, "CsiFeatures");
+            mWorker.start();
+        }
+    }
+
+    /**
+     * Returns the number of subscriptions.
+     */
+    public int getSubscriptionCount() {
+        return mSnapshot.length;
+    }
+
+    /**
+     * Removes the subscription registered with the given key.
+     * @return true if there was one.
+     */
+    public boolean removeSubscription(long key) {
+        Subscription removed;
+        synchronized (mLock) {
+            removed = mSubscriptions.remove(key);
+            if (removed == null) return false;
+            publishLocked();
+        }
+        removed.binder.unlinkToDeath(removed.deathRecipient, 0);
+        return true;
+    }
+
+    private void removeSubscription(Subscription subscription) {
+        synchronized (mLock) {
+            if (mSubscriptions.get(subscription.key) != subscription) return;
+        }
+        Log.i(TAG, "Removing dead feature subscription uid=" + subscription.uid);
+        if (removeSubscription(subscription.key)) {
+            mDeathListener.onSubscriptionDied(subscription.uid);
+        }
+    }
+
+    /**
+     * Returns true if {@code uid} has a feature subscription.
+     */
+    public boolean hasSubscription(int uid) {
+        for (Subscription subscription : mSnapshot) {
+            if (subscription.uid == uid) return true;
+        }
+        return false;
+    }
+
+    private void publishLocked() {
+        mSnapshot = mSubscriptions.values().toArray(NO_SUBSCRIPTIONS);
+        int features = 0;
+        for (Subscription subscription : mSnapshot) {
+            features |= subscription.features;
+        }
+        mFeatures = features;
+
+        int[] lengths = new int[mSnapshot.length];
+        int count = 0;
+        for (Subscription subscription : mSnapshot) {
+            if (subscription.windowStatsFrames != 0) {
+                lengths[count++] = subscription.windowStatsFrames;
+            }
+        }
+        Arrays.sort(lengths, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || lengths[distinct - 1] != lengths[i]) {
+                lengths[distinct++] = lengths[i];
+            }
+        }
+        lengths = Arrays.copyOf(lengths, distinct);
+        // Keep the published array unless it changed, so the worker only reacts to changes.
+        if (!Arrays.equals(lengths, mWindowLengths)) {
+            mWindowLengths = lengths;
+        }
+    }
+
+    private void workLoop() {
+        int[] windowLengths = NO_LENGTHS;
+        while (true) {
+            CsiFrameBuffer frame;
+            try {
+                frame = mQueue.take();
+            } catch (InterruptedException e) {
+                // Interrupted by stop().
+                return;
+            }
+            CsiFeatures features;
+            synchronized (mExtractor) {
+                if (windowLengths != mWindowLengths) {
+                    windowLengths = mWindowLengths;
+                    mExtractor.setWindowLengths(windowLengths);
+                }
+                try {
+                    features = mExtractor.process(frame.data, frame.length(),
+                            frame.timestampNanos, mFeatures);
+                } finally {
+                    frame.release();
+                }
+                mPeerCount = mExtractor.getPeerCount();
+                mProcessedCount++;
+                if (features != null) {
+                    mUpdateCount++;
+                    deliver(features);
+                }
+            }
+        }
+    }
+
+    private void deliver(CsiFeatures features) {
+        for (Subscription subscription : mSnapshot) {
+            if (!subscription.accepts(features.getPeerMac())) continue;
+            CsiFeatures update = features;
+            if (subscription.windowStatsFrames != 0) {
+                CsiFeatures withStats =
+                        mExtractor.getWindowStatsUpdate(subscription.windowStatsFrames);
+                if (withStats != null) {
+                    update = withStats;
+                }
+            }
+            try {
+                subscription.callback.onCsiFeatures(update.select(subscription.features));
+                subscription.deliveredCount++;
+            } catch (DeadObjectException e) {
+                removeSubscription(subscription);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Feature delivery failed for uid=" + subscription.uid + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Prints the stage counters and subscriptions for dumpsys.
+     */
+    public void dump(PrintWriter pw) {
+        final Subscription[] subscriptions = mSnapshot;
+        pw.println("CSI feature subscriptions: " + subscriptions.length
+                + ", features=0x" + Integer.toHexString(mFeatures)
+                + ", frames processed: " + mProcessedCount
+                + ", dropped: " + mDroppedCount.get()
+                + ", updates: " + mUpdateCount
+                + ", peers: " + mPeerCount
+                + ", spectrogram threads: " + mPool.getPoolSize()
+                + ", window lengths: " + Arrays.toString(mWindowLengths));
+        for (Subscription subscription : subscriptions) {
+            pw.println("  uid=" + subscription.uid + " id=" + subscription.callbackIdentifier
+                    + " features=0x" + Integer.toHexString(subscription.features)
+                    + (subscription.windowStatsFrames != 0
+                            ? " window=" + subscription.windowStatsFrames : "")
+                    + " peers=" + subscription.peerMacs.length
+                    + " delivered=" + subscription.deliveredCount);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.server.qtiwifi;
+
+import java.util.Arrays;
+
+import com.qualcomm.qti.qtiwifi.CsiFrame;
+import com.qualcomm.qti.qtiwifi.CsiSubscriptionConfig;
+
+/**
+ * Header based frame filter of one subscriber, evaluated on the HAL callback thread before
+ * the frame is copied. Its decimation and rate limit state is only touched on that thread.
+ */
+public class CsiFilter {
+    private final long[] mPeerMacs;
+    private final int mBandwidthMask;
+    private final int mPrimaryFrequency;
+    private final long mMinFrameIntervalNanos;
+    private final int mFrameDecimation;
+    private long mLastAcceptedNanos = Long.MIN_VALUE;
+    private int mSkipped;
+
+    public CsiFilter(CsiSubscriptionConfig config) {
+        mPeerMacs = config.getPeerMacs();
+        Arrays.sort(mPeerMacs);
+        mBandwidthMask = config.getBandwidthMask();
+        mPrimaryFrequency = config.getPrimaryFrequency();
+        mMinFrameIntervalNanos = Math.max(0, config.getMinFrameIntervalMicros()) * 1000;
+        mFrameDecimation = Math.max(1, config.getFrameDecimation());
+    }
+
+    /**
+     * Returns true if the filter looks at frame headers at all.
+     */
+    public boolean hasHeaderCriteria() {
+        return mPeerMacs.length != 0 || mBandwidthMask != 0 || mPrimaryFrequency != 0;
+    }
+
+    /**
+     * Checks the header criteria only, without counting the frame towards decimation or the
+     * rate limit. Unlike {@link #accept}, may be called from any thread.
+     */
+    public boolean matchesHeader(CsiFrame header) {
+        if (!hasHeaderCriteria()) return true;
+        if (!header.isValid()) return false;
+        if (mPeerMacs.length != 0
+                && Arrays.binarySearch(mPeerMacs, header.getPeerMac()) < 0) {
+            return false;
+        }
+        if (mBandwidthMask != 0) {
+            // The shift count is masked to 5 bits, so an unknown value must not reach it.
+            final int bandwidth = header.getCaptureBandwidth();
+            if (bandwidth < CsiFrame.BANDWIDTH_20MHZ || bandwidth > CsiFrame.BANDWIDTH_160MHZ
+                    || (mBandwidthMask & (1 << bandwidth)) == 0) {
+                return false;
+            }
+        }
+        if (mPrimaryFrequency != 0 && header.getPrimaryFrequency() != mPrimaryFrequency) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decides whether a frame is delivered. Frames matching the header criteria are
+     * decimated first, then the ones left count against the rate limit.
+     *
+     * @param header view of at least the frame header
+     * @param nowNanos receipt time of the frame
+     */
+    public boolean accept(CsiFrame header, long nowNanos) {
+        if (!matchesHeader(header)) return false;
+        if (mFrameDecimation > 1) {
+            if (++mSkipped < mFrameDecimation) {
+                return false;
+            }
+            mSkipped = 0;
+        }
+        if (mMinFrameIntervalNanos != 0) {
+            if (mLastAcceptedNanos != Long.MIN_VALUE
+                    && nowNanos - mLastAcceptedNanos < mMinFrameIntervalNanos) {
+                return false;
+            }
+            mLastAcceptedNanos = nowNanos;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,91 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.server.qtiwifi;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reusable, reference counted buffer holding one CFR frame received from the wificfr HAL.
+ *
+ * Buffers are handed out by {@link CsiFramePool#acquire(int)} with a reference count of one.
+ * Every stage that keeps the frame beyond the current call must {@link #retain()} it and
+ * {@link #release()} it when done; the last release returns the buffer to its pool.
+ */
+public final class CsiFrameBuffer {
+    /* Frame bytes, sized exactly to the frame so it can be handed to binder as is */
+    public final byte[] data;
+
+    /* SystemClock.elapsedRealtimeNanos() at which the frame was received from the HAL */
+    public long timestampNanos;
+
+    private final CsiFramePool mPool;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+
+    CsiFrameBuffer(CsiFramePool pool, int length) {
+        mPool = pool;
+        data = new byte[length];
+    }
+
+    /**
+     * Returns the number of valid bytes in {@link #data}.
+     */
+    public int length() {
+        return data.length;
+    }
+
+    /**
+     * Takes an additional reference on this buffer.
+     */
+    public CsiFrameBuffer retain() {
+        mRefCount.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Drops a reference on this buffer, returning it to the pool when none are left.
+     */
+    public void release() {
+        int refs = mRefCount.decrementAndGet();
+        if (refs == 0) {
+            mPool.recycle(this);
+        } else if (refs < 0) {
+            throw new IllegalStateException("CsiFrameBuffer released too many times");
+        }
+    }
+
+    void reset() {
+        mRefCount.set(1);
+        timestampNanos = 0;
+    }
+}
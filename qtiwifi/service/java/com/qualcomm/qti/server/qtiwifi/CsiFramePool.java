@@ -0,0 +1,105 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.server.qtiwifi;
+
+/**
+ * Pool of {@link CsiFrameBuffer}s used by the CSI ingest path.
+ *
+ * The wificfr HAL delivers frames of the same size for as long as the capture configuration
+ * (bandwidth, number of chains) stays the same, so buffers are matched on their exact length.
+ * Once warmed up, acquiring and recycling a buffer allocates nothing.
+ */
+public class CsiFramePool {
+    private static final int DEFAULT_MAX_POOLED_BUFFERS = 32;
+
+    private final Object mLock = new Object();
+    private final CsiFrameBuffer[] mFreeBuffers;
+    private int mFreeCount;
+    private long mAllocationCount;
+
+    public CsiFramePool() {
+        this(DEFAULT_MAX_POOLED_BUFFERS);
+    }
+
+    public CsiFramePool(int maxPooledBuffers) {
+        if (maxPooledBuffers <= 0) {
+            throw new IllegalArgumentException("maxPooledBuffers must be positive");
+        }
+        mFreeBuffers = new CsiFrameBuffer[maxPooledBuffers];
+    }
+
+    /**
+     * Returns a buffer of exactly {@code length} bytes holding a single reference.
+     * The contents of a recycled buffer are not cleared.
+     */
+    public CsiFrameBuffer acquire(int length) {
+        synchronized (mLock) {
+            for (int i = mFreeCount - 1; i >= 0; i--) {
+                CsiFrameBuffer buffer = mFreeBuffers[i];
+                if (buffer.data.length == length) {
+                    mFreeBuffers[i] = mFreeBuffers[--mFreeCount];
+                    mFreeBuffers[mFreeCount] = null;
+                    buffer.reset();
+                    return buffer;
+                }
+            }
+            mAllocationCount++;
+        }
+        CsiFrameBuffer buffer = new CsiFrameBuffer(this, length);
+        buffer.reset();
+        return buffer;
+    }
+
+    void recycle(CsiFrameBuffer buffer) {
+        synchronized (mLock) {
+            if (mFreeCount == mFreeBuffers.length) {
+                // Pool is full, most likely of a previous frame size. Replace the oldest entry
+                // so that buffers of the current size win over time.
+                System.arraycopy(mFreeBuffers, 1, mFreeBuffers, 0, mFreeCount - 1);
+                mFreeCount--;
+            }
+            mFreeBuffers[mFreeCount++] = buffer;
+        }
+    }
+
+    /**
+     * Returns the number of buffers allocated because no pooled buffer of the right size was
+     * available. Stays constant once the ingest path has warmed up.
+     */
+    public long getAllocationCount() {
+        synchronized (mLock) {
+            return mAllocationCount;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.server.qtiwifi;
+
+import com.qualcomm.qti.qtiwifi.CsiFrame;
+import com.qualcomm.qti.qtiwifi.CsiSubscriptionConfig;
+
+/**
+ * Reshapes frames for one subscriber before delivery, keeping the CFR layout so clients
+ * parse the result with {@link CsiFrame} as usual. Runs on the subscriber's worker thread.
+ *
+ * The subcarrier range is cropped first, then every group of {@code stride} adjacent
+ * subcarriers is reduced to one, either its first subcarrier or the mean of the group.
+ * A trailing partial group still yields one subcarrier.
+ */
+public class CsiFrameTransform {
+    private final int mFirstSubcarrier;
+    private final int mSubcarrierCount;
+    private final int mStride;
+    private final boolean mAverage;
+    private final CsiFrame mView = new CsiFrame();
+
+    private CsiFrameTransform(CsiSubscriptionConfig config) {
+        mFirstSubcarrier = Math.max(0, config.getFirstSubcarrier());
+        mSubcarrierCount = Math.max(0, config.getSubcarrierCount());
+        mStride = Math.max(1, config.getSubcarrierStride());
+        mAverage = config.isAverageSubcarriers();
+    }
+
+    /**
+     * Returns the transform requested by a config, or null if frames are delivered as is.
+     */
+    public static CsiFrameTransform create(CsiSubscriptionConfig config) {
+        if (config == null
+                || (config.getSubcarrierCount() <= 0 && config.getSubcarrierStride() <= 1)) {
+            return null;
+        }
+        return new CsiFrameTransform(config);
+    }
+
+    /**
+     * Applies the transform.
+     *
+     * @return a buffer holding one reference for the caller; {@code in} itself, retained,
+     *         if there is nothing to change.
+     */
+    public CsiFrameBuffer apply(CsiFrameBuffer in, CsiFramePool pool) {
+        final CsiFrame frame = mView.wrap(in.data, 0, in.length());
+        if (!frame.isValid()) {
+            return in.retain();
+        }
+        final int chains = frame.getChainCount();
+        final int subcarriers = frame.getSubcarrierCount();
+        final int first = Math.min(mFirstSubcarrier, subcarriers);
+        final int count = (mSubcarrierCount > 0)
+                ? Math.min(mSubcarrierCount, subcarriers - first) : subcarriers - first;
+        final int outCount = (count + mStride - 1) / mStride;
+        if (first == 0 && outCount == subcarriers) {
+            return in.retain();
+        }
+        final int rowBytes = outCount * CsiFrame.BYTES_PER_SUBCARRIER;
+        final int payload = chains * rowBytes;
+        CsiFrameBuffer out = pool.acquire(CsiFrame.HEADER_SIZE + payload);
+        out.timestampNanos = in.timestampNanos;
+        final byte[] src = in.data;
+        final byte[] dst = out.data;
+        System.arraycopy(src, 0, dst, 0, CsiFrame.HEADER_SIZE);
+        putInt(dst, CsiFrame.OFFSET_PAYLOAD_LENGTH, payload);
+        for (int c = 0; c < chains; c++) {
+            final int srcRow = frame.getPayloadOffset()
+                    + (c * subcarriers + first) * CsiFrame.BYTES_PER_SUBCARRIER;
+            final int dstRow = CsiFrame.HEADER_SIZE + c * rowBytes;
+            if (mStride == 1) {
+                System.arraycopy(src, srcRow, dst, dstRow, rowBytes);
+            } else if (!mAverage) {
+                for (int k = 0; k < outCount; k++) {
+                    System.arraycopy(src, srcRow + k * mStride * CsiFrame.BYTES_PER_SUBCARRIER,
+                            dst, dstRow + k * CsiFrame.BYTES_PER_SUBCARRIER,
+                            CsiFrame.BYTES_PER_SUBCARRIER);
+                }
+            } else {
+                averageRow(src, srcRow, count, dst, dstRow);
+            }
+        }
+        return out;
+    }
+
+    private void averageRow(byte[] src, int srcRow, int count, byte[] dst, int dstRow) {
+        int d = dstRow;
+        for (int start = 0; start < count; start += mStride) {
+            final int end = Math.min(start + mStride, count);
+            int sumI = 0;
+            int sumQ = 0;
+            for (int s = srcRow + start * CsiFrame.BYTES_PER_SUBCARRIER,
+                    e = srcRow + end * CsiFrame.BYTES_PER_SUBCARRIER;
+                    s < e; s += CsiFrame.BYTES_PER_SUBCARRIER) {
+                sumI += getShort(src, s);
+                sumQ += getShort(src, s + 2);
+            }
+            final int n = end - start;
+            putShort(dst, d, sumI / n);
+            putShort(dst, d + 2, sumQ / n);
+            d += CsiFrame.BYTES_PER_SUBCARRIER;
+        }
+    }
+
+    private static int getShort(byte[] src, int offset) {
+        return (short) ((src[offset] & 0xff) | (src[offset + 1] << 8));
+    }
+
+    private static void putShort(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) value;
+        dst[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void putInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) value;
+        dst[offset + 1] = (byte) (value >> 8);
+        dst[offset + 2] = (byte) (value >> 16);
+        dst[offset + 3] = (byte) (value >> 24);
+    }
+}
@@ -0,0 +1,179 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.server.qtiwifi;
+
+import java.util.Arrays;
+
+/**
+ * Map from {@code long} keys, such as packed peer MAC addresses, to non-negative {@code int}
+ * values, without boxing.
+ *
+ * Open addressing with linear probing over parallel key and value arrays whose capacity is a
+ * power of two at most half full; removal shifts later entries of the probe run back instead
+ * of leaving tombstones. {@link #EMPTY_KEY} cannot be stored, which no 48 bit MAC is. Lookups
+ * and updates are O(1) expected and allocate nothing until the table grows.
+ *
+ * Not thread safe.
+ */
+public final class CsiLongIntMap {
+    /** Marks a free slot; not a valid key */
+    public static final long EMPTY_KEY = -1L;
+    /** Returned by {@link #get} for absent keys */
+    public static final int NO_VALUE = -1;
+
+    private static final int MIN_CAPACITY = 8;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private int mMask;
+    private int mSize;
+
+    public CsiLongIntMap() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    /**
+     * @param expectedSize entries the map holds without growing
+     */
+    public CsiLongIntMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2 * expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        Arrays.fill(mKeys, EMPTY_KEY);
+        mValues = new int[capacity];
+        mMask = capacity - 1;
+    }
+
+    /* Spreads the key bits, MAC addresses of one vendor differing in their low bytes only */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the value of {@code key}, or {@link #NO_VALUE}.
+     */
+    public int get(long key) {
+        for (int slot = hash(key) & mMask; ; slot = (slot + 1) & mMask) {
+            final long k = mKeys[slot];
+            if (k == key) return mValues[slot];
+            if (k == EMPTY_KEY) return NO_VALUE;
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != NO_VALUE;
+    }
+
+    /**
+     * Sets the value of {@code key}.
+     * @return the previous value, or {@link #NO_VALUE}.
+     */
+    public int put(long key, int value) {
+        if (key == EMPTY_KEY || value < 0) {
+            throw new IllegalArgumentException("Invalid entry " + key + "=" + value);
+        }
+        int slot = hash(key) & mMask;
+        for (; mKeys[slot] != EMPTY_KEY; slot = (slot + 1) & mMask) {
+            if (mKeys[slot] == key) {
+                final int previous = mValues[slot];
+                mValues[slot] = value;
+                return previous;
+            }
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        if (++mSize * 2 > mKeys.length) {
+            grow();
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * Removes {@code key}.
+     * @return its value, or {@link #NO_VALUE} if it was absent.
+     */
+    public int remove(long key) {
+        int slot = hash(key) & mMask;
+        for (; mKeys[slot] != key; slot = (slot + 1) & mMask) {
+            if (mKeys[slot] == EMPTY_KEY) return NO_VALUE;
+        }
+        final int removed = mValues[slot];
+        // Move back every later entry of the run that could no longer be reached.
+        int hole = slot;
+        for (int next = (hole + 1) & mMask; mKeys[next] != EMPTY_KEY; next = (next + 1) & mMask) {
+            final int home = hash(mKeys[next]) & mMask;
+            if (((next - home) & mMask) >= ((next - hole) & mMask)) {
+                mKeys[hole] = mKeys[next];
+                mValues[hole] = mValues[next];
+                hole = next;
+            }
+        }
+        mKeys[hole] = EMPTY_KEY;
+        mSize--;
+        return removed;
+    }
+
+    public void clear() {
+        Arrays.fill(mKeys, EMPTY_KEY);
+        mSize = 0;
+    }
+
+    private void grow() {
+        final long[] keys = mKeys;
+        final int[] values = mValues;
+        allocate(keys.length * 2);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == EMPTY_KEY) continue;
+            int slot = hash(keys[i]) & mMask;
+            while (mKeys[slot] != EMPTY_KEY) {
+                slot = (slot + 1) & mMask;
+            }
+            mKeys[slot] = keys[i];
+            mValues[slot] = values[i];
+        }
+    }
+}
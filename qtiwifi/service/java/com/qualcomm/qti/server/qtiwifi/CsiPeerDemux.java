@@ -0,0 +1,284 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.server.qtiwifi;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.qualcomm.qti.qtiwifi.CsiFrame;
+
+/**
+ * Splits the mixed frame stream of the HAL by transmitter.
+ *
+ * Each peer, keyed by its MAC packed into a {@code long}, gets a {@link Peer} entry found
+ * through a {@link CsiLongIntMap}, so the per-frame work is a hash lookup and a few counter
+ * updates. An entry numbers the peer's frames, notices frames whose hardware timestamp goes
+ * backwards or that follow an unusually long silence, measures the frame rate and keeps the
+ * peer's last frame, which a new subscriber filtering on the peer starts from. Caching a
+ * frame takes no lock.
+ *
+ * {@link #onFrame} and {@link #cacheFrame} are called on the HAL callback thread only, which
+ * reads the index without locking; it changes the index under the lock, which other threads
+ * hold to look peers up.
+ */
+public class CsiPeerDemux {
+    /* Peers tracked at once; the least recently seen one is replaced beyond that */
+    static final int MAX_PEERS = 64;
+    /* An interval this many times the peer's average one counts as a gap */
+    static final int GAP_FACTOR = 4;
+
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /* Weight of a new interval in the average, as a shift: 1/8 */
+    private static final int AVERAGE_SHIFT = 3;
+
+    /**
+     * State of one peer. Counters are written by the HAL callback thread only.
+     */
+    public static final class Peer {
+        final long mac;
+        final int index;
+        private volatile long mFrameCount;
+        private volatile long mByteCount;
+        private volatile long mReorderedCount;
+        private volatile long mGapCount;
+        private volatile int mFrameRate;
+        private volatile long mLastSeenNanos;
+        private long mLastTimestamp;
+        private long mAverageIntervalNanos;
+        private long mRateWindowStartNanos;
+        private int mRateWindowFrames;
+        /* Holds a reference of its own; whoever takes the frame out owns that reference */
+        private final AtomicReference<CsiFrameBuffer> mLastFrame = new AtomicReference<>();
+
+        Peer(long mac, int index, long nowNanos) {
+            this.mac = mac;
+            this.index = index;
+            mRateWindowStartNanos = nowNanos;
+        }
+
+        public long getMac() {
+            return mac;
+        }
+
+        /**
+         * Returns the number of frames received from the peer, which is also the sequence
+         * number of its latest frame, counting from 1.
+         */
+        public long getFrameCount() {
+            return mFrameCount;
+        }
+
+        public long getByteCount() {
+            return mByteCount;
+        }
+
+        /**
+         * Returns the number of frames whose hardware timestamp was older than the previous
+         * frame's.
+         */
+        public long getReorderedCount() {
+            return mReorderedCount;
+        }
+
+        /**
+         * Returns the number of frames that came more than {@link #GAP_FACTOR} average
+         * intervals after the previous one, i.e. after captures were probably missed.
+         */
+        public long getGapCount() {
+            return mGapCount;
+        }
+
+        /**
+         * Returns the frames received in the last complete second.
+         */
+        public int getFrameRate() {
+            return mFrameRate;
+        }
+
+        public long getLastSeenNanos() {
+            return mLastSeenNanos;
+        }
+
+        private void update(CsiFrame header, int length, long nowNanos) {
+            final long frames = mFrameCount + 1;
+            if (frames > 1) {
+                // The hardware timestamp is 32 bits of microseconds and wraps.
+                if ((int) (header.getTimestamp() - mLastTimestamp) < 0) {
+                    mReorderedCount++;
+                }
+                final long interval = nowNanos - mLastSeenNanos;
+                if (frames > 2 && interval > GAP_FACTOR * mAverageIntervalNanos) {
+                    mGapCount++;
+                }
+                mAverageIntervalNanos = (frames == 2) ? interval : mAverageIntervalNanos
+                        + ((interval - mAverageIntervalNanos) >> AVERAGE_SHIFT);
+            }
+            if (nowNanos - mRateWindowStartNanos >= RATE_WINDOW_NANOS) {
+                // A silence of several windows reports the last one as empty.
+                mFrameRate = (nowNanos - mRateWindowStartNanos < 2 * RATE_WINDOW_NANOS)
+                        ? mRateWindowFrames : 0;
+                mRateWindowStartNanos = nowNanos;
+                mRateWindowFrames = 0;
+            }
+            mRateWindowFrames++;
+            mLastTimestamp = header.getTimestamp();
+            mLastSeenNanos = nowNanos;
+            mByteCount += length;
+            mFrameCount = frames;
+        }
+
+        private void setLastFrame(CsiFrameBuffer frame) {
+            if (frame != null) {
+                frame.retain();
+            }
+            final CsiFrameBuffer previous = mLastFrame.getAndSet(frame);
+            if (previous != null) {
+                previous.release();
+            }
+        }
+
+        private CsiFrameBuffer acquireLastFrame() {
+            // Taking the frame out keeps the HAL thread from releasing it under us.
+            final CsiFrameBuffer frame = mLastFrame.getAndSet(null);
+            if (frame == null) return null;
+            frame.retain();
+            if (!mLastFrame.compareAndSet(null, frame)) {
+                // A newer frame was cached meanwhile.
+                frame.release();
+            }
+            return frame;
+        }
+    }
+
+    private final Object mLock = new Object();
+    /* Guarded by mLock for writes; read without it on the HAL callback thread */
+    private final CsiLongIntMap mIndex = new CsiLongIntMap(MAX_PEERS);
+    private final Peer[] mPeers = new Peer[MAX_PEERS];
+    private int mPeerCount;
+    private volatile long mEvictedCount;
+
+    /**
+     * Accounts a frame to its peer, adding the peer if it is new. Called on the HAL callback
+     * thread.
+     *
+     * @param header view of the frame header, which must be valid
+     * @param length of the whole frame
+     * @return the peer's entry
+     */
+    public Peer onFrame(CsiFrame header, int length, long nowNanos) {
+        final long mac = header.getPeerMac();
+        final int index = mIndex.get(mac);
+        Peer peer = (index != CsiLongIntMap.NO_VALUE) ? mPeers[index] : addPeer(mac, nowNanos);
+        peer.update(header, length, nowNanos);
+        return peer;
+    }
+
+    private Peer addPeer(long mac, long nowNanos) {
+        synchronized (mLock) {
+            int index = mPeerCount;
+            if (index < MAX_PEERS) {
+                mPeerCount++;
+            } else {
+                index = 0;
+                for (int i = 1; i < MAX_PEERS; i++) {
+                    if (mPeers[i].getLastSeenNanos() < mPeers[index].getLastSeenNanos()) {
+                        index = i;
+                    }
+                }
+                mIndex.remove(mPeers[index].mac);
+                mPeers[index].setLastFrame(null);
+                mEvictedCount++;
+            }
+            Peer peer = new Peer(mac, index, nowNanos);
+            mPeers[index] = peer;
+            mIndex.put(mac, index);
+            return peer;
+        }
+    }
+
+    /**
+     * Makes {@code frame}, the one last passed to {@link #onFrame} for {@code peer}, the
+     * peer's cached last frame. Called on the HAL callback thread.
+     */
+    public void cacheFrame(Peer peer, CsiFrameBuffer frame) {
+        peer.setLastFrame(frame);
+    }
+
+    /**
+     * Returns the entry of a peer, or null if it is not tracked.
+     */
+    public Peer getPeer(long mac) {
+        synchronized (mLock) {
+            final int index = mIndex.get(mac);
+            return (index != CsiLongIntMap.NO_VALUE) ? mPeers[index] : null;
+        }
+    }
+
+    /**
+     * Returns the last frame copied from a peer with a reference the caller must release,
+     * or null if there is none.
+     */
+    public CsiFrameBuffer acquireLastFrame(long mac) {
+        final Peer peer = getPeer(mac);
+        return (peer != null) ? peer.acquireLastFrame() : null;
+    }
+
+    /**
+     * Returns the tracked peers, in no particular order.
+     */
+    public Peer[] getPeers() {
+        synchronized (mLock) {
+            Peer[] peers = new Peer[mPeerCount];
+            System.arraycopy(mPeers, 0, peers, 0, mPeerCount);
+            return peers;
+        }
+    }
+
+    /**
+     * Prints the per-peer counters for dumpsys.
+     */
+    public void dump(PrintWriter pw) {
+        final Peer[] peers = getPeers();
+        pw.println("CSI peers: " + peers.length + ", evicted: " + mEvictedCount);
+        for (Peer peer : peers) {
+            pw.println("  " + CsiFrame.macToString(peer.mac)
+                    + " frames=" + peer.getFrameCount()
+                    + " bytes=" + peer.getByteCount()
+                    + " rate=" + peer.getFrameRate() + "/s"
+                    + " reordered=" + peer.getReorderedCount()
+                    + " gaps=" + peer.getGapCount());
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.server.qtiwifi;
+
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import vendor.qti.hardware.wifi.wificfr.V1_0.CaptureStatus;
+import vendor.qti.hardware.wifi.wificfr.V1_0.CaptureStatusCode;
+import vendor.qti.hardware.wifi.wificfr.V1_0.IWificfr;
+import vendor.qti.hardware.wifi.wificfr.V1_0.IWificfrDataCallback;
+
+/**
+ * Stand-in for the wificfr HAL that replays frames from a {@link CsiReplaySource} into the
+ * registered data callback, so the service's ingest and dispatch run as they do with real
+ * hardware. Frames are replayed with their original spacing or as fast as the callback
+ * takes them.
+ */
+public class CsiReplayCfr extends IWificfr.Stub {
+    private static final String TAG = "CsiReplayCfr";
+
+    private final Object mLock = new Object();
+    private final CsiReplaySource mSource;
+    private final boolean mRealTime;
+    private final boolean mLoop;
+
+    private volatile IWificfrDataCallback mCallback;
+    private Thread mThread;
+
+    /* Replay statistics, written by the replay thread */
+    private volatile long mReplayedCount;
+    private volatile long mCallbackNanos;
+
+    /**
+     * @param realTime keep the original spacing of the frames, otherwise replay them back
+     *        to back
+     * @param loop start over at the end of the source instead of stopping
+     */
+    public CsiReplayCfr(CsiReplaySource source, boolean realTime, boolean loop) {
+        mSource = source;
+        mRealTime = realTime;
+        mLoop = loop;
+    }
+
+    @Override
+    public CaptureStatus registerEventCallback(IWificfrDataCallback callback) {
+        mCallback = callback;
+        return status(CaptureStatusCode.SUCCESS);
+    }
+
+    @Override
+    public CaptureStatus unregisterEventCallback(IWificfrDataCallback callback) {
+        if (mCallback == callback) {
+            mCallback = null;
+        }
+        return status(CaptureStatusCode.SUCCESS);
+    }
+
+    @Override
+    public CaptureStatus csiCaptureStart() {
+        synchronized (mLock) {
+            if (mThread == null) {
+                mThread = new Thread(this::replayLoop, TAG);
+                mThread.start();
+            }
+        }
+        return status(CaptureStatusCode.SUCCESS);
+    }
+
+    @Override
+    public CaptureStatus csiCaptureStop() {
+        Thread thread;
+        synchronized (mLock) {
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return status(CaptureStatusCode.SUCCESS);
+    }
+
+    public long getReplayedCount() {
+        return mReplayedCount;
+    }
+
+    /**
+     * Returns the time spent in the data callback, i.e. in the service's ingest path.
+     */
+    public long getCallbackNanos() {
+        return mCallbackNanos;
+    }
+
+    private void replayLoop() {
+        final ArrayList<Byte> list = new ArrayList<>();
+        final long startCount = mReplayedCount;
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        long anchorNanos = 0;
+        long firstTimestamp = -1;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (!mSource.next()) {
+                    if (!mLoop) break;
+                    mSource.rewind();
+                    firstTimestamp = -1;
+                    continue;
+                }
+                if (mRealTime) {
+                    final long timestamp = mSource.getTimestampNanos();
+                    if (firstTimestamp < 0) {
+                        firstTimestamp = timestamp;
+                        anchorNanos = SystemClock.elapsedRealtimeNanos();
+                    }
+                    final long delay = anchorNanos + (timestamp - firstTimestamp)
+                            - SystemClock.elapsedRealtimeNanos();
+                    if (delay > 0) {
+                        TimeUnit.NANOSECONDS.sleep(delay);
+                    }
+                }
+                final byte[] frame = mSource.getFrame();
+                final int length = mSource.getFrameLength();
+                // The HAL hands over a list of boxed bytes; boxing bytes does not allocate.
+                list.clear();
+                list.ensureCapacity(length);
+                for (int i = 0; i < length; i++) {
+                    list.add(frame[i]);
+                }
+                final IWificfrDataCallback callback = mCallback;
+                if (callback == null) continue;
+                final long begin = System.nanoTime();
+                callback.onCfrDataAvailable(list);
+                mCallbackNanos += System.nanoTime() - begin;
+                mReplayedCount++;
+            }
+        } catch (InterruptedException e) {
+            // csiCaptureStop() was called
+        } catch (IOException | RemoteException e) {
+            Log.e(TAG, "Replay failed: " + e);
+        }
+        final long frames = mReplayedCount - startCount;
+        final long elapsedNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        Log.i(TAG, "Replayed " + frames + " frames in " + elapsedNanos / 1000000 + " ms, "
+                + (elapsedNanos > 0 ? frames * 1000000000L / elapsedNanos : 0) + " frames/s, "
+                + (mReplayedCount > 0 ? mCallbackNanos / mReplayedCount : 0)
+                + " ns per callback");
+    }
+
+    private static CaptureStatus status(int code) {
+        CaptureStatus status = new CaptureStatus();
+        status.code = code;
+        return status;
+    }
+}
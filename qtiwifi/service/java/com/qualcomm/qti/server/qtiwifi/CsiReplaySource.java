@@ -0,0 +1,267 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.server.qtiwifi;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import com.qualcomm.qti.qtiwifi.CsiCaptureFile;
+import com.qualcomm.qti.qtiwifi.CsiCaptureReader;
+import com.qualcomm.qti.qtiwifi.CsiCodec;
+import com.qualcomm.qti.qtiwifi.CsiFrame;
+
+/**
+ * Frames replayed by {@link CsiReplayCfr}, read from a capture file or generated.
+ * Used from the replay thread only.
+ */
+public abstract class CsiReplaySource implements Closeable {
+    public static final String SYNTHETIC = "synthetic";
+
+    /**
+     * Moves to the next frame.
+     * @return false at the end of the source.
+     */
+    public abstract boolean next() throws IOException;
+
+    /**
+     * Returns the current frame, valid until the next call to {@link #next}.
+     */
+    public abstract byte[] getFrame();
+
+    public abstract int getFrameLength();
+
+    /**
+     * Returns the time the current frame was originally received,
+     * SystemClock.elapsedRealtimeNanos() of the recording.
+     */
+    public abstract long getTimestampNanos();
+
+    /**
+     * Moves back before the first frame.
+     */
+    public abstract void rewind();
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * Creates a source from a description: the path of a capture file, or
+     * {@code synthetic[:bandwidthMhz[:framesPerSecond[:peers]]]}.
+     */
+    public static CsiReplaySource fromSpec(String spec) throws IOException {
+        if (!spec.startsWith(SYNTHETIC)) {
+            return new Capture(CsiCaptureReader.open(new File(spec)));
+        }
+        final String[] parts = spec.split(":");
+        try {
+            final int bandwidthMhz = (parts.length > 1) ? Integer.parseInt(parts[1]) : 80;
+            final int framesPerSecond = (parts.length > 2) ? Integer.parseInt(parts[2]) : 1000;
+            final int peers = (parts.length > 3) ? Integer.parseInt(parts[3]) : 1;
+            return new Synthetic(bandwidthMhz, 2, peers, framesPerSecond);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid replay source " + spec, e);
+        }
+    }
+
+    /**
+     * Replays a capture written by {@link com.qualcomm.qti.qtiwifi.CsiCaptureWriter}, decoding
+     * encoded captures on the fly.
+     */
+    public static class Capture extends CsiReplaySource {
+        private final CsiCaptureReader mReader;
+        private final CsiCodec.Decoder mDecoder;
+        private CsiCaptureReader.Cursor mCursor;
+        private byte[] mPayload = new byte[0];
+        private byte[] mFrame = new byte[0];
+        private int mFrameLength;
+
+        public Capture(CsiCaptureReader reader) {
+            mReader = reader;
+            mDecoder = ((reader.getFlags() & CsiCaptureFile.FLAG_ENCODED) != 0)
+                    ? new CsiCodec.Decoder() : null;
+            mCursor = reader.cursor();
+        }
+
+        @Override
+        public boolean next() {
+            while (mCursor.next()) {
+                final int length = mCursor.getPayloadLength();
+                if (mPayload.length < length) {
+                    mPayload = new byte[length];
+                }
+                mCursor.readPayload(mPayload, 0);
+                if (mDecoder == null) {
+                    mFrameLength = length;
+                    return true;
+                }
+                final int decodedLength = CsiCodec.getDecodedLength(mPayload, 0);
+                if (length < CsiCodec.PREFIX_SIZE || decodedLength < 0
+                        || decodedLength > 2 * length) {
+                    continue;
+                }
+                if (mFrame.length < decodedLength) {
+                    mFrame = new byte[decodedLength];
+                }
+                mFrameLength = mDecoder.decode(mPayload, 0, length, mFrame, 0);
+                if (mFrameLength > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public byte[] getFrame() {
+            return (mDecoder == null) ? mPayload : mFrame;
+        }
+
+        @Override
+        public int getFrameLength() {
+            return mFrameLength;
+        }
+
+        @Override
+        public long getTimestampNanos() {
+            return mCursor.getTimestampNanos();
+        }
+
+        @Override
+        public void rewind() {
+            mCursor = mReader.cursor();
+            if (mDecoder != null) {
+                mDecoder.reset();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+
+    /**
+     * Endless stream of generated frames from a set of peers, taking turns, at a fixed rate.
+     * Frames are built up front so generating them costs nothing during the replay.
+     */
+    public static class Synthetic extends CsiReplaySource {
+        private static final int VARIANTS = 16;
+
+        private final byte[][] mFrames;
+        private final long mIntervalNanos;
+        private long mIndex = -1;
+
+        public Synthetic(int bandwidthMhz, int chains, int peers, int framesPerSecond) {
+            if (bandwidthMhz != 20 && bandwidthMhz != 40 && bandwidthMhz != 80
+                    && bandwidthMhz != 160) {
+                throw new IllegalArgumentException("Invalid bandwidth " + bandwidthMhz);
+            }
+            if (chains <= 0 || peers <= 0 || framesPerSecond <= 0) {
+                throw new IllegalArgumentException("Invalid synthetic source");
+            }
+            mFrames = new byte[peers * VARIANTS][];
+            for (int i = 0; i < mFrames.length; i++) {
+                mFrames[i] = createFrame(bandwidthMhz, chains, 0x02005e000000L + i % peers,
+                        i / peers);
+            }
+            mIntervalNanos = 1000000000L / framesPerSecond;
+        }
+
+        @Override
+        public boolean next() {
+            mIndex++;
+            return true;
+        }
+
+        @Override
+        public byte[] getFrame() {
+            return mFrames[(int) (mIndex % mFrames.length)];
+        }
+
+        @Override
+        public int getFrameLength() {
+            return getFrame().length;
+        }
+
+        @Override
+        public long getTimestampNanos() {
+            return mIndex * mIntervalNanos;
+        }
+
+        @Override
+        public void rewind() {
+            mIndex = -1;
+        }
+
+        private static byte[] createFrame(int bandwidthMhz, int chains, long peerMac,
+                int variant) {
+            final int subcarriers = bandwidthMhz / 20 * 64;
+            final int payload = chains * subcarriers * CsiFrame.BYTES_PER_SUBCARRIER;
+            byte[] frame = new byte[CsiFrame.HEADER_SIZE + payload];
+            putInt(frame, CsiFrame.OFFSET_MAGIC, CsiFrame.MAGIC);
+            for (int i = 0; i < 6; i++) {
+                frame[CsiFrame.OFFSET_PEER_MAC + i] = (byte) (peerMac >>> (40 - 8 * i));
+            }
+            final int bandwidth = Integer.numberOfTrailingZeros(bandwidthMhz / 20);
+            frame[CsiFrame.OFFSET_CAPTURE_BW] = (byte) bandwidth;
+            frame[CsiFrame.OFFSET_CHANNEL_BW] = (byte) bandwidth;
+            putShort(frame, CsiFrame.OFFSET_PRIMARY_FREQ, 5180);
+            putShort(frame, CsiFrame.OFFSET_CENTER_FREQ1, 5180 + (bandwidthMhz - 20) / 2);
+            frame[CsiFrame.OFFSET_CHAIN_COUNT] = (byte) chains;
+            putInt(frame, CsiFrame.OFFSET_PAYLOAD_LENGTH, payload);
+            int offset = CsiFrame.HEADER_SIZE;
+            for (int c = 0; c < chains; c++) {
+                for (int s = 0; s < subcarriers; s++) {
+                    final double phase = 0.05 * s + 0.3 * c + 0.01 * variant;
+                    final double magnitude = 800 + 200 * Math.sin(0.02 * s + 0.1 * variant);
+                    putShort(frame, offset, (int) (magnitude * Math.cos(phase)));
+                    putShort(frame, offset + 2, (int) (magnitude * Math.sin(phase)));
+                    offset += CsiFrame.BYTES_PER_SUBCARRIER;
+                }
+            }
+            return frame;
+        }
+
+        private static void putShort(byte[] dst, int offset, int value) {
+            dst[offset] = (byte) value;
+            dst[offset + 1] = (byte) (value >> 8);
+        }
+
+        private static void putInt(byte[] dst, int offset, int value) {
+            putShort(dst, offset, value);
+            putShort(dst, offset + 2, value >> 16);
+        }
+    }
+}
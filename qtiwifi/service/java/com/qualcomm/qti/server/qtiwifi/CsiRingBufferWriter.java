@@ -0,0 +1,157 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.server.qtiwifi;
+
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import java.io.Closeable;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.qualcomm.qti.qtiwifi.CsiRingBuffer;
+
+/**
+ * Writes CSI frames into a shared memory ring buffer read by a client through
+ * {@link com.qualcomm.qti.qtiwifi.CsiRingBufferReader}. See {@link CsiRingBuffer} for the
+ * layout. The writer never waits for the reader; old records are simply overwritten.
+ */
+public class CsiRingBufferWriter implements Closeable {
+    private final SharedMemory mSharedMemory;
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+
+    private long mWritePosition;
+    private long mSequence;
+    private long mOversizedFrameCount;
+
+    private CsiRingBufferWriter(SharedMemory sharedMemory, ByteBuffer buffer, int capacity) {
+        mSharedMemory = sharedMemory;
+        mBuffer = buffer;
+        mCapacity = capacity;
+        mBuffer.putInt(CsiRingBuffer.MAGIC_OFFSET, CsiRingBuffer.MAGIC);
+        mBuffer.putInt(CsiRingBuffer.VERSION_OFFSET, CsiRingBuffer.VERSION);
+        mBuffer.putInt(CsiRingBuffer.CAPACITY_OFFSET, capacity);
+        mBuffer.putLong(CsiRingBuffer.WRITE_POSITION_OFFSET, 0);
+        mBuffer.putLong(CsiRingBuffer.RESERVE_POSITION_OFFSET, 0);
+    }
+
+    /**
+     * Creates a ring buffer with a data area of {@code capacity} bytes. The returned writer
+     * keeps a read/write mapping; the shared memory handed to clients only allows reading.
+     */
+    public static CsiRingBufferWriter create(String name, int capacity) throws ErrnoException {
+        if (capacity < CsiRingBuffer.MIN_CAPACITY || capacity > CsiRingBuffer.MAX_CAPACITY
+                || capacity != CsiRingBuffer.align(capacity)) {
+            throw new IllegalArgumentException("Invalid ring buffer capacity " + capacity);
+        }
+        SharedMemory sharedMemory = SharedMemory.create(name, CsiRingBuffer.HEADER_SIZE + capacity);
+        ByteBuffer buffer;
+        try {
+            buffer = sharedMemory.mapReadWrite().order(ByteOrder.LITTLE_ENDIAN);
+        } catch (ErrnoException e) {
+            sharedMemory.close();
+            throw e;
+        }
+        // Existing mappings keep their protection, so only our own mapping stays writable.
+        sharedMemory.setProtect(OsConstants.PROT_READ);
+        return new CsiRingBufferWriter(sharedMemory, buffer, capacity);
+    }
+
+    public SharedMemory getSharedMemory() {
+        return mSharedMemory;
+    }
+
+    /**
+     * Returns the position to announce to the reader after writing.
+     */
+    public long getWritePosition() {
+        return mWritePosition;
+    }
+
+    /**
+     * Returns the number of frames that were too large for the ring and were dropped.
+     */
+    public long getOversizedFrameCount() {
+        return mOversizedFrameCount;
+    }
+
+    /**
+     * Appends one frame.
+     * @return false if the frame can never fit into the ring.
+     */
+    public boolean write(byte[] src, int offset, int length, long timestampNanos) {
+        final int recordSize = CsiRingBuffer.recordSize(length);
+        if (recordSize > mCapacity) {
+            mOversizedFrameCount++;
+            return false;
+        }
+        int index = (int) (mWritePosition % mCapacity);
+        if (mCapacity - index < recordSize) {
+            // Leave the tail unused, the record starts over at the beginning of the area.
+            reserve(mWritePosition + (mCapacity - index) + recordSize);
+            mBuffer.putInt(CsiRingBuffer.HEADER_SIZE + index + CsiRingBuffer.RECORD_LENGTH_OFFSET,
+                    CsiRingBuffer.WRAP_MARKER);
+            mWritePosition += mCapacity - index;
+            index = 0;
+        } else {
+            reserve(mWritePosition + recordSize);
+        }
+        final int record = CsiRingBuffer.HEADER_SIZE + index;
+        mBuffer.putInt(record + CsiRingBuffer.RECORD_LENGTH_OFFSET, length);
+        mBuffer.putLong(record + CsiRingBuffer.RECORD_SEQUENCE_OFFSET, mSequence++);
+        mBuffer.putLong(record + CsiRingBuffer.RECORD_TIMESTAMP_OFFSET, timestampNanos);
+        mBuffer.position(record + CsiRingBuffer.RECORD_HEADER_SIZE);
+        mBuffer.put(src, offset, length);
+        mWritePosition += recordSize;
+        // The record must be complete before a reader can see the new write position.
+        VarHandle.releaseFence();
+        mBuffer.putLong(CsiRingBuffer.WRITE_POSITION_OFFSET, mWritePosition);
+        return true;
+    }
+
+    private void reserve(long position) {
+        mBuffer.putLong(CsiRingBuffer.RESERVE_POSITION_OFFSET, position);
+        // A reader must see the reservation before any byte of the record it covers.
+        VarHandle.storeStoreFence();
+    }
+
+    @Override
+    public void close() {
+        SharedMemory.unmap(mBuffer);
+        mSharedMemory.close();
+    }
+}
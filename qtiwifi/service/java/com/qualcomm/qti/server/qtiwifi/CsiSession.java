@@ -0,0 +1,232 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.server.qtiwifi;
+
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.qualcomm.qti.qtiwifi.CsiSessionConfig;
+import com.qualcomm.qti.qtiwifi.ICsiCallback;
+
+/**
+ * Limits and output of a capture session, enforced on the {@link CsiSubscriber} that carries
+ * it.
+ *
+ * The subscriber asks {@link #admit} before queueing each frame, which counts it against the
+ * budgets. Once a limit is reached the session ends: no more frames are admitted and the
+ * subscriber delivers what is queued, then stops. However it stops, on a limit, at the
+ * client's request, when replaced or when the client died, the subscriber calls
+ * {@link #onDeliveryStopped} last, which closes the output, reports the end to the client
+ * and tells the {@link Listener}.
+ */
+public class CsiSession {
+    private static final String TAG = "CsiSession";
+
+    /** {@link #admit} results */
+    static final int ADMIT_REFUSED = 0;
+    static final int ADMIT_OK = 1;
+    /** Admitted, and the last frame the budget allows */
+    static final int ADMIT_LAST = 2;
+
+    private static final int NOT_ENDED = -1;
+
+    /**
+     * Notified when a session is over.
+     */
+    public interface Listener {
+        void onSessionFinished(CsiSession session);
+    }
+
+    private final long mKey;
+    private final int mUid;
+    private final ICsiCallback mCallback;
+    private final CsiSessionConfig mConfig;
+    private final CsiSessionOutput mOutput;
+    private final Listener mListener;
+    private final long mStartNanos = SystemClock.elapsedRealtimeNanos();
+
+    /* Budget accounting, only touched by the HAL callback thread */
+    private volatile long mFrameCount;
+    private volatile long mByteCount;
+
+    private final AtomicInteger mEndReason = new AtomicInteger(NOT_ENDED);
+    private volatile CsiSubscriber mSubscriber;
+    private ScheduledFuture<?> mTimeout;
+
+    /**
+     * @param output where frames are written instead of delivered to the callback, or null.
+     *        Owned and closed by the session.
+     */
+    public CsiSession(long key, int uid, ICsiCallback callback, CsiSessionConfig config,
+            CsiSessionOutput output, Listener listener) {
+        mKey = key;
+        mUid = uid;
+        mCallback = callback;
+        mConfig = config;
+        mOutput = output;
+        mListener = listener;
+    }
+
+    public long getKey() {
+        return mKey;
+    }
+
+    public CsiSessionConfig getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * Returns the file the frames are written to, null if they are delivered to the client.
+     */
+    CsiSessionOutput getOutput() {
+        return mOutput;
+    }
+
+    void setSubscriber(CsiSubscriber subscriber) {
+        mSubscriber = subscriber;
+    }
+
+    CsiSubscriber getSubscriber() {
+        return mSubscriber;
+    }
+
+    synchronized void setTimeout(ScheduledFuture<?> timeout) {
+        mTimeout = timeout;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    public long getElapsedNanos() {
+        return SystemClock.elapsedRealtimeNanos() - mStartNanos;
+    }
+
+    public boolean isEnded() {
+        return mEndReason.get() != NOT_ENDED;
+    }
+
+    /**
+     * Counts a frame of {@code length} bytes against the budgets. Called on the HAL callback
+     * thread; a result of {@link #ADMIT_LAST} must be followed by {@link #end} once the frame
+     * is queued.
+     */
+    int admit(int length) {
+        if (isEnded()) return ADMIT_REFUSED;
+        final long maxBytes = mConfig.getMaxBytes();
+        if (maxBytes != 0 && mByteCount + length > maxBytes) {
+            end(CsiSessionConfig.END_REASON_BYTE_BUDGET);
+            return ADMIT_REFUSED;
+        }
+        mFrameCount++;
+        mByteCount += length;
+        return (mFrameCount == mConfig.getMaxFrames() || mByteCount == maxBytes)
+                ? ADMIT_LAST : ADMIT_OK;
+    }
+
+    /**
+     * Returns the reason for ending after an {@link #ADMIT_LAST} frame.
+     */
+    int getBudgetEndReason() {
+        return (mFrameCount == mConfig.getMaxFrames())
+                ? CsiSessionConfig.END_REASON_FRAME_BUDGET
+                : CsiSessionConfig.END_REASON_BYTE_BUDGET;
+    }
+
+    /**
+     * Ends the session for a CsiSessionConfig.END_REASON_ value; only the first call counts.
+     * Frames already queued are still delivered.
+     */
+    public void end(int reason) {
+        if (!mEndReason.compareAndSet(NOT_ENDED, reason)) return;
+        Log.i(TAG, "Session uid=" + mUid + " ending: "
+                + CsiSessionConfig.endReasonToString(reason) + ", " + mFrameCount + " frames");
+        synchronized (this) {
+            if (mTimeout != null) {
+                mTimeout.cancel(false);
+            }
+        }
+        final CsiSubscriber subscriber = mSubscriber;
+        if (subscriber != null) {
+            subscriber.finish();
+        }
+    }
+
+    /**
+     * Called by the subscriber's delivery thread when it stopped for good.
+     */
+    void onDeliveryStopped() {
+        // Stopped without end(), e.g. unregistered, replaced or dead.
+        mEndReason.compareAndSet(NOT_ENDED, CsiSessionConfig.END_REASON_STOPPED);
+        synchronized (this) {
+            if (mTimeout != null) {
+                mTimeout.cancel(false);
+            }
+        }
+        if (mOutput != null) {
+            try {
+                mOutput.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close session output: " + e);
+            }
+        }
+        try {
+            mCallback.onCsiSessionEnded(mEndReason.get(), mFrameCount, mByteCount);
+        } catch (RemoteException e) {
+            // The client is gone, nobody to tell.
+        }
+        mListener.onSessionFinished(this);
+    }
+
+    @Override
+    public String toString() {
+        return "CsiSession{uid=" + mUid
+                + ", frames=" + mFrameCount
+                + ", bytes=" + mByteCount
+                + (mOutput != null ? ", written=" + mOutput.getLength() : "")
+                + ", elapsedMillis=" + getElapsedNanos() / 1000000
+                + (isEnded() ? ", ended="
+                        + CsiSessionConfig.endReasonToString(mEndReason.get()) : "")
+                + ", " + mConfig + "}";
+    }
+}
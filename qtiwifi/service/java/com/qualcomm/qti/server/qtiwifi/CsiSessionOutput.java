@@ -0,0 +1,140 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.server.qtiwifi;
+
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import com.qualcomm.qti.qtiwifi.CsiCaptureFile;
+
+/**
+ * Writes the frames of a capture session to a client supplied file descriptor in the
+ * {@link CsiCaptureFile} format.
+ *
+ * The descriptor may be write only, a pipe or a socket, so unlike
+ * {@link com.qualcomm.qti.qtiwifi.CsiCaptureWriter} records are gathered in a buffer and
+ * written sequentially. Used by the session's delivery thread only.
+ */
+public class CsiSessionOutput implements Closeable {
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ParcelFileDescriptor mFd;
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer =
+            ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private long mLength;
+    private boolean mClosed;
+
+    /**
+     * Takes ownership of {@code fd} and writes the file header.
+     *
+     * @param flags CsiCaptureFile.FLAG_ bits
+     */
+    public CsiSessionOutput(ParcelFileDescriptor fd, int flags) throws IOException {
+        mFd = fd;
+        mStream = new FileOutputStream(fd.getFileDescriptor());
+        mChannel = mStream.getChannel();
+        mBuffer.putInt(CsiCaptureFile.MAGIC);
+        mBuffer.putShort((short) CsiCaptureFile.VERSION);
+        mBuffer.putShort((short) flags);
+        mBuffer.putLong(System.currentTimeMillis());
+        mBuffer.putLong(SystemClock.elapsedRealtimeNanos());
+        mBuffer.putLong(0);
+        flush();
+    }
+
+    /**
+     * Appends a record for {@code length} bytes of {@code data}.
+     *
+     * @param peerMac peer of the frame, 0 if unknown
+     */
+    public void write(byte[] data, int offset, int length, long timestampNanos, long peerMac)
+            throws IOException {
+        if (mClosed) throw new IOException("Output is closed");
+        if (mBuffer.remaining() < CsiCaptureFile.RECORD_HEADER_SIZE) {
+            flush();
+        }
+        mBuffer.putInt(length);
+        mBuffer.putInt(0);
+        mBuffer.putLong(timestampNanos);
+        mBuffer.putLong(peerMac);
+        while (length > 0) {
+            if (!mBuffer.hasRemaining()) {
+                flush();
+            }
+            final int chunk = Math.min(length, mBuffer.remaining());
+            mBuffer.put(data, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Returns the bytes written or buffered so far, file header included.
+     */
+    public long getLength() {
+        return mLength + mBuffer.position();
+    }
+
+    public void flush() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mLength += mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    /**
+     * Writes out buffered records and closes the descriptor.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        try {
+            flush();
+        } finally {
+            mStream.close();
+            mFd.close();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.server.qtiwifi;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.qualcomm.qti.qtiwifi.CsiFft;
+
+/**
+ * Doppler spectrogram tiles computed from the amplitude history of one peer.
+ *
+ * The amplitude series of every chain and subcarrier over the last {@code fftSize} frames
+ * has its mean removed, is Hann windowed and transformed; the power of its positive
+ * frequency bins is averaged over the chains and the subcarriers of each group. Groups are
+ * split between the tasks of a {@link ForkJoinPool}, each leaf task owning the tile rows of
+ * its groups and a scratch buffer kept across calls, so tasks never share writable state.
+ *
+ * {@link #compute} calls must not overlap.
+ */
+public class CsiSpectrogram {
+    /* Groups transformed by one leaf task */
+    static final int GROUPS_PER_TASK = 2;
+    /* Tile resolution: 255 is the peak, each step below it half a dB */
+    static final float DB_PER_STEP = 0.5f;
+
+    private final ForkJoinPool mPool;
+    private final CsiFft mFft;
+    private final int mGroupSubcarriers;
+    private final int mBins;
+
+    /* Power per group and bin, group major */
+    private float[] mPower = new float[0];
+    /* Real and imaginary scratch of each leaf task, indexed by its first group */
+    private float[][] mRe = new float[0][];
+    private float[][] mIm = new float[0][];
+
+    /* Input of the running compute call, read by its tasks */
+    private float[] mHistory;
+    private int mStart;
+    private int mChains;
+    private int mSubcarriers;
+
+    /**
+     * @param fftSize frames per tile, a power of two
+     * @param groupSubcarriers subcarriers averaged into one tile row
+     */
+    public CsiSpectrogram(ForkJoinPool pool, int fftSize, int groupSubcarriers) {
+        mPool = pool;
+        mFft = new CsiFft(fftSize);
+        mGroupSubcarriers = groupSubcarriers;
+        mBins = fftSize / 2;
+    }
+
+    /**
+     * Returns the number of frequency bins per group, bin {@code k} being {@code k + 1}
+     * times the frame rate over the FFT size.
+     */
+    public int getBinCount() {
+        return mBins;
+    }
+
+    public int getGroupCount(int subcarriers) {
+        return (subcarriers + mGroupSubcarriers - 1) / mGroupSubcarriers;
+    }
+
+    /**
+     * Computes a tile.
+     *
+     * @param history ring of {@code fftSize} rows of {@code chains * subcarriers} amplitudes,
+     *        each chain major as written by {@link com.qualcomm.qti.qtiwifi.CsiMatrix#amplitude}
+     * @param start row of the oldest frame
+     * @param tile receives {@link #getGroupCount} rows of {@link #getBinCount} levels, 255 at
+     *        the peak and {@link #DB_PER_STEP} dB less per step below it
+     * @return the peak power in dB
+     */
+    public float compute(float[] history, int start, int chains, int subcarriers, byte[] tile) {
+        final int groups = getGroupCount(subcarriers);
+        if (mPower.length < groups * mBins) {
+            mPower = new float[groups * mBins];
+        }
+        final int leaves = (groups + GROUPS_PER_TASK - 1) / GROUPS_PER_TASK;
+        if (mRe.length < leaves) {
+            mRe = growScratch(mRe, leaves);
+            mIm = growScratch(mIm, leaves);
+        }
+        mHistory = history;
+        mStart = start;
+        mChains = chains;
+        mSubcarriers = subcarriers;
+        try {
+            mPool.invoke(new GroupTask(0, groups));
+        } finally {
+            mHistory = null;
+        }
+
+        float peak = 0;
+        for (int i = 0; i < groups * mBins; i++) {
+            peak = Math.max(peak, mPower[i]);
+        }
+        if (peak == 0) {
+            Arrays.fill(tile, 0, groups * mBins, (byte) 0);
+            return Float.NEGATIVE_INFINITY;
+        }
+        final float peakDb = (float) (10 * Math.log10(peak));
+        for (int i = 0; i < groups * mBins; i++) {
+            final float belowPeak = (mPower[i] > 0)
+                    ? peakDb - (float) (10 * Math.log10(mPower[i])) : Float.MAX_VALUE;
+            final int level = 255 - Math.round(belowPeak / DB_PER_STEP);
+            tile[i] = (byte) Math.max(0, level);
+        }
+        return peakDb;
+    }
+
+    private float[][] growScratch(float[][] scratch, int leaves) {
+        float[][] grown = Arrays.copyOf(scratch, leaves);
+        for (int i = scratch.length; i < leaves; i++) {
+            grown[i] = new float[mFft.getSize()];
+        }
+        return grown;
+    }
+
+    private final class GroupTask extends RecursiveAction {
+        private final int mFirst;
+        private final int mEnd;
+
+        GroupTask(int first, int end) {
+            mFirst = first;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            final int count = mEnd - mFirst;
+            if (count > GROUPS_PER_TASK) {
+                // Split on a multiple of GROUPS_PER_TASK so leaves map to scratch buffers.
+                final int mid = mFirst + Math.max(1, count / GROUPS_PER_TASK / 2) * GROUPS_PER_TASK;
+                invokeAll(new GroupTask(mFirst, mid), new GroupTask(mid, mEnd));
+                return;
+            }
+            final int leaf = mFirst / GROUPS_PER_TASK;
+            for (int group = mFirst; group < mEnd; group++) {
+                transformGroup(group, mRe[leaf], mIm[leaf]);
+            }
+        }
+    }
+
+    private void transformGroup(int group, float[] re, float[] im) {
+        final int n = mFft.getSize();
+        final float[] window = mFft.getWindow();
+        final int rowLength = mChains * mSubcarriers;
+        final int first = group * mGroupSubcarriers;
+        final int end = Math.min(first + mGroupSubcarriers, mSubcarriers);
+        final int powerBase = group * mBins;
+        Arrays.fill(mPower, powerBase, powerBase + mBins, 0);
+        for (int c = 0; c < mChains; c++) {
+            for (int s = first; s < end; s++) {
+                final int column = c * mSubcarriers + s;
+                float mean = 0;
+                for (int t = 0, row = mStart; t < n; t++) {
+                    re[t] = mHistory[row * rowLength + column];
+                    mean += re[t];
+                    row = (row + 1 == n) ? 0 : row + 1;
+                }
+                mean /= n;
+                for (int t = 0; t < n; t++) {
+                    re[t] = (re[t] - mean) * window[t];
+                    im[t] = 0;
+                }
+                mFft.transform(re, im);
+                for (int k = 0; k < mBins; k++) {
+                    mPower[powerBase + k] += re[k + 1] * re[k + 1] + im[k + 1] * im[k + 1];
+                }
+            }
+        }
+        final float scale = 1f / (mChains * (end - first));
+        for (int k = 0; k < mBins; k++) {
+            mPower[powerBase + k] *= scale;
+        }
+    }
+}
@@ -0,0 +1,709 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.server.qtiwifi;
+
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.qualcomm.qti.qtiwifi.CsiBatch;
+import com.qualcomm.qti.qtiwifi.CsiCodec;
+import com.qualcomm.qti.qtiwifi.CsiFrame;
+import com.qualcomm.qti.qtiwifi.CsiLatencyHistogram;
+import com.qualcomm.qti.qtiwifi.CsiSessionConfig;
+import com.qualcomm.qti.qtiwifi.CsiSubscriptionConfig;
+import com.qualcomm.qti.qtiwifi.ICsiCallback;
+
+/**
+ * A registered {@link ICsiCallback} together with its delivery queue and worker thread.
+ *
+ * Frames are queued by the HAL callback thread and delivered over binder by the subscriber's
+ * own worker, so a slow client only ever delays itself. When the queue is full the oldest
+ * frame is dropped.
+ *
+ * Subscribers registered without a {@link CsiSubscriptionConfig} receive one
+ * {@link ICsiCallback#onCsiUpdate} per frame. All others receive {@link ICsiCallback#onCsiBatch},
+ * with frames coalesced according to the batching limits of their config, or have frames
+ * written to their shared memory ring and receive {@link ICsiCallback#onCsiRingUpdate} as
+ * often as the batching limits allow.
+ *
+ * Subscribers with flow control enabled acknowledge each delivery. While deliveries are
+ * outstanding the subscriber steps through increasingly degraded delivery modes, coalescing,
+ * then decimating, then holding back frames altogether, so that a lagging client never fills
+ * its binder buffer. Every mode change is reported to the client.
+ *
+ * A subscriber carrying a {@link CsiSession} only queues the frames the session admits, and
+ * writes them to the session's output instead of the client if it has one. When the session
+ * ends the subscriber delivers the frames still queued before stopping.
+ */
+public class CsiSubscriber {
+    private static final String TAG = "CsiSubscriber";
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    /* Deliveries remembered for acknowledgement; more outstanding than this is a stalled client */
+    private static final int ACK_WINDOW = 64;
+    /* Rough binder cost of a delivery on top of its payload */
+    private static final int TRANSACTION_OVERHEAD_BYTES = 256;
+    /*
+     * Outstanding deliveries and bytes at which each delivery mode is entered. The binder
+     * async buffer of a process is 512 KB, shared by all its oneway calls.
+     */
+    private static final int[] MODE_OUTSTANDING_CALLS = {0, 4, 16, ACK_WINDOW};
+    private static final int[] MODE_OUTSTANDING_BYTES = {0, 64 * 1024, 192 * 1024, 320 * 1024};
+    /* A degraded mode is kept at least this long, so that the client is not flooded with changes */
+    private static final long MODE_HOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    /* How often a degraded subscriber checks for acknowledgements while waiting */
+    private static final long DEGRADED_POLL_MILLIS = 2;
+
+    /**
+     * Notified when the client behind a subscriber can no longer be reached.
+     */
+    public interface DeathListener {
+        void onSubscriberDied(CsiSubscriber subscriber);
+    }
+
+    private final long mKey;
+    private final int mUid;
+    private final int mCallbackIdentifier;
+    private final IBinder mBinder;
+    private final ICsiCallback mCallback;
+    private final CsiSubscriptionConfig mConfig;
+    private final ArrayBlockingQueue<CsiFrameBuffer> mQueue;
+    private final Thread mWorker;
+    private volatile boolean mRunning;
+    /* Set by finish(): deliver what is queued, then stop */
+    private volatile boolean mFinishing;
+    private DeathListener mDeathListener;
+    private IBinder.DeathRecipient mDeathRecipient;
+
+    /* Filtering state, only touched by the HAL callback thread */
+    private final CsiFilter mFilter;
+    private boolean mSelected;
+
+    /* Per subscriber reshaping, applied on the worker thread */
+    private final CsiFrameTransform mTransform;
+    private final CsiFramePool mFramePool;
+
+    /* Capture session limiting this subscriber, or null */
+    private final CsiSession mSession;
+    private final CsiSessionOutput mOutput;
+    private final CsiFrame mOutputFrame = new CsiFrame();
+    private boolean mOutputFailed;
+
+    /* Payload encoding, null if frames are delivered as is */
+    private final CsiCodec.Encoder mEncoder;
+    private byte[] mEncodeBuffer;
+
+    /* Batching state, only touched by the worker thread */
+    private final CsiBatch mBatch;
+    private final CsiRingBufferWriter mRingWriter;
+    private final int mMaxBatchFrames;
+    private final int mMaxBatchBytes;
+    private final long mMaxBatchLatencyNanos;
+    private int mPendingFrames;
+    private int mPendingBytes;
+    private long mPendingStartNanos;
+    private long[] mPendingTimestamps = new long[16];
+
+    /* Flow control; acknowledgements arrive on binder threads, everything else is the worker's */
+    private final boolean mFlowControl;
+    private final Object mAckLock = new Object();
+    private volatile long mAckedCount;
+    private volatile long mSentCount;
+    private long mSentBytes;
+    private final long[] mSentBytesAt = new long[ACK_WINDOW];
+    private volatile int mDeliveryMode = CsiSubscriptionConfig.DELIVERY_MODE_NORMAL;
+    private long mModeChangedNanos;
+    private int mDecimationPhase;
+
+    /* Latency from HAL receipt to the worker picking the frame up and to the binder call */
+    private final CsiLatencyHistogram mQueueLatency = new CsiLatencyHistogram();
+    private final CsiLatencyHistogram mDispatchLatency = new CsiLatencyHistogram();
+
+    /* Counters read by dumpsys; dropped frames are counted on two threads */
+    private volatile long mDeliveredCount;
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private volatile long mBinderFailureCount;
+    private volatile long mThrottledCount;
+    private volatile long mModeChangeCount;
+
+    /**
+     * @param config delivery options, or null for legacy per-frame onCsiUpdate delivery.
+     * @param ringWriter shared memory ring to deliver into, or null for binder delivery.
+     *        Owned and closed by the subscriber.
+     * @param framePool pool for frames produced by the subscriber's transform.
+     */
+    public CsiSubscriber(IBinder binder, ICsiCallback callback, int callbackIdentifier,
+            int uid, int queueCapacity, CsiSubscriptionConfig config,
+            CsiRingBufferWriter ringWriter, CsiFramePool framePool) {
+        this(binder, callback, callbackIdentifier, uid, queueCapacity, config, ringWriter,
+                framePool, null);
+    }
+
+    /**
+     * @param session capture session whose limits apply, or null. A session with an output
+     *        replaces delivery to the client.
+     */
+    public CsiSubscriber(IBinder binder, ICsiCallback callback, int callbackIdentifier,
+            int uid, int queueCapacity, CsiSubscriptionConfig config,
+            CsiRingBufferWriter ringWriter, CsiFramePool framePool, CsiSession session) {
+        mKey = makeKey(uid, callbackIdentifier);
+        mUid = uid;
+        mCallbackIdentifier = callbackIdentifier;
+        mBinder = binder;
+        mCallback = callback;
+        mConfig = config;
+        if (config != null) {
+            // The config comes from the client, don't trust its limits.
+            mMaxBatchFrames = Math.max(1, config.getMaxBatchFrames());
+            mMaxBatchBytes = Math.max(1, Math.min(config.getMaxBatchBytes(),
+                    CsiSubscriptionConfig.MAX_BATCH_BYTES));
+            mMaxBatchLatencyNanos =
+                    TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.getMaxBatchLatencyMillis()));
+            mBatch = (ringWriter == null && (session == null || session.getOutput() == null))
+                    ? new CsiBatch() : null;
+        } else {
+            mMaxBatchFrames = 1;
+            mMaxBatchBytes = CsiSubscriptionConfig.MAX_BATCH_BYTES;
+            mMaxBatchLatencyNanos = 0;
+            mBatch = null;
+        }
+        mRingWriter = ringWriter;
+        mSession = session;
+        mOutput = (session != null) ? session.getOutput() : null;
+        if (session != null) {
+            session.setSubscriber(this);
+        }
+        // Nothing goes through binder to be acknowledged when writing to an output.
+        mFlowControl = (config != null) && config.isFlowControlEnabled() && mOutput == null;
+        mFilter = (config != null) ? new CsiFilter(config) : null;
+        mTransform = CsiFrameTransform.create(config);
+        mFramePool = framePool;
+        mEncoder = createEncoder(config);
+        mQueue = new ArrayBlockingQueue<>(queueCapacity);
+        mWorker = new Thread(this::deliveryLoop, "CsiDispatch-" + uid + "-" + callbackIdentifier);
+    }
+
+    private static CsiCodec.Encoder createEncoder(CsiSubscriptionConfig config) {
+        if (config == null || config.getEncodingBitDepth() == 0) {
+            return null;
+        }
+        final int bitDepth = Math.max(CsiCodec.MIN_BIT_DEPTH,
+                Math.min(config.getEncodingBitDepth(), CsiCodec.MAX_BIT_DEPTH));
+        return new CsiCodec.Encoder(bitDepth, Math.max(1, config.getKeyframeInterval()));
+    }
+
+    /**
+     * Subscribers are identified by the calling uid together with the client chosen identifier,
+     * since identifiers picked by different apps may collide.
+     */
+    public static long makeKey(int uid, int callbackIdentifier) {
+        return ((long) uid << 32) | (callbackIdentifier & 0xffffffffL);
+    }
+
+    public long getKey() {
+        return mKey;
+    }
+
+    public int getUid() {
+        return mUid;
+    }
+
+    public int getCallbackIdentifier() {
+        return mCallbackIdentifier;
+    }
+
+    public IBinder getBinder() {
+        return mBinder;
+    }
+
+    /**
+     * Returns the capture session limiting this subscriber, or null.
+     */
+    public CsiSession getSession() {
+        return mSession;
+    }
+
+    /**
+     * Returns the delivery options of this subscriber, null for legacy registrations.
+     */
+    public CsiSubscriptionConfig getConfig() {
+        return mConfig;
+    }
+
+    public long getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Returns the latencies from HAL receipt until the delivery thread took the frame.
+     */
+    public CsiLatencyHistogram getQueueLatency() {
+        return mQueueLatency;
+    }
+
+    /**
+     * Returns the latencies from HAL receipt until the frame was handed to binder.
+     */
+    public CsiLatencyHistogram getDispatchLatency() {
+        return mDispatchLatency;
+    }
+
+    /**
+     * Returns the number of binder calls to the subscriber that failed.
+     */
+    public long getBinderFailureCount() {
+        return mBinderFailureCount;
+    }
+
+    /**
+     * Returns the number of frames too large for the subscriber's ring buffer, 0 for binder
+     * delivery.
+     */
+    public long getOversizedFrameCount() {
+        return (mRingWriter != null) ? mRingWriter.getOversizedFrameCount() : 0;
+    }
+
+    public int getQueuedCount() {
+        return mQueue.size();
+    }
+
+    /**
+     * Returns the current CsiSubscriptionConfig.DELIVERY_MODE_ value.
+     */
+    public int getDeliveryMode() {
+        return mDeliveryMode;
+    }
+
+    /**
+     * Returns the number of deliveries the client has not acknowledged yet, 0 without flow
+     * control.
+     */
+    public long getOutstandingDeliveries() {
+        return mFlowControl ? Math.max(0, mSentCount - mAckedCount) : 0;
+    }
+
+    /**
+     * Returns the number of frames skipped by decimation while the client lagged behind.
+     */
+    public long getThrottledCount() {
+        return mThrottledCount;
+    }
+
+    public long getModeChangeCount() {
+        return mModeChangeCount;
+    }
+
+    /**
+     * Records that the client finished processing its first {@code deliveryCount}
+     * deliveries. Called on a binder thread.
+     */
+    void onDeliveryAck(long deliveryCount) {
+        synchronized (mAckLock) {
+            if (deliveryCount <= mAckedCount) return;
+            mAckedCount = deliveryCount;
+            mAckLock.notifyAll();
+        }
+    }
+
+    /**
+     * Links the given recipient to the client binder; it is unlinked again when this
+     * subscriber is stopped.
+     * @return true on success, false if the client is already dead.
+     */
+    public boolean linkToDeath(IBinder.DeathRecipient recipient) {
+        try {
+            mBinder.linkToDeath(recipient, 0);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Error on linkToDeath - " + e);
+            return false;
+        }
+        mDeathRecipient = recipient;
+        return true;
+    }
+
+    void start(DeathListener listener) {
+        mDeathListener = listener;
+        mRunning = true;
+        mWorker.start();
+    }
+
+    /**
+     * Stops the subscriber once the frames already queued are delivered.
+     */
+    void finish() {
+        mFinishing = true;
+        mWorker.interrupt();
+    }
+
+    void stop() {
+        mRunning = false;
+        mWorker.interrupt();
+        if (mDeathRecipient != null) {
+            mBinder.unlinkToDeath(mDeathRecipient, 0);
+            mDeathRecipient = null;
+        }
+    }
+
+    /**
+     * Decides whether this subscriber wants the frame with the given header. Called on the
+     * HAL callback thread; the result is kept for the following {@link #enqueue}.
+     */
+    boolean select(CsiFrame header, long nowNanos) {
+        mSelected = mRunning && (mFilter == null || mFilter.accept(header, nowNanos));
+        return mSelected;
+    }
+
+    boolean isSelected() {
+        return mSelected;
+    }
+
+    /**
+     * Queues a frame for delivery. Called on the HAL callback thread; never blocks.
+     */
+    void enqueue(CsiFrameBuffer frame) {
+        if (!mRunning) return;
+        final int admitted =
+                (mSession != null) ? mSession.admit(frame.length()) : CsiSession.ADMIT_OK;
+        if (admitted == CsiSession.ADMIT_REFUSED) return;
+        frame.retain();
+        while (!mQueue.offer(frame)) {
+            CsiFrameBuffer oldest = mQueue.poll();
+            if (oldest != null) {
+                oldest.release();
+                mDroppedCount.incrementAndGet();
+            }
+        }
+        if (!mRunning && mQueue.remove(frame)) {
+            // The worker exited meanwhile and will not release it.
+            frame.release();
+        }
+        if (admitted == CsiSession.ADMIT_LAST) {
+            mSession.end(mSession.getBudgetEndReason());
+        }
+    }
+
+    /**
+     * Queues {@code frame}, received before this subscriber was added, if it passes the
+     * header criteria, so the client starts from its peers' latest frames. Sessions are not
+     * primed, the frame would count against their budget.
+     */
+    void prime(CsiFrameBuffer frame, CsiFrame header) {
+        if (mSession != null) return;
+        if (mFilter != null && !mFilter.matchesHeader(header)) return;
+        enqueue(frame);
+    }
+
+    private boolean isLegacy() {
+        return mConfig == null;
+    }
+
+    private void deliveryLoop() {
+        try {
+            while (mRunning) {
+                if (mFlowControl) {
+                    updateDeliveryMode();
+                    if (mDeliveryMode == CsiSubscriptionConfig.DELIVERY_MODE_DROP_OLDEST) {
+                        // Leave frames queued, enqueue() drops the oldest, until the client
+                        // caught up.
+                        synchronized (mAckLock) {
+                            mAckLock.wait(DEGRADED_POLL_MILLIS);
+                        }
+                        continue;
+                    }
+                }
+                CsiFrameBuffer frame;
+                if (mPendingFrames == 0) {
+                    frame = mQueue.take();
+                } else {
+                    long remaining = mPendingStartNanos + mMaxBatchLatencyNanos
+                            - SystemClock.elapsedRealtimeNanos();
+                    if (mDeliveryMode != CsiSubscriptionConfig.DELIVERY_MODE_NORMAL) {
+                        // Waiting for acknowledgements rather than for the batch to fill up.
+                        remaining = TimeUnit.MILLISECONDS.toNanos(DEGRADED_POLL_MILLIS);
+                    }
+                    frame = (remaining > 0) ? mQueue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                }
+                if (frame != null) {
+                    mQueueLatency.record(
+                            SystemClock.elapsedRealtimeNanos() - frame.timestampNanos);
+                }
+                if (frame != null && mTransform != null) {
+                    CsiFrameBuffer transformed = mTransform.apply(frame, mFramePool);
+                    frame.release();
+                    frame = transformed;
+                }
+                if (frame != null) {
+                    try {
+                        deliverFrame(frame);
+                    } finally {
+                        frame.release();
+                    }
+                }
+                if (mPendingFrames > 0 && isBatchDue()) {
+                    flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            // stop() or finish() was called
+            if (mRunning && mFinishing) {
+                drain();
+            }
+        } finally {
+            mRunning = false;
+            CsiFrameBuffer frame;
+            while ((frame = mQueue.poll()) != null) {
+                frame.release();
+            }
+            if (mRingWriter != null) {
+                mRingWriter.close();
+            }
+            if (mSession != null) {
+                mSession.onDeliveryStopped();
+            }
+        }
+    }
+
+    /**
+     * Delivers the frames left in the queue and any pending batch.
+     */
+    private void drain() {
+        CsiFrameBuffer frame;
+        while (mRunning && (frame = mQueue.poll()) != null) {
+            if (mTransform != null) {
+                CsiFrameBuffer transformed = mTransform.apply(frame, mFramePool);
+                frame.release();
+                frame = transformed;
+            }
+            try {
+                deliverFrame(frame);
+            } finally {
+                frame.release();
+            }
+        }
+        if (mRunning && mPendingFrames > 0) {
+            flush();
+        }
+    }
+
+    private void deliverFrame(CsiFrameBuffer frame) {
+        if (isLegacy()) {
+            try {
+                mDispatchLatency.record(
+                        SystemClock.elapsedRealtimeNanos() - frame.timestampNanos);
+                mCallback.onCsiUpdate(frame.data);
+                mDeliveredCount++;
+            } catch (RemoteException e) {
+                handleDeliveryFailure(e);
+            }
+            return;
+        }
+        if (mDeliveryMode >= CsiSubscriptionConfig.DELIVERY_MODE_DECIMATE
+                && mDecimationPhase++ % CsiSubscriptionConfig.DECIMATION_FACTOR != 0) {
+            mThrottledCount++;
+            return;
+        }
+        byte[] data = frame.data;
+        int length = frame.length();
+        if (mEncoder != null) {
+            final int maxLength = CsiCodec.maxEncodedLength(length);
+            if (mEncodeBuffer == null || mEncodeBuffer.length < maxLength) {
+                mEncodeBuffer = new byte[maxLength];
+            }
+            length = mEncoder.encode(data, 0, length, mEncodeBuffer, 0);
+            data = mEncodeBuffer;
+        }
+        if (mOutput != null) {
+            writeOutput(frame, data, length);
+            return;
+        }
+        if (mRingWriter != null) {
+            if (!mRingWriter.write(data, 0, length, frame.timestampNanos)) {
+                mDroppedCount.incrementAndGet();
+                if (mEncoder != null) {
+                    // The client lost a reference frame, restart from keyframes.
+                    mEncoder.reset();
+                }
+                return;
+            }
+        } else {
+            mBatch.addFrame(data, 0, length, frame.timestampNanos);
+        }
+        if (mPendingFrames == 0) {
+            mPendingStartNanos = frame.timestampNanos;
+        }
+        if (mPendingFrames == mPendingTimestamps.length) {
+            mPendingTimestamps = Arrays.copyOf(mPendingTimestamps, mPendingFrames * 2);
+        }
+        mPendingTimestamps[mPendingFrames] = frame.timestampNanos;
+        mPendingFrames++;
+        mPendingBytes += length;
+    }
+
+    private void writeOutput(CsiFrameBuffer frame, byte[] data, int length) {
+        if (mOutputFailed) return;
+        mOutputFrame.wrap(frame.data, 0, frame.length());
+        try {
+            mOutput.write(data, 0, length, frame.timestampNanos,
+                    mOutputFrame.isValid() ? mOutputFrame.getPeerMac() : 0);
+            mDispatchLatency.record(SystemClock.elapsedRealtimeNanos() - frame.timestampNanos);
+            mDeliveredCount++;
+        } catch (IOException e) {
+            Log.e(TAG, "Session output of uid=" + mUid + " failed: " + e);
+            mOutputFailed = true;
+            mSession.end(CsiSessionConfig.END_REASON_OUTPUT_ERROR);
+        }
+    }
+
+    private boolean isBatchDue() {
+        if (mDeliveryMode != CsiSubscriptionConfig.DELIVERY_MODE_NORMAL) {
+            // Coalesce until the client acknowledged everything or the batch is as large as
+            // binder allows.
+            return mSentCount <= mAckedCount
+                    || mPendingBytes >= CsiSubscriptionConfig.MAX_BATCH_BYTES;
+        }
+        return mPendingFrames >= mMaxBatchFrames
+                || mPendingBytes >= mMaxBatchBytes
+                || SystemClock.elapsedRealtimeNanos() - mPendingStartNanos >= mMaxBatchLatencyNanos;
+    }
+
+    private void flush() {
+        final int count = mPendingFrames;
+        final int bytes = mPendingBytes;
+        mPendingFrames = 0;
+        mPendingBytes = 0;
+        final long now = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < count; i++) {
+            mDispatchLatency.record(now - mPendingTimestamps[i]);
+        }
+        try {
+            if (mRingWriter != null) {
+                mCallback.onCsiRingUpdate(mRingWriter.getWritePosition());
+            } else {
+                mCallback.onCsiBatch(mBatch);
+            }
+            mDeliveredCount += count;
+            if (mFlowControl) {
+                // Ring data does not pass through binder, only the notification does.
+                recordSent((mRingWriter != null) ? 0 : bytes);
+            }
+        } catch (RemoteException e) {
+            if (mBatch != null && mEncoder != null) {
+                mEncoder.reset();
+            }
+            handleDeliveryFailure(e);
+        } finally {
+            if (mBatch != null) {
+                mBatch.clear();
+            }
+        }
+    }
+
+    private void recordSent(int bytes) {
+        mSentBytes += bytes + TRANSACTION_OVERHEAD_BYTES;
+        mSentBytesAt[(int) ((mSentCount + 1) % ACK_WINDOW)] = mSentBytes;
+        mSentCount++;
+    }
+
+    /**
+     * Picks the delivery mode for the deliveries still outstanding, stepping up as soon as a
+     * threshold is reached and back down only once well below it.
+     */
+    private void updateDeliveryMode() {
+        final long sent = mSentCount;
+        final long acked = Math.min(mAckedCount, sent);
+        final long calls = sent - acked;
+        long bytes = Long.MAX_VALUE;
+        if (calls < ACK_WINDOW) {
+            bytes = mSentBytes - ((acked == 0) ? 0 : mSentBytesAt[(int) (acked % ACK_WINDOW)]);
+        }
+        int mode = mDeliveryMode;
+        while (mode < CsiSubscriptionConfig.DELIVERY_MODE_DROP_OLDEST
+                && (calls >= MODE_OUTSTANDING_CALLS[mode + 1]
+                        || bytes >= MODE_OUTSTANDING_BYTES[mode + 1])) {
+            mode++;
+        }
+        final long now = SystemClock.elapsedRealtimeNanos();
+        if (mode == mDeliveryMode && now - mModeChangedNanos >= MODE_HOLD_NANOS) {
+            while (mode > CsiSubscriptionConfig.DELIVERY_MODE_NORMAL
+                    && calls < MODE_OUTSTANDING_CALLS[mode] / 2
+                    && bytes < MODE_OUTSTANDING_BYTES[mode] / 2) {
+                mode--;
+            }
+        }
+        if (mode != mDeliveryMode) {
+            setDeliveryMode(mode, now, calls);
+        }
+    }
+
+    private void setDeliveryMode(int mode, long now, long outstanding) {
+        Log.i(TAG, "Subscriber uid=" + mUid + " id=" + mCallbackIdentifier + " switching to "
+                + CsiSubscriptionConfig.deliveryModeToString(mode) + " delivery, "
+                + outstanding + " deliveries outstanding");
+        mDeliveryMode = mode;
+        mModeChangedNanos = now;
+        mModeChangeCount++;
+        try {
+            mCallback.onCsiDeliveryModeChanged(mode);
+        } catch (RemoteException e) {
+            handleDeliveryFailure(e);
+        }
+    }
+
+    private void handleDeliveryFailure(RemoteException e) {
+        mBinderFailureCount++;
+        if (e instanceof DeadObjectException) {
+            Log.e(TAG, "Subscriber uid=" + mUid + " is dead, dropping it");
+            mRunning = false;
+            if (mDeathListener != null) {
+                mDeathListener.onSubscriberDied(this);
+            }
+        } else {
+            Log.e(TAG, "CSI delivery failed for uid=" + mUid + ": " + e);
+        }
+    }
+}
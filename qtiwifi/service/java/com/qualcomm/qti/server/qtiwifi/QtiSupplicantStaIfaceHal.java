@@ -525,11 +525,21 @@ public class QtiSupplicantStaIfaceHal {
         }
     }
 
+    /**
+     * Signals whether the vendor supplicant HAL is connected.
+     */
+    public boolean isInitializationComplete() {
+        synchronized (mLock) {
+            return mISupplicantVendor != null;
+        }
+    }
+
      /**
      * run Driver command
      *
      * @param ifaceName Interface Name
      * @param command Driver Command
+     * @return the driver reply, or null if the command failed
      */
     public String doDriverCmd(String command)
     {
@@ -537,7 +547,6 @@ public class QtiSupplicantStaIfaceHal {
             final String methodStr = "doDriverCmd";
             final Mutable<String> reply = new Mutable<>();
 
-            reply.value = "";
             ISupplicantVendorStaIface vendorIfaceV2_0 = getVendorStaIface("wlan0");
             if (vendorIfaceV2_0 == null) {
                 Log.e(TAG, "Can't call " + methodStr + ", ISupplicantVendorStaIface is null");
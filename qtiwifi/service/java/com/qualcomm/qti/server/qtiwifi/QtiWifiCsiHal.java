@@ -55,10 +55,20 @@ import android.os.HwRemoteBinder;
 import android.os.RemoteException;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.SharedMemory;
+import android.os.SystemClock;
+import android.system.ErrnoException;
 import android.util.Log;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.HashMap;
 import java.util.List;
 
@@ -67,7 +77,13 @@ import vendor.qti.hardware.wifi.wificfr.V1_0.IWificfrDataCallback;
 import vendor.qti.hardware.wifi.wificfr.V1_0.CaptureStatus;
 import vendor.qti.hardware.wifi.wificfr.V1_0.CaptureStatusCode;
 
+import com.qualcomm.qti.qtiwifi.CsiCaptureFile;
+import com.qualcomm.qti.qtiwifi.CsiFrame;
+import com.qualcomm.qti.qtiwifi.CsiLatencyHistogram;
+import com.qualcomm.qti.qtiwifi.CsiSessionConfig;
+import com.qualcomm.qti.qtiwifi.CsiSubscriptionConfig;
 import com.qualcomm.qti.qtiwifi.ICsiCallback;
+import com.qualcomm.qti.server.qtiwifi.util.GeneralUtil;
 
 public class QtiWifiCsiHal {
     private static final String TAG = "QtiWifiCsiHal";
@@ -84,8 +100,41 @@ public class QtiWifiCsiHal {
 
     /* Limit on number of registered csi callbacks to track and prevent potential memory leak */
     private static final int NUM_CSI_CALLBACKS_WTF_LIMIT = 20;
-    private final HashMap<Integer, ICsiCallback> mRegisteredCsiCallbacks;
-    private ICsiCallback mCsiCallback;
+    private final CsiDispatcher mDispatcher;
+
+    /* Feature extraction shared by the feature subscriptions */
+    private final CsiFeatureStage mFeatureStage;
+
+    /* Reusable buffers for frames received from the HAL */
+    private final CsiFramePool mFramePool;
+
+    /* Per-peer counters and last frame of the frames received while anyone subscribes */
+    private final CsiPeerDemux mPeerDemux;
+
+    /*
+     * Capture state: the HAL captures while any client holds a startCsi() request or any
+     * session runs. Guarded by mCaptureLock, which is never taken while holding mLock.
+     */
+    private final Object mCaptureLock = new Object();
+    private final HashMap<IBinder, CaptureClient> mCaptureClients = new HashMap<>();
+    /* Tokens standing for the startCsi() requests of clients that pass no binder, by uid */
+    private final HashMap<Integer, IBinder> mLegacyCaptureTokens = new HashMap<>();
+    private volatile boolean mCapturing;
+    private final HashMap<Long, CsiSession> mSessions = new HashMap<>();
+    /* Ends sessions whose duration is over */
+    private final ScheduledThreadPoolExecutor mSessionTimer;
+
+    /* Ingest counters read by dumpsys */
+    private final AtomicLong mReceivedFrames = new AtomicLong();
+    private final AtomicLong mReceivedBytes = new AtomicLong();
+    private final AtomicLong mFilteredFrames = new AtomicLong();
+
+    /* Time spent in the HAL data callback per frame */
+    private final CsiLatencyHistogram mIngestLatency = new CsiLatencyHistogram();
+
+    /* Header of the frame being received, decoded to filter before copying the payload */
+    private final byte[] mHeaderScratch = new byte[CsiFrame.HEADER_SIZE];
+    private final CsiFrame mHeaderView = new CsiFrame();
 
     /********************************************************
      * WifiCsi operations
@@ -108,24 +157,35 @@ public class QtiWifiCsiHal {
     private class WifiCfrDataCallback extends IWificfrDataCallback.Stub {
         @Override
         public void onCfrDataAvailable(ArrayList<Byte> info) {
-            Log.i(TAG, "onCfrDataAvailable called");
-            if (mCsiCallback != null) {
-                try {
-                    byte[] byteArray = new byte[(info).size()];
-                    int i = 0;
-                    for (Byte b : info) {
-                        byteArray[i++] = b;
-                    }
-                    StringBuilder strBuilder = new StringBuilder();
-                    for(byte val : byteArray) {
-                        strBuilder.append(String.format("%02x", val&0xff));
-                    }
-                    mCsiCallback.onCsiUpdate(byteArray);
-                } catch (RemoteException e) {
-                    Log.e(TAG, "onCsiUpdate " + e);
-                }
-
+            final int length = info.size();
+            mReceivedFrames.incrementAndGet();
+            mReceivedBytes.addAndGet(length);
+            final boolean features = mFeatureStage.isActive();
+            if ((!mDispatcher.hasSubscribers() && !features) || length == 0) {
+                return;
+            }
+            final long now = SystemClock.elapsedRealtimeNanos();
+            final int headerLength = Math.min(length, CsiFrame.HEADER_SIZE);
+            GeneralUtil.copyFromList(info, 0, mHeaderScratch, 0, headerLength);
+            final CsiFrame header = mHeaderView.wrap(mHeaderScratch, 0, headerLength);
+            final CsiPeerDemux.Peer peer =
+                    header.isValid() ? mPeerDemux.onFrame(header, length, now) : null;
+            if (!mDispatcher.select(header, now) && !features) {
+                mFilteredFrames.incrementAndGet();
+                return;
+            }
+            CsiFrameBuffer frame = mFramePool.acquire(length);
+            frame.timestampNanos = now;
+            GeneralUtil.copyFromList(info, 0, frame.data, 0, length);
+            if (peer != null) {
+                mPeerDemux.cacheFrame(peer, frame);
+            }
+            mDispatcher.dispatch(frame);
+            if (features) {
+                mFeatureStage.offer(frame);
             }
+            frame.release();
+            mIngestLatency.record(SystemClock.elapsedRealtimeNanos() - now);
         }
     }
 
@@ -141,10 +201,12 @@ public class QtiWifiCsiHal {
                 if (!initIWifiCfrService()) {
                     Log.e(TAG, "initializing WifiCfr failed.");
                     wifiCfrServiceDiedHandler();
-                } else {
-                    Log.i(TAG, "Completed initialization of IWifiCfr.");
+                    return;
                 }
+                Log.i(TAG, "Completed initialization of IWifiCfr.");
             }
+            // Outside mLock, see mCaptureLock.
+            resumeCapture();
         }
     };
     private final HwRemoteBinder.DeathRecipient mServiceManagerDeathRecipient =
@@ -166,7 +228,15 @@ public class QtiWifiCsiHal {
 
     public QtiWifiCsiHal() {
         mIWifiCfrDataCallback = new WifiCfrDataCallback();
-        mRegisteredCsiCallbacks = new HashMap<>();
+        mDispatcher = new CsiDispatcher(subscriber -> onCallbackGone(subscriber.getUid()));
+        mFeatureStage = new CsiFeatureStage(this::onCallbackGone);
+        mFramePool = new CsiFramePool();
+        mPeerDemux = new CsiPeerDemux();
+        mSessionTimer = new ScheduledThreadPoolExecutor(1,
+                runnable -> new Thread(runnable, "CsiSessionTimer"));
+        mSessionTimer.setKeepAliveTime(10, TimeUnit.SECONDS);
+        mSessionTimer.allowCoreThreadTimeOut(true);
+        mSessionTimer.setRemoveOnCancelPolicy(true);
     }
 
     /**
@@ -297,7 +367,7 @@ public class QtiWifiCsiHal {
      * Initialize the IWifiCfr object.
      * @return true on success, false otherwise.
      */
-    private boolean initIWifiCfrService() {
+    protected boolean initIWifiCfrService() {
         synchronized (mLock) {
             if (mIWifiCfr != null) {
                 return true;
@@ -397,6 +467,17 @@ public class QtiWifiCsiHal {
         synchronized (mLock) {
             mIWifiCfr = null;
         }
+        // A restarted HAL is not capturing.
+        mCapturing = false;
+        // No frames until the HAL is back, see resumeCapture().
+        mFeatureStage.stop();
+    }
+
+    /**
+     * Stops the threads serving feature subscriptions when the service is destroyed.
+     */
+    public void release() {
+        mFeatureStage.stop();
     }
 
     /**
@@ -490,68 +571,466 @@ public class QtiWifiCsiHal {
         }
     }
 
-    public void registerCsiCallback(IBinder binder, ICsiCallback callback,
-            int callbackIdentifier) {
+    /**
+     * Registers a csi callback.
+     *
+     * @param config delivery options, null for legacy per-frame onCsiUpdate delivery.
+     *        Configs with features subscribe to the shared feature stage instead.
+     * @return false if the client is already dead.
+     */
+    public boolean registerCsiCallback(IBinder binder, ICsiCallback callback,
+            int callbackIdentifier, int uid, CsiSubscriptionConfig config) {
+        if (config != null && config.getFeatures() != 0) {
+            // A raw subscription with the same key would otherwise keep receiving frames.
+            mDispatcher.removeSubscriber(CsiSubscriber.makeKey(uid, callbackIdentifier));
+            if (!mFeatureStage.addSubscription(binder, callback, callbackIdentifier, uid,
+                    config)) {
+                return false;
+            }
+            checkCallbackCount();
+            return true;
+        }
+        mFeatureStage.removeSubscription(CsiSubscriber.makeKey(uid, callbackIdentifier));
+        return addSubscriber(new CsiSubscriber(binder, callback, callbackIdentifier, uid,
+                CsiSubscriber.DEFAULT_QUEUE_CAPACITY, config, null, mFramePool));
+    }
+
+    /**
+     * Registers a csi callback receiving frames through a shared memory ring buffer.
+     *
+     * @return the ring buffer to hand to the client, or null on failure.
+     */
+    public SharedMemory registerCsiRingBuffer(IBinder binder, ICsiCallback callback,
+            int callbackIdentifier, int uid, CsiSubscriptionConfig config) {
+        mFeatureStage.removeSubscription(CsiSubscriber.makeKey(uid, callbackIdentifier));
+        CsiRingBufferWriter writer;
+        try {
+            writer = CsiRingBufferWriter.create("qtiwifi-csi-" + uid + "-" + callbackIdentifier,
+                    config.getSharedMemoryCapacity());
+        } catch (ErrnoException | IllegalArgumentException e) {
+            Log.e(TAG, "Failed to create csi ring buffer: " + e);
+            return null;
+        }
+        if (!addSubscriber(new CsiSubscriber(binder, callback, callbackIdentifier, uid,
+                CsiSubscriber.DEFAULT_QUEUE_CAPACITY, config, writer, mFramePool))) {
+            writer.close();
+            return null;
+        }
+        return writer.getSharedMemory();
+    }
+
+    private boolean addSubscriber(CsiSubscriber subscriber) {
         // register for binder death
-        IBinder.DeathRecipient dr = new IBinder.DeathRecipient() {
-            @Override
-            public void binderDied() {
-                binder.unlinkToDeath(this, 0);
-                mRegisteredCsiCallbacks.remove(callbackIdentifier);
+        if (!subscriber.linkToDeath(() -> mDispatcher.onSubscriberDied(subscriber))) {
+            return false;
+        }
+
+        mDispatcher.addSubscriber(subscriber);
+        primeSubscriber(subscriber);
+        checkCallbackCount();
+        return true;
+    }
+
+    /**
+     * Hands a subscriber filtering on peers the last frame cached for each of them.
+     */
+    private void primeSubscriber(CsiSubscriber subscriber) {
+        final CsiSubscriptionConfig config = subscriber.getConfig();
+        if (config == null) return;
+        final CsiFrame header = new CsiFrame();
+        for (long peerMac : config.getPeerMacs()) {
+            final CsiFrameBuffer frame = mPeerDemux.acquireLastFrame(peerMac);
+            if (frame == null) continue;
+            subscriber.prime(frame, header.wrap(frame.data, 0, frame.length()));
+            frame.release();
+        }
+    }
+
+    private void checkCallbackCount() {
+        final int count = mDispatcher.getSubscribers().length
+                + mFeatureStage.getSubscriptionCount();
+        if (count > NUM_CSI_CALLBACKS_WTF_LIMIT) {
+            Log.e(TAG, "Too many csi callbacks: " + count);
+        }
+    }
+
+    public void unregisterCsiCallback(int callbackIdentifier, int uid) {
+        final long key = CsiSubscriber.makeKey(uid, callbackIdentifier);
+        if (mFeatureStage.removeSubscription(key) || mDispatcher.removeSubscriber(key) != null) {
+            onCallbackGone(uid);
+        }
+    }
+
+    /**
+     * Withdraws the {@link #startCsi(int)} request of {@code uid} once the uid has no callback
+     * left, which is the only way to notice that a client without a binder of its own died.
+     */
+    private void onCallbackGone(int uid) {
+        if (mFeatureStage.hasSubscription(uid)) return;
+        for (CsiSubscriber subscriber : mDispatcher.getSubscribers()) {
+            if (subscriber.getUid() == uid) return;
+        }
+        synchronized (mCaptureLock) {
+            if (!mLegacyCaptureTokens.containsKey(uid)) return;
+            Log.i(TAG, "Last csi callback of uid=" + uid + " is gone, withdrawing its startCsi");
+            stopCsi(uid);
+        }
+    }
+
+    /**
+     * Starts a capture session: frames selected by {@code config} are delivered to the client,
+     * or written to {@code output} if given, until a limit of {@code sessionConfig} is reached
+     * or the client stops it. Starts the HAL capture if needed.
+     *
+     * @param output takes ownership, it is closed when the session ends.
+     * @return whether the session started, false also if the HAL capture could not be started.
+     */
+    public boolean startCsiSession(IBinder binder, ICsiCallback callback, int callbackIdentifier,
+            int uid, CsiSessionConfig sessionConfig, CsiSubscriptionConfig config,
+            ParcelFileDescriptor output) {
+        final long key = CsiSubscriber.makeKey(uid, callbackIdentifier);
+        mFeatureStage.removeSubscription(key);
+        CsiSessionOutput sessionOutput = null;
+        if (output != null) {
+            try {
+                sessionOutput = new CsiSessionOutput(output,
+                        config.getEncodingBitDepth() != 0 ? CsiCaptureFile.FLAG_ENCODED : 0);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to open csi session output: " + e);
+                closeOutput(output);
+                return false;
             }
-        };
+        }
+        final CsiSession session = new CsiSession(key, uid, callback, sessionConfig,
+                sessionOutput, this::onSessionFinished);
+        final CsiSubscriber subscriber = new CsiSubscriber(binder, callback, callbackIdentifier,
+                uid, CsiSubscriber.DEFAULT_QUEUE_CAPACITY, config, null, mFramePool, session);
+        final CsiSession previous;
+        boolean started;
+        synchronized (mCaptureLock) {
+            previous = mSessions.put(key, session);
+            updateCaptureLocked();
+            // Without a capture the session would only ever end by its timeout.
+            started = mCapturing;
+            if (!started) {
+                Log.e(TAG, "Failed to start the capture for csi session uid=" + uid);
+                abandonSessionLocked(session, previous);
+            }
+        }
+        if (started && !addSubscriber(subscriber)) {
+            synchronized (mCaptureLock) {
+                abandonSessionLocked(session, previous);
+            }
+            started = false;
+        }
+        if (!started) {
+            closeOutput(sessionOutput);
+            return false;
+        }
+        final long maxDuration = sessionConfig.getMaxDurationMillis();
+        if (maxDuration != 0) {
+            session.setTimeout(mSessionTimer.schedule(
+                    () -> session.end(CsiSessionConfig.END_REASON_DURATION),
+                    maxDuration, TimeUnit.MILLISECONDS));
+        }
+        Log.i(TAG, "Started csi session uid=" + uid + " " + sessionConfig);
+        return true;
+    }
+
+    /**
+     * Undoes the registration of a session that failed to start, giving its key back to the
+     * session it replaced, if any.
+     */
+    private void abandonSessionLocked(CsiSession session, CsiSession previous) {
+        if (previous != null) {
+            mSessions.replace(session.getKey(), session, previous);
+        } else {
+            mSessions.remove(session.getKey(), session);
+        }
+        updateCaptureLocked();
+    }
+
+    /**
+     * Ends a capture session early. Frames already queued are still delivered.
+     */
+    public void stopCsiSession(int callbackIdentifier, int uid) {
+        final CsiSession session;
+        synchronized (mCaptureLock) {
+            session = mSessions.get(CsiSubscriber.makeKey(uid, callbackIdentifier));
+        }
+        if (session != null) {
+            session.end(CsiSessionConfig.END_REASON_STOPPED);
+        }
+    }
+
+    private static void closeOutput(Closeable output) {
+        if (output == null) return;
         try {
-            binder.linkToDeath(dr, 0);
-        } catch (RemoteException e) {
-            Log.e(TAG, "Error on linkToDeath - " + e);
-            return;
+            output.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close csi session output: " + e);
+        }
+    }
+
+    private void onSessionFinished(CsiSession session) {
+        final CsiSubscriber subscriber = session.getSubscriber();
+        if (subscriber != null) {
+            mDispatcher.removeSubscriber(subscriber);
+        }
+        synchronized (mCaptureLock) {
+            mSessions.remove(session.getKey(), session);
+            updateCaptureLocked();
+        }
+        Log.i(TAG, "Finished csi session " + session);
+    }
+
+    /**
+     * Passes a client's delivery acknowledgement to its flow controlled subscriber.
+     */
+    public void ackCsiDelivery(int callbackIdentifier, int uid, long deliveryCount) {
+        CsiSubscriber subscriber =
+                mDispatcher.getSubscriber(CsiSubscriber.makeKey(uid, callbackIdentifier));
+        if (subscriber != null) {
+            subscriber.onDeliveryAck(deliveryCount);
+        }
+    }
+
+    /**
+     * Prints the HAL state, ingest counters, subscribers and latencies for dumpsys.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("CFR HAL: " + (isInitializationComplete() ? "connected" : "not connected")
+                + (this instanceof QtiWifiCsiReplayHal ? " (replay)" : ""));
+        pw.println("CSI frames received: " + mReceivedFrames.get()
+                + ", bytes: " + mReceivedBytes.get()
+                + ", filtered out: " + mFilteredFrames.get()
+                + ", buffers allocated: " + mFramePool.getAllocationCount());
+        final CsiSubscriber[] subscribers = mDispatcher.getSubscribers();
+        pw.println("CSI subscribers: " + subscribers.length);
+        for (CsiSubscriber subscriber : subscribers) {
+            pw.println("  uid=" + subscriber.getUid() + " id=" + subscriber.getCallbackIdentifier()
+                    + " delivered=" + subscriber.getDeliveredCount()
+                    + " dropped=" + subscriber.getDroppedCount()
+                    + " queued=" + subscriber.getQueuedCount()
+                    + " binderFailures=" + subscriber.getBinderFailureCount()
+                    + " oversized=" + subscriber.getOversizedFrameCount()
+                    + " mode=" + CsiSubscriptionConfig.deliveryModeToString(
+                            subscriber.getDeliveryMode())
+                    + " outstanding=" + subscriber.getOutstandingDeliveries()
+                    + " throttled=" + subscriber.getThrottledCount()
+                    + " modeChanges=" + subscriber.getModeChangeCount()
+                    + " config=" + subscriber.getConfig());
+        }
+        synchronized (mCaptureLock) {
+            pw.println("CSI capture: " + (mCapturing ? "running" : "stopped")
+                    + ", clients: " + mCaptureClients.size()
+                    + ", sessions: " + mSessions.size());
+            for (CaptureClient client : mCaptureClients.values()) {
+                pw.println("  uid=" + client.uid + " requests=" + client.count);
+            }
+            for (CsiSession session : mSessions.values()) {
+                pw.println("  " + session);
+            }
+        }
+        mPeerDemux.dump(pw);
+        mFeatureStage.dump(pw);
+        dumpLatency(pw);
+    }
+
+    /**
+     * Prints the latency histograms per stage, over all current subscribers, and per
+     * subscriber.
+     */
+    public void dumpLatency(PrintWriter pw) {
+        final CsiSubscriber[] subscribers = mDispatcher.getSubscribers();
+        final CsiLatencyHistogram queue = new CsiLatencyHistogram();
+        final CsiLatencyHistogram dispatch = new CsiLatencyHistogram();
+        for (CsiSubscriber subscriber : subscribers) {
+            queue.add(subscriber.getQueueLatency());
+            dispatch.add(subscriber.getDispatchLatency());
+        }
+        pw.println("CSI latency:");
+        pw.println("  ingest: " + mIngestLatency);
+        pw.println("  queue: " + queue);
+        pw.println("  dispatch: " + dispatch);
+        for (CsiSubscriber subscriber : subscribers) {
+            pw.println("  uid=" + subscriber.getUid() + " id=" + subscriber.getCallbackIdentifier()
+                    + " queue: " + subscriber.getQueueLatency()
+                    + ", dispatch: " + subscriber.getDispatchLatency());
+        }
+    }
+
+    /**
+     * startCsi() requests of a client binder, dropped when the client dies.
+     */
+    private class CaptureClient implements IBinder.DeathRecipient {
+        final IBinder binder;
+        final int uid;
+        int count;
+
+        CaptureClient(IBinder binder, int uid) {
+            this.binder = binder;
+            this.uid = uid;
+        }
+
+        @Override
+        public void binderDied() {
+            synchronized (mCaptureLock) {
+                if (!mCaptureClients.remove(binder, this)) return;
+                Log.i(TAG, "Capture client uid=" + uid + " died with " + count + " requests");
+                updateCaptureLocked();
+            }
         }
+    }
 
-        mCsiCallback = callback;
-        mRegisteredCsiCallbacks.put(callbackIdentifier, callback);
+    /**
+     * Requests the HAL capture on behalf of the client {@code binder}, until a matching
+     * {@link #stopCsi} or the client's death. Only the first request of all clients starts
+     * the HAL capture.
+     */
+    public void startCsi(IBinder binder, int uid) {
+        synchronized (mCaptureLock) {
+            CaptureClient client = mCaptureClients.get(binder);
+            if (client == null) {
+                client = new CaptureClient(binder, uid);
+                try {
+                    binder.linkToDeath(client, 0);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "Capture client uid=" + uid + " already died");
+                    return;
+                }
+                mCaptureClients.put(binder, client);
+            }
+            client.count++;
+            updateCaptureLocked();
+        }
+    }
 
-        if (mRegisteredCsiCallbacks.size() > NUM_CSI_CALLBACKS_WTF_LIMIT) {
-            Log.e(TAG, "Too many csi callbacks: " + mRegisteredCsiCallbacks.size());
+    /**
+     * Withdraws a {@link #startCsi} request of {@code binder}. The HAL capture stops once no
+     * client holds a request and no session runs.
+     */
+    public void stopCsi(IBinder binder) {
+        synchronized (mCaptureLock) {
+            final CaptureClient client = mCaptureClients.get(binder);
+            if (client == null) {
+                Log.w(TAG, "stopCsi without a matching startCsi");
+                return;
+            }
+            if (--client.count == 0) {
+                mCaptureClients.remove(binder);
+                binder.unlinkToDeath(client, 0);
+            }
+            updateCaptureLocked();
         }
+    }
 
+    /**
+     * Restarts the capture on a newly registered HAL for the clients and sessions still
+     * holding it; a restarted HAL does not capture.
+     */
+    private void resumeCapture() {
+        mFeatureStage.start();
+        synchronized (mCaptureLock) {
+            updateCaptureLocked();
+        }
     }
 
-    public void unregisterCsiCallback(int callbackIdentifier) {
-        if (mCsiCallback != null)
-            mCsiCallback = null;
-        mRegisteredCsiCallbacks.remove(callbackIdentifier);
+    /**
+     * Requests the HAL capture for a client without a binder of its own, as older managers
+     * do. Such a client holds at most one request, withdrawn by {@link #stopCsi(int)} or when
+     * the last callback the uid registered dies or is unregistered.
+     */
+    public void startCsi(int uid) {
+        synchronized (mCaptureLock) {
+            if (mLegacyCaptureTokens.containsKey(uid)) return;
+            final IBinder token = new Binder();
+            mLegacyCaptureTokens.put(uid, token);
+            startCsi(token, uid);
+        }
+    }
+
+    /**
+     * Withdraws the request made by {@link #startCsi(int)}.
+     */
+    public void stopCsi(int uid) {
+        synchronized (mCaptureLock) {
+            final IBinder token = mLegacyCaptureTokens.remove(uid);
+            if (token != null) {
+                stopCsi(token);
+            }
+        }
     }
 
-    public void startCsi() {
+    /**
+     * Starts or stops the HAL capture to match the requests and sessions.
+     */
+    private void updateCaptureLocked() {
+        final boolean wanted = !mCaptureClients.isEmpty() || !mSessions.isEmpty();
+        if (wanted == mCapturing) return;
+        if (wanted) {
+            mCapturing = startCapture();
+        } else if (stopCapture()) {
+            mCapturing = false;
+        }
+    }
+
+    private boolean startCapture() {
        Log.i(TAG, "startCsi Called");
        final String methodStr = "startCsi";
+       if (!registerEventCallback()) {
+           Log.e(TAG, "CFR tool is not running, make sure its running");
+           return false;
+       }
+       final IWificfr wifiCfr;
+       synchronized (mLock) {
+           wifiCfr = mIWifiCfr;
+       }
+       if (wifiCfr == null) {
+           Log.e(TAG, "Can't call " + methodStr + ", IWifiCfr is null");
+           return false;
+       }
        try {
-           if (!registerEventCallback()) {
-               Log.e(TAG, "CFR tool is not running, make sure its running");
-           } else {
-               mIWifiCfr.csiCaptureStart();
-               Log.i(TAG, "csiCaptureStart invoked through hidl client");
+           CaptureStatus status = wifiCfr.csiCaptureStart();
+           if (!checkStatusAndLogFailure(status, methodStr)) {
+               // Not capturing, so no frames are expected either.
+               unregisterEventCallback();
+               return false;
            }
+           Log.i(TAG, "csiCaptureStart invoked through hidl client");
+           return true;
        } catch (RemoteException e) {
            handleRemoteException(e, methodStr);
-           return;
+           return false;
        }
     }
 
-    public void stopCsi() {
+    private boolean stopCapture() {
        Log.i(TAG, "stopCsi Called");
        final String methodStr = "stopCsi";
+       final IWificfr wifiCfr;
+       synchronized (mLock) {
+           wifiCfr = mIWifiCfr;
+       }
+       if (wifiCfr == null) {
+           Log.e(TAG, "Can't call " + methodStr + ", IWifiCfr is null");
+           return false;
+       }
        try {
-           if (!unregisterEventCallback()) {
-               Log.e(TAG, "CFR tool is not running, make sure its running");
-           } else {
-               mIWifiCfr.csiCaptureStop();
-               Log.i(TAG, "csiCaptureStop invoked through hidl client");
+           // Stop first, so a capture that keeps running still has its event callback.
+           CaptureStatus status = wifiCfr.csiCaptureStop();
+           if (!checkStatusAndLogFailure(status, methodStr)) {
+               return false;
            }
+           Log.i(TAG, "csiCaptureStop invoked through hidl client");
        } catch (RemoteException e) {
            handleRemoteException(e, methodStr);
-           return;
+           return false;
+       }
+       if (!unregisterEventCallback()) {
+           Log.e(TAG, "CFR tool is not running, make sure its running");
        }
+       return true;
     }
 
 }
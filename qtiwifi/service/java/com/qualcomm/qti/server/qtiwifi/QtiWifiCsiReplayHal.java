@@ -0,0 +1,68 @@
+/* Copyright (c) 2021 Qualcomm Innovation Center, Inc.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted (subject to the limitations in the
+ * disclaimer below) provided that the following conditions are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ *   * Neither the name of Qualcomm Innovation Center nor the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * NO EXPRESS OR IMPLIED LICENSES TO ANY PARTY'S PATENT RIGHTS ARE
+ * GRANTED BY THIS LICENSE. THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT
+ * HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE
+ * GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.qualcomm.qti.server.qtiwifi;
+
+import android.util.Log;
+
+import vendor.qti.hardware.wifi.wificfr.V1_0.IWificfr;
+
+/**
+ * QtiWifiCsiHal fed by a {@link CsiReplayCfr} instead of the wificfr HAL. Everything from
+ * the data callback on is the regular service code, so this exercises ingest and dispatch
+ * on devices without CFR capable hardware. Enabled through
+ * the {@code debug.qtiwifi.csi_replay} property.
+ */
+public class QtiWifiCsiReplayHal extends QtiWifiCsiHal {
+    private static final String TAG = "QtiWifiCsiReplayHal";
+
+    private final CsiReplayCfr mReplayCfr;
+
+    public QtiWifiCsiReplayHal(CsiReplayCfr replayCfr) {
+        mReplayCfr = replayCfr;
+    }
+
+    /**
+     * Uses the replay HAL right away, there is no service manager to wait for.
+     */
+    @Override
+    public boolean initialize() {
+        Log.i(TAG, "Replaying csi instead of using " + IWificfr.kInterfaceName);
+        return initIWifiCfrService();
+    }
+
+    @Override
+    protected IWificfr getWifiCfrMockable() {
+        return mReplayCfr;
+    }
+}
@@ -47,6 +47,8 @@ import android.content.res.Resources;
 import android.os.Build;
 import android.os.Process;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -96,6 +98,14 @@ public final class QtiWifiService extends Service {
         return mBinder;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        IQtiWifiManager.Stub binder = mBinder;
+        if (binder instanceof QtiWifiServiceImpl) {
+            ((QtiWifiServiceImpl) binder).dumpState(pw);
+        }
+    }
+
     @Override
     public void onDestroy() {
         Log.d(TAG, "onDestroy()");
@@ -34,8 +34,12 @@
 package com.qualcomm.qti.server.qtiwifi;
 
 import android.content.Context;
+import android.content.pm.PackageManager;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.SharedMemory;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.util.Log;
 import android.net.wifi.WifiManager;
@@ -43,12 +47,31 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.BroadcastReceiver;
 
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.qualcomm.qti.qtiwifi.CsiFeatures;
+import com.qualcomm.qti.qtiwifi.CsiLatencyHistogram;
+import com.qualcomm.qti.qtiwifi.CsiSessionConfig;
+import com.qualcomm.qti.qtiwifi.CsiSubscriptionConfig;
 import com.qualcomm.qti.qtiwifi.ICsiCallback;
 import com.qualcomm.qti.qtiwifi.IQtiWifiManager;
 
 public final class QtiWifiServiceImpl extends IQtiWifiManager.Stub {
     private static final String TAG = "QtiWifiServiceImpl";
     private static final boolean DBG = true;
+
+    /**
+     * Replays csi from a capture file path or a synthetic source instead of using the wificfr
+     * HAL, see {@link CsiReplaySource#fromSpec}.
+     */
+    public static final String PROP_CSI_REPLAY = "debug.qtiwifi.csi_replay";
+    /* Keep the recorded frame spacing when replaying, otherwise replay back to back */
+    public static final String PROP_CSI_REPLAY_REALTIME = "debug.qtiwifi.csi_replay_realtime";
+    /* Start over at the end of a replayed capture */
+    public static final String PROP_CSI_REPLAY_LOOP = "debug.qtiwifi.csi_replay_loop";
     private boolean mServiceStarted = false;
     private boolean mInitializeHals = false;
     private WifiManager mWifiManager;
@@ -57,6 +80,11 @@ public final class QtiWifiServiceImpl extends IQtiWifiManager.Stub {
     private Object mLock = new Object();
     private final IntentFilter mQtiIntentFilter;
 
+    /* doDriverCmd statistics for dumpsys */
+    private final AtomicLong mDriverCmdCount = new AtomicLong();
+    private final AtomicLong mDriverCmdFailureCount = new AtomicLong();
+    private final CsiLatencyHistogram mDriverCmdLatency = new CsiLatencyHistogram();
+
     QtiWifiCsiHal qtiWifiCsiHal;
     QtiSupplicantStaIfaceHal qtiSupplicantStaIfaceHal;
 
@@ -72,20 +100,76 @@ public final class QtiWifiServiceImpl extends IQtiWifiManager.Stub {
             mInitializeHals = true;
             checkAndInitCfrHal();
             checkAndInitSupplicantStaIfaceHal();
+        } else if (!SystemProperties.get(PROP_CSI_REPLAY, "").isEmpty()) {
+            // Replay does not need Wi-Fi.
+            checkAndInitCfrHal();
         }
     }
 
     protected void destroyService() {
         Log.d(TAG, "destroyService()");
         mServiceStarted = false;
+        QtiWifiCsiHal csiHal = qtiWifiCsiHal;
+        if (csiHal != null) {
+            csiHal.release();
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        // Subscribers' uids, configs and peer MACs are not for every caller.
+        if (mContext.checkCallingPermission(android.Manifest.permission.DUMP)
+                != PackageManager.PERMISSION_GRANTED) {
+            pw.println("Permission Denial: can't dump QtiWifiService from pid="
+                    + Binder.getCallingPid() + ", uid=" + Binder.getCallingUid());
+            return;
+        }
+        dumpState(pw);
+    }
+
+    /**
+     * Prints the service state without a permission check. Only for
+     * {@link QtiWifiService#dump}, which the activity manager already gates
+     * on DUMP and which runs on this app's own thread.
+     */
+    void dumpState(PrintWriter pw) {
+        pw.println("QtiWifiService:");
+        QtiSupplicantStaIfaceHal supplicantHal = qtiSupplicantStaIfaceHal;
+        pw.println("Supplicant vendor HAL: " + ((supplicantHal != null
+                && supplicantHal.isInitializationComplete()) ? "connected" : "not connected"));
+        pw.println("doDriverCmd: count=" + mDriverCmdCount.get()
+                + " failures=" + mDriverCmdFailureCount.get()
+                + " latency " + mDriverCmdLatency);
+        QtiWifiCsiHal csiHal = qtiWifiCsiHal;
+        if (csiHal != null) {
+            csiHal.dump(pw);
+        } else {
+            pw.println("CFR HAL: not initialized");
+        }
     }
 
     public void checkAndInitCfrHal() {
         Log.i(TAG, "checkAndInitCfrHal");
-        qtiWifiCsiHal = new QtiWifiCsiHal();
+        qtiWifiCsiHal = createCsiHal();
         qtiWifiCsiHal.initialize();
     }
 
+    private QtiWifiCsiHal createCsiHal() {
+        final String replay = SystemProperties.get(PROP_CSI_REPLAY, "");
+        if (replay.isEmpty()) {
+            return new QtiWifiCsiHal();
+        }
+        try {
+            CsiReplaySource source = CsiReplaySource.fromSpec(replay);
+            return new QtiWifiCsiReplayHal(new CsiReplayCfr(source,
+                    SystemProperties.getBoolean(PROP_CSI_REPLAY_REALTIME, true),
+                    SystemProperties.getBoolean(PROP_CSI_REPLAY_LOOP, false)));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open csi replay source " + replay + ": " + e);
+            return new QtiWifiCsiHal();
+        }
+    }
+
     public void checkAndInitSupplicantStaIfaceHal() {
         Log.i(TAG, "checkAndInitSupplicantStaIfaceHal");
         qtiSupplicantStaIfaceHal = new QtiSupplicantStaIfaceHal();
@@ -127,7 +211,64 @@ public final class QtiWifiServiceImpl extends IQtiWifiManager.Stub {
         if (DBG) {
             Log.i(TAG, "registerCsiCallback uid=%" + Binder.getCallingUid());
         }
-        qtiWifiCsiHal.registerCsiCallback(binder, callback, callbackIdentifier);
+        qtiWifiCsiHal.registerCsiCallback(binder, callback, callbackIdentifier,
+                Binder.getCallingUid(), null);
+    }
+
+    @Override
+    public boolean registerCsiCallbackWithConfig(IBinder binder, ICsiCallback callback,
+            int callbackIdentifier, CsiSubscriptionConfig config) {
+        // verify arguments
+        if (binder == null) {
+            throw new IllegalArgumentException("Binder must not be null");
+        }
+        if (callback == null) {
+            throw new IllegalArgumentException("Callback must not be null");
+        }
+        if (config == null) {
+            throw new IllegalArgumentException("Config must not be null");
+        }
+        checkSubcarrierRange(config);
+        checkPeerMacs(config);
+        final int windowFrames = config.getWindowStatsFrames();
+        if ((config.getFeatures() & CsiFeatures.FEATURE_WINDOW_STATS) != 0
+                && (windowFrames < 2
+                        || windowFrames > CsiSubscriptionConfig.MAX_WINDOW_STATS_FRAMES)) {
+            throw new IllegalArgumentException("Invalid window of " + windowFrames + " frames");
+        }
+        enforceAccessPermission();
+        if (DBG) {
+            Log.i(TAG, "registerCsiCallbackWithConfig uid=" + Binder.getCallingUid()
+                    + " config=" + config);
+        }
+        return qtiWifiCsiHal.registerCsiCallback(binder, callback, callbackIdentifier,
+                Binder.getCallingUid(), config);
+    }
+
+    @Override
+    public SharedMemory openCsiRingBuffer(IBinder binder, ICsiCallback callback,
+            int callbackIdentifier, CsiSubscriptionConfig config) {
+        // verify arguments
+        if (binder == null) {
+            throw new IllegalArgumentException("Binder must not be null");
+        }
+        if (callback == null) {
+            throw new IllegalArgumentException("Callback must not be null");
+        }
+        if (config == null || config.getSharedMemoryCapacity() == 0) {
+            throw new IllegalArgumentException("Config must set a shared memory capacity");
+        }
+        if (config.getFeatures() != 0) {
+            throw new IllegalArgumentException("Features are not delivered through a ring buffer");
+        }
+        checkSubcarrierRange(config);
+        checkPeerMacs(config);
+        enforceAccessPermission();
+        if (DBG) {
+            Log.i(TAG, "openCsiRingBuffer uid=" + Binder.getCallingUid() + " config=" + config);
+        }
+        return qtiWifiCsiHal.registerCsiRingBuffer(binder, callback, callbackIdentifier,
+                Binder.getCallingUid(), config);
     }
 
     //@Override
@@ -136,13 +277,64 @@ public final class QtiWifiServiceImpl extends IQtiWifiManager.Stub {
         if (DBG) {
             Log.i(TAG, "unregisterCsiCallback uid=%" + Binder.getCallingUid());
         }
-        qtiWifiCsiHal.unregisterCsiCallback(callbackIdentifier);
+        qtiWifiCsiHal.unregisterCsiCallback(callbackIdentifier, Binder.getCallingUid());
+    }
+
+    @Override
+    public void ackCsiDelivery(int callbackIdentifier, long deliveryCount) {
+        // Only reaches the caller's own subscribers, so skip the per call permission check.
+        qtiWifiCsiHal.ackCsiDelivery(callbackIdentifier, Binder.getCallingUid(), deliveryCount);
+    }
+
+    /**
+     * see {@link com.qualcomm.qti.qtiwifi.QtiWifiManager#startCsiSession}
+     */
+    @Override
+    public boolean startCsiSession(IBinder binder, ICsiCallback callback, int callbackIdentifier,
+            CsiSessionConfig session, CsiSubscriptionConfig config, ParcelFileDescriptor output) {
+        // verify arguments
+        if (binder == null) {
+            throw new IllegalArgumentException("Binder must not be null");
+        }
+        if (callback == null) {
+            throw new IllegalArgumentException("Callback must not be null");
+        }
+        if (session == null || config == null) {
+            throw new IllegalArgumentException("Session and config must not be null");
+        }
+        if (config.getFeatures() != 0 || config.getSharedMemoryCapacity() != 0) {
+            throw new IllegalArgumentException("Sessions deliver frames through binder only");
+        }
+        checkSubcarrierRange(config);
+        checkPeerMacs(config);
+        // Starts the capture, so the same permission as startCsi.
+        enforceChangePermission();
+        if (DBG) {
+            Log.i(TAG, "startCsiSession uid=" + Binder.getCallingUid() + " " + session
+                    + " config=" + config + " output=" + (output != null));
+        }
+        return qtiWifiCsiHal.startCsiSession(binder, callback, callbackIdentifier,
+                Binder.getCallingUid(), session, config, output);
+    }
+
+    @Override
+    public void stopCsiSession(int callbackIdentifier) {
+        enforceChangePermission();
+        if (DBG) {
+            Log.i(TAG, "stopCsiSession uid=" + Binder.getCallingUid());
+        }
+        qtiWifiCsiHal.stopCsiSession(callbackIdentifier, Binder.getCallingUid());
     }
 
     @Override
     public void doDriverCmd(String command)
     {
-        qtiSupplicantStaIfaceHal.doDriverCmd(command);
+        mDriverCmdCount.incrementAndGet();
+        final long start = SystemClock.elapsedRealtimeNanos();
+        if (qtiSupplicantStaIfaceHal.doDriverCmd(command) == null) {
+            mDriverCmdFailureCount.incrementAndGet();
+        }
+        mDriverCmdLatency.record(SystemClock.elapsedRealtimeNanos() - start);
         return;
     }
 
@@ -151,8 +343,8 @@ public final class QtiWifiServiceImpl extends IQtiWifiManager.Stub {
      */
     public void startCsi() {
         enforceChangePermission();
-        Log.i(TAG, "startCsi");
-        qtiWifiCsiHal.startCsi();
+        Log.i(TAG, "startCsi uid=" + Binder.getCallingUid());
+        qtiWifiCsiHal.startCsi(Binder.getCallingUid());
     }
 
     /**
@@ -160,8 +352,47 @@ public final class QtiWifiServiceImpl extends IQtiWifiManager.Stub {
      */
     public void stopCsi() {
         enforceChangePermission();
-        Log.i(TAG, "stopCsi");
-        qtiWifiCsiHal.stopCsi();
+        Log.i(TAG, "stopCsi uid=" + Binder.getCallingUid());
+        qtiWifiCsiHal.stopCsi(Binder.getCallingUid());
+    }
+
+    @Override
+    public void acquireCsiCapture(IBinder binder) {
+        if (binder == null) {
+            throw new IllegalArgumentException("Binder must not be null");
+        }
+        enforceChangePermission();
+        Log.i(TAG, "acquireCsiCapture uid=" + Binder.getCallingUid());
+        qtiWifiCsiHal.startCsi(binder, Binder.getCallingUid());
+    }
+
+    @Override
+    public void releaseCsiCapture(IBinder binder) {
+        if (binder == null) {
+            throw new IllegalArgumentException("Binder must not be null");
+        }
+        enforceChangePermission();
+        Log.i(TAG, "releaseCsiCapture uid=" + Binder.getCallingUid());
+        qtiWifiCsiHal.stopCsi(binder);
+    }
+
+    /**
+     * Rejects subcarrier options the client side Builder would not have produced; configs
+     * arrive as parcels and are not trusted.
+     */
+    private static void checkSubcarrierRange(CsiSubscriptionConfig config) {
+        if (config.getFirstSubcarrier() < 0 || config.getSubcarrierCount() < 0
+                || config.getSubcarrierStride() < 1) {
+            throw new IllegalArgumentException("Invalid subcarrier range or downsampling");
+        }
+    }
+
+    private static void checkPeerMacs(CsiSubscriptionConfig config) {
+        // Each registration rebuilds the dispatcher's routes from these.
+        if (config.getPeerMacCount() > CsiSubscriptionConfig.MAX_PEER_MACS) {
+            throw new IllegalArgumentException("More than "
+                    + CsiSubscriptionConfig.MAX_PEER_MACS + " peer MACs");
+        }
     }
 
     private void enforceAccessPermission() {
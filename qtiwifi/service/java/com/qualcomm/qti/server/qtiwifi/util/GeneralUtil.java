@@ -48,6 +48,10 @@
 
 package com.qualcomm.qti.server.qtiwifi.util;
 
+import com.qualcomm.qti.qtiwifi.CsiUtil;
+
+import java.util.List;
+
 /**
  * Class for general helper methods and objects for Wifi Framework code.
  * @hide
@@ -72,4 +76,37 @@ public class GeneralUtil {
             this.value = value;
         }
     }
+
+    /**
+     * Writes the lower case hex digits of {@code length} bytes of {@code src} to {@code dst},
+     * see {@link CsiUtil#encodeHex}.
+     * @return the number of chars written.
+     */
+    public static int encodeHex(byte[] src, int srcOffset, int length, char[] dst,
+            int dstOffset) {
+        return CsiUtil.encodeHex(src, srcOffset, length, dst, dstOffset);
+    }
+
+    public static String toHexString(byte[] src, int offset, int length) {
+        return CsiUtil.toHexString(src, offset, length);
+    }
+
+    /**
+     * Parses {@code length} hex digits of {@code src} into {@code dst}, see
+     * {@link CsiUtil#decodeHex}.
+     * @return the number of bytes written, or -1 if the input is not valid hex.
+     */
+    public static int decodeHex(CharSequence src, int srcOffset, int length, byte[] dst,
+            int dstOffset) {
+        return CsiUtil.decodeHex(src, srcOffset, length, dst, dstOffset);
+    }
+
+    /**
+     * Copies part of a HIDL byte vector into an existing array, see
+     * {@link CsiUtil#copyFromList}.
+     */
+    public static void copyFromList(List<Byte> src, int srcOffset, byte[] dst, int dstOffset,
+            int length) {
+        CsiUtil.copyFromList(src, srcOffset, dst, dstOffset, length);
+    }
 }